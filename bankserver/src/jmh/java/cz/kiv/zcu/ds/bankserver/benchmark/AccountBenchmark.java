@@ -0,0 +1,60 @@
+package cz.kiv.zcu.ds.bankserver.benchmark;
+
+import cz.kiv.zcu.ds.bankserver.domain.Account;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit and debit of one account contended by growing number of threads. Each operation credits amount and
+ * debits it back, so balance never runs out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+
+    private static final int AMOUNT = 25000;
+
+    private Account account;
+
+    @Setup
+    public void setup() {
+        account = Accounts.getInstance().get(1);
+        account.credit(1000000);
+    }
+
+    private boolean creditDebit() {
+        account.credit(AMOUNT);
+        return account.debit(AMOUNT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads1() {
+        return creditDebit();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean threads2() {
+        return creditDebit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads4() {
+        return creditDebit();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean threadsMax() {
+        return creditDebit();
+    }
+
+}
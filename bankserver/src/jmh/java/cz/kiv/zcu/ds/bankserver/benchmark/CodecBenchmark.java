@@ -0,0 +1,94 @@
+package cz.kiv.zcu.ds.bankserver.benchmark;
+
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
+import cz.kiv.zcu.ds.bankserver.codec.MessageCodec;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of encoding and decoding of messages in supported wire formats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /**
+     * Wire format
+     */
+    @Param({"binary", "json"})
+    private String codecName;
+
+    /**
+     * Type of encoded message, GLOBAL_STATE carries report in strData
+     */
+    @Param({"CREDIT", "GLOBAL_STATE"})
+    private MessageType type;
+
+    private MessageCodec codec;
+
+    private Message message;
+
+    private byte[] encoded;
+
+    /**
+     * Received frame in direct buffer, as filled by listener
+     */
+    private ByteBuffer frame;
+
+    /**
+     * Reused message of listener pool
+     */
+    private Message received;
+
+    @Setup
+    public void setup() {
+        codec = Codecs.forName(codecName);
+
+        message = new Message();
+        message.setType(type);
+        message.setFrom(3);
+        message.setNumData(25000);
+        message.setAccountId(7);
+        if (type == MessageType.GLOBAL_STATE) {
+            StringBuilder sb = new StringBuilder("STATE OF NODE No.3\nAmount: 5000000\n");
+            for (int i = 0; i < 20; i++) {
+                sb.append(10000 + i).append(",- CZK\n");
+            }
+            message.setStrData(sb.toString());
+        }
+
+        ByteBuffer buffer = Codecs.encode(codec, message);
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+
+        frame = ByteBuffer.allocateDirect(encoded.length);
+        frame.put(encoded).flip();
+        received = new Message();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return Codecs.encode(codec, message);
+    }
+
+    @Benchmark
+    public Message decode() {
+        return Codecs.decode(encoded);
+    }
+
+    @Benchmark
+    public Message decodeInPlace() {
+        frame.rewind();
+        Codecs.decode(frame, received);
+        return received;
+    }
+
+}
@@ -0,0 +1,61 @@
+package cz.kiv.zcu.ds.bankserver.benchmark;
+
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import cz.kiv.zcu.ds.bankserver.util.LocalStateLogger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording of channel messages and composing of the report with many recorded messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalStateLoggerBenchmark {
+
+    private static final int[] NEIGHBOURS = {1, 2, 3, 4};
+
+    /**
+     * Number of messages recorded in snapshot
+     */
+    @Param({"1000", "100000"})
+    private int messages;
+
+    private LocalStateLogger recorded;
+
+    @Setup
+    public void setup() {
+        recorded = record(messages);
+    }
+
+    private static LocalStateLogger record(int messages) {
+        LocalStateLogger lsl = new LocalStateLogger(0, Accounts.getInstance());
+        lsl.startLogging(NEIGHBOURS);
+        for (int i = 0; i < messages; i++) {
+            lsl.saveMessage(NEIGHBOURS[i % NEIGHBOURS.length], i % 2 == 0 ? MessageType.CREDIT : MessageType.DEBIT,
+                    10000 + i % 40000);
+        }
+
+        return lsl;
+    }
+
+    /**
+     * Cost of one recorded message, including growing of channel history.
+     */
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public LocalStateLogger saveMessage() {
+        return record(10000);
+    }
+
+    @Benchmark
+    public String report() {
+        return recorded.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.openjdk.jmh.annotations.*;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of received bank request. Network is replaced by in-process {@code inproc://} socket pair, so receive,
+ * decode, dispatch and balance change are measured without TCP. Credit is used because it does not reply, debit
+ * would need outbound connections to real nodes. Batch benchmark is normalized per transfer, so it is directly
+ * comparable with single requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+    /**
+     * Number of credits in one batch
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Wire format
+     */
+    @Param({"binary", "json"})
+    private String codecName;
+
+    private ZContext context;
+
+    private ZMQ.Socket in;
+
+    private ZMQ.Socket out;
+
+    private ListenerManager lm;
+
+    private Message message;
+
+    private byte[] encoded;
+
+    private byte[] encodedBatch;
+
+    @Setup
+    public void setup() {
+        lm = new ListenerManager(1, new SnapshotCoordinator(1, null, null));
+
+        message = new Message();
+        message.setType(MessageType.CREDIT);
+        message.setFrom(0);
+        message.setNumData(10000);
+
+        ByteBuffer buffer = Codecs.encode(Codecs.forName(codecName), message);
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+
+        // applied batch of credits without request ID is not replied
+        Batch batch = new Batch(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(MessageType.CREDIT, Accounts.DEFAULT_ACCOUNT, 10000);
+        }
+        Message batchMessage = new Message();
+        batchMessage.setType(MessageType.BATCH);
+        batchMessage.setFrom(0);
+        batchMessage.setBatch(batch);
+        buffer = Codecs.encode(Codecs.forName(codecName), batchMessage);
+        encodedBatch = new byte[buffer.remaining()];
+        buffer.get(encodedBatch);
+
+        context = new ZContext();
+        in = context.createSocket(SocketType.PAIR);
+        in.bind("inproc://listener-benchmark");
+        out = context.createSocket(SocketType.PAIR);
+        out.connect("inproc://listener-benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+        lm.close();
+    }
+
+    /**
+     * Dispatch and balance change of already decoded message.
+     */
+    @Benchmark
+    public void handle() {
+        lm.handleReceivedMessage(message);
+    }
+
+    /**
+     * Whole receive path - transport, decode, dispatch and balance change.
+     */
+    @Benchmark
+    public void receiveAndHandle() {
+        out.send(encoded);
+        lm.handleReceivedMessage(Codecs.decode(in.recv()));
+    }
+
+    /**
+     * Whole receive path of credits sent in single batch message.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void receiveAndHandleBatch() {
+        out.send(encodedBatch);
+        lm.handleReceivedMessage(Codecs.decode(in.recv()));
+    }
+
+}
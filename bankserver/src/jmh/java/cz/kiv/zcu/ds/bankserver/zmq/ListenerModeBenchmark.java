@@ -0,0 +1,109 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatch of received messages to workers of {@link PollingListener} - poller model (few shared
+ * platform workers, each channel served by one of them or in parallel by all) against virtual thread per channel. Handler may block for given time, which simulates
+ * waiting for downstream send (full outbox, durability of debit). One operation is a batch of messages spread
+ * over all channels, finished when all of them are handled. Sockets are not used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerModeBenchmark {
+
+    /**
+     * Number of messages in one operation
+     */
+    private static final int BATCH = 1024;
+
+    /**
+     * Number of workers in poller mode
+     */
+    private static final int POLLER_WORKERS = 4;
+
+    /**
+     * Listener mode - poller, parallel (poller with bank requests of channel handled by all workers) or virtual
+     */
+    @Param({"poller", "parallel", "virtual"})
+    private String mode;
+
+    /**
+     * Number of channels (neighbour ports)
+     */
+    @Param({"16", "1024"})
+    private int channels;
+
+    /**
+     * Time of blocking in handler in microseconds
+     */
+    @Param({"0", "100"})
+    private long blockMicros;
+
+    private PollingListener listener;
+
+    /**
+     * Message of each channel
+     */
+    private Message[] messages;
+
+    /**
+     * Counts handled messages of current batch
+     */
+    private Phaser handled;
+
+    @Setup
+    public void setup() {
+        ListenerManager lm = new ListenerManager(1, new SnapshotCoordinator(1, null, null));
+
+        long blockNanos = TimeUnit.MICROSECONDS.toNanos(blockMicros);
+        lm.registerHandler(MessageType.CREDIT, m -> {
+            if (blockNanos > 0) {
+                LockSupport.parkNanos(blockNanos);
+            }
+            handled.arriveAndDeregister();
+        });
+
+        int[] ports = new int[channels];
+        listener = "virtual".equals(mode)
+                ? lm.createVirtualListener(ports)
+                : lm.createPollingListener(ports, POLLER_WORKERS, "parallel".equals(mode));
+
+        // messages are not sequenced, so the same instances can be dispatched repeatedly
+        messages = new Message[channels];
+        for (int i = 0; i < channels; i++) {
+            messages[i] = new Message();
+            messages[i].setType(MessageType.CREDIT);
+            messages[i].setFrom(i);
+            messages[i].setNumData(10000);
+        }
+
+        handled = new Phaser(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        listener.finishWorkers();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() {
+        handled.bulkRegister(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            listener.dispatch(messages[i % channels], i % channels);
+        }
+        handled.arriveAndAwaitAdvance();
+    }
+
+}
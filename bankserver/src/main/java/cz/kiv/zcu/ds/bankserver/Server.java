@@ -1,25 +1,224 @@
 package cz.kiv.zcu.ds.bankserver;
 
 import cz.kiv.zcu.ds.bankserver.config.Config;
-import cz.kiv.zcu.ds.bankserver.domain.Node;
+import cz.kiv.zcu.ds.bankserver.config.TopologyListener;
+import cz.kiv.zcu.ds.bankserver.config.TopologyWatcher;
+import cz.kiv.zcu.ds.bankserver.domain.Account;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import cz.kiv.zcu.ds.bankserver.domain.Nodes;
+import cz.kiv.zcu.ds.bankserver.persistence.Checkpoint;
+import cz.kiv.zcu.ds.bankserver.persistence.CheckpointStore;
+import cz.kiv.zcu.ds.bankserver.persistence.TransactionLog;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import cz.kiv.zcu.ds.bankserver.util.MetricsEndpoint;
+import cz.kiv.zcu.ds.bankserver.util.Tracing;
+import cz.kiv.zcu.ds.bankserver.zmq.ConnectionRegistry;
+import cz.kiv.zcu.ds.bankserver.zmq.GlobalStateAggregator;
 import cz.kiv.zcu.ds.bankserver.zmq.ListenerManager;
 import cz.kiv.zcu.ds.bankserver.zmq.ListenerManager.Listener;
+import cz.kiv.zcu.ds.bankserver.zmq.LoadGenerator;
+import cz.kiv.zcu.ds.bankserver.zmq.PendingRequests;
+import cz.kiv.zcu.ds.bankserver.zmq.PollingListener;
 import cz.kiv.zcu.ds.bankserver.zmq.Sender;
+import cz.kiv.zcu.ds.bankserver.zmq.SnapshotCoordinator;
+import cz.kiv.zcu.ds.bankserver.zmq.SnapshotScheduler;
 import org.apache.commons.cli.*;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.ThreadContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Bank server that manages dynamic pool of threads for {@link Listener} and {@link Sender} instances.
+ * Bank server that manages dynamic pool of threads for {@link Listener} (or single
+ * {@link PollingListener}) and {@link Sender} instances.
  */
 public class Server {
 
     private static Logger logger = LoggerFactory.getLogger(Server.class);
 
+    /**
+     * Max time for finishing running snapshots during shutdown.
+     */
+    private static final long SNAPSHOT_DRAIN_TIMEOUT = 10;
+
+    /**
+     * Max time for finishing in-flight messages during shutdown.
+     */
+    private static final long TERMINATION_TIMEOUT = 5;
+
+    /**
+     * Hosting node ID
+     */
+    private final int selfNodeNumber;
+
+    /**
+     * Listener mode - thread, poller or virtual
+     */
+    private final String mode;
+
+    /**
+     * Number of workers in poller mode
+     */
+    private final int workersCount;
+
+    /**
+     * True = bank requests of one channel are handled by all workers in poller mode
+     */
+    private boolean parallel;
+
+    /**
+     * Directory with persistent state of hosting node
+     */
+    private final Path dataDir;
+
+    /**
+     * Max time between applying operation and forcing it to disk in milliseconds
+     */
+    private final long flushInterval;
+
+    /**
+     * Interval between snapshots initiated by hosting node in milliseconds, 0 = no periodic snapshots
+     */
+    private final long snapshotInterval;
+
+    /**
+     * Max number of delta snapshots between two full periodic snapshots, 0 = only full snapshots
+     */
+    private final int fullEvery;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Released when server is completely stopped.
+     */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private ListenerManager lm;
+
+    private Sender sender;
+
+    private TransactionLog log;
+
+    private GlobalStateAggregator aggregator;
+
+    private SnapshotScheduler scheduler;
+
+    /**
+     * Load generator replacing random bank request generator, null = random generator is used
+     */
+    private LoadGenerator load;
+
+    /**
+     * HTTP port of metrics endpoint, 0 = metrics are exported only by JMX
+     */
+    private int metricsPort;
+
+    private MetricsEndpoint metricsEndpoint;
+
+    /**
+     * Watcher of external topology file, null = topology from classpath is used
+     */
+    private TopologyWatcher topologyWatcher;
+
+    private TopologyListener topologyListener;
+
+    private SnapshotCoordinator snapshots;
+
+    /**
+     * Listeners of thread mode by their ports
+     */
+    private final Map<Integer, Listener> listeners = new HashMap<>();
+
+    /**
+     * Single listener of poller and virtual modes
+     */
+    private PollingListener pollingListener;
+
+    /**
+     * Settings of load generator
+     */
+    private double loadRate;
+    private boolean loadPoisson;
+    private int loadGenerators;
+    private double loadCreditRatio;
+    private int loadBatchSize = 1;
+
+    /**
+     * Defines server of specified node.
+     * @param selfNodeNumber - hosting node ID
+     * @param mode - listener mode
+     * @param workersCount - number of workers in poller mode
+     * @param dataDir - directory with persistent state of hosting node
+     * @param flushInterval - max time between applying operation and forcing it to disk in milliseconds
+     * @param snapshotInterval - interval between periodic snapshots in milliseconds, 0 = no periodic snapshots
+     * @param fullEvery - max number of delta snapshots between two full periodic snapshots, 0 = only full snapshots
+     */
+    public Server(int selfNodeNumber, String mode, int workersCount, Path dataDir, long flushInterval,
+                  long snapshotInterval, int fullEvery) {
+        this.selfNodeNumber = selfNodeNumber;
+        this.mode = mode;
+        this.workersCount = workersCount;
+        this.dataDir = dataDir;
+        this.flushInterval = flushInterval;
+        this.snapshotInterval = snapshotInterval;
+        this.fullEvery = fullEvery;
+    }
+
+    /**
+     * Replaces slow random bank request generator by open-loop load generator. Must be called before start.
+     * @param rate - target number of requests per second of all generators
+     * @param poisson - true = Poisson arrivals, false = constant interval between requests
+     * @param generators - number of concurrent generators
+     * @param creditRatio - share of CREDIT requests in range <0, 1>
+     * @param batchSize - number of requests sent in one batch, 1 = requests are sent one by one
+     */
+    public void setLoad(double rate, boolean poisson, int generators, double creditRatio, int batchSize) {
+        this.loadRate = rate;
+        this.loadPoisson = poisson;
+        this.loadGenerators = generators;
+        this.loadCreditRatio = creditRatio;
+        this.loadBatchSize = batchSize;
+    }
+
+    /**
+     * Lets all workers of poller mode handle bank requests of one channel, MARKERs wait for earlier messages
+     * of the channel. Must be called before start.
+     * @param parallel - true = bank requests of one channel are handled in parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Exports metrics over HTTP on given port. Must be called before start.
+     * @param port - HTTP port, 0 = metrics are exported only by JMX
+     */
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Applies changes of external topology file at runtime. File must be already loaded by
+     * {@link TopologyWatcher#load()}. Must be called before start.
+     * @param watcher - watcher of topology file
+     */
+    public void setTopologyWatcher(TopologyWatcher watcher) {
+        this.topologyWatcher = watcher;
+    }
+
     public static void main(String[] args) {
 
         // Determines self node number
@@ -30,14 +229,111 @@ public class Server {
         nodeNumber.setRequired(true);
         options.addOption(nodeNumber);
 
+        Option listenerMode = new Option("l", "listener", true, "Listener mode: thread (thread per port, default), poller (single poller for all ports) or virtual (poller, virtual thread per port, JDK 21+).");
+        options.addOption(listenerMode);
+
+        Option workers = new Option("w", "workers", true, "Number of threads handling received messages in poller mode (default 1).");
+        options.addOption(workers);
+
+        Option parallel = new Option("p", "parallel", false, "Handle bank requests of one channel by all workers in poller mode, markers wait for earlier requests.");
+        options.addOption(parallel);
+
+        Option dataDir = new Option("d", "data-dir", true, "Directory for persistent state, each node uses its own subdirectory (default data).");
+        options.addOption(dataDir);
+
+        Option flushInterval = new Option("f", "flush-interval", true, "Max time in ms between applying bank operation and forcing it to disk (default 10).");
+        options.addOption(flushInterval);
+
+        Option snapshotInterval = new Option("s", "snapshot-interval", true, "Interval in ms of snapshots initiated by this node (default 0 = none).");
+        options.addOption(snapshotInterval);
+
+        Option snapshotMode = new Option("m", "snapshot-mode", true, "Periodic snapshots mode: full (default) or delta (changes since previous snapshot, needs report node).");
+        options.addOption(snapshotMode);
+
+        Option fullEvery = new Option("F", "full-every", true, "Max number of delta snapshots between two full snapshots (default 10).");
+        options.addOption(fullEvery);
+
+        Option loadRate = new Option("r", "load-rate", true, "Generate bank requests at this rate per second for capacity testing (default 0 = slow random requests).");
+        options.addOption(loadRate);
+
+        Option loadArrivals = new Option("a", "load-arrivals", true, "Arrivals of generated requests: constant (default) or poisson.");
+        options.addOption(loadArrivals);
+
+        Option loadGenerators = new Option("g", "load-generators", true, "Number of concurrent load generators (default 1).");
+        options.addOption(loadGenerators);
+
+        Option creditRatio = new Option("c", "credit-ratio", true, "Share of CREDIT requests generated by load generators (default 0.5).");
+        options.addOption(creditRatio);
+
+        Option batchSize = new Option("b", "batch-size", true, "Number of generated requests sent to one node in single batch message (default 1 = no batches).");
+        options.addOption(batchSize);
+
+        Option metricsPort = new Option("M", "metrics-port", true, "Export metrics as text on http://host:port/metrics (default 0 = JMX only).");
+        options.addOption(metricsPort);
+
+        Option trace = new Option("t", "trace", false, "Log each message, can be switched at runtime by http://host:metrics-port/trace?on|off.");
+        options.addOption(trace);
+
+        Option topology = new Option("T", "topology", true, "External topology file which replaces nodes.yaml from classpath and is reloaded when it changes.");
+        options.addOption(topology);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
         int selfNodeNumber = 0;
+        String mode = "thread";
+        int workersCount = 1;
+        String dataDirName = "data";
+        long flushIntervalMs = 10;
+        long snapshotIntervalMs = 0;
+        String snapshotModeName = "full";
+        int fullEveryCount = 10;
+        double loadRateValue = 0;
+        String loadArrivalsName = "constant";
+        int loadGeneratorsCount = 1;
+        double creditRatioValue = 0.5;
+        int batchSizeValue = 1;
+        int metricsPortValue = 0;
+        boolean parallelHandling = false;
+        String topologyFileName = null;
 
         try {
             cmd = parser.parse(options, args);
             selfNodeNumber = Integer.parseInt(cmd.getOptionValue("node"));
+            mode = cmd.getOptionValue("listener", mode);
+            workersCount = Integer.parseInt(cmd.getOptionValue("workers", workersCount + ""));
+            dataDirName = cmd.getOptionValue("data-dir", dataDirName);
+            flushIntervalMs = Long.parseLong(cmd.getOptionValue("flush-interval", flushIntervalMs + ""));
+            snapshotIntervalMs = Long.parseLong(cmd.getOptionValue("snapshot-interval", snapshotIntervalMs + ""));
+            snapshotModeName = cmd.getOptionValue("snapshot-mode", snapshotModeName);
+            fullEveryCount = Integer.parseInt(cmd.getOptionValue("full-every", fullEveryCount + ""));
+            loadRateValue = Double.parseDouble(cmd.getOptionValue("load-rate", loadRateValue + ""));
+            loadArrivalsName = cmd.getOptionValue("load-arrivals", loadArrivalsName);
+            loadGeneratorsCount = Integer.parseInt(cmd.getOptionValue("load-generators", loadGeneratorsCount + ""));
+            creditRatioValue = Double.parseDouble(cmd.getOptionValue("credit-ratio", creditRatioValue + ""));
+            batchSizeValue = Integer.parseInt(cmd.getOptionValue("batch-size", batchSizeValue + ""));
+            metricsPortValue = Integer.parseInt(cmd.getOptionValue("metrics-port", metricsPortValue + ""));
+            if (cmd.hasOption("trace")) {
+                Tracing.setEnabled(true);
+            }
+            topologyFileName = cmd.getOptionValue("topology");
+            if (!"thread".equals(mode) && !"poller".equals(mode) && !"virtual".equals(mode)) {
+                throw new ParseException("Unknown listener mode " + mode);
+            }
+            parallelHandling = cmd.hasOption("parallel");
+            if (parallelHandling && (!"poller".equals(mode) || workersCount < 1)) {
+                throw new ParseException("Parallel handling needs poller mode with workers");
+            }
+            if (!"full".equals(snapshotModeName) && !"delta".equals(snapshotModeName)) {
+                throw new ParseException("Unknown snapshot mode " + snapshotModeName);
+            }
+            if (!"constant".equals(loadArrivalsName) && !"poisson".equals(loadArrivalsName)) {
+                throw new ParseException("Unknown arrivals " + loadArrivalsName);
+            }
+            if (loadGeneratorsCount < 1 || creditRatioValue < 0 || creditRatioValue > 1 || batchSizeValue < 1
+                    || batchSizeValue > Batch.MAX_SIZE) {
+                throw new ParseException("Invalid load settings");
+            }
             ThreadContext.put("nodeID", selfNodeNumber + "");
 
             logger.debug("Detected node configuration index: {}", selfNodeNumber);
@@ -46,34 +342,304 @@ public class Server {
             System.exit(-1);
         }
 
-        // Runs listener and sender instances
+        // Topology from external file
 
-        Node nodeInfo = Config.getNode(selfNodeNumber);
-        ExecutorService executor = Executors.newCachedThreadPool();
+        TopologyWatcher topologyWatcher = null;
+        if (topologyFileName != null) {
+            try {
+                topologyWatcher = new TopologyWatcher(Paths.get(topologyFileName), Config.TOPOLOGY_CHECK_INTERVAL);
+                topologyWatcher.load();
+            } catch (IOException e) {
+                logger.error("Cannot load topology.", e);
+                System.exit(-2);
+            }
+        }
+        if (!Config.isActive(selfNodeNumber)) {
+            logger.error("Node {} is not active in topology.", selfNodeNumber);
+            System.exit(-2);
+        }
+
+        // Runs listener and sender instances until JVM is asked to stop
+
+        Server server = new Server(selfNodeNumber, mode, workersCount,
+                Paths.get(dataDirName, "node-" + selfNodeNumber), flushIntervalMs,
+                snapshotIntervalMs, "delta".equals(snapshotModeName) ? fullEveryCount : 0);
+        if (loadRateValue > 0) {
+            server.setLoad(loadRateValue, "poisson".equals(loadArrivalsName), loadGeneratorsCount, creditRatioValue,
+                    batchSizeValue);
+        }
+        server.setMetricsPort(metricsPortValue);
+        server.setParallel(parallelHandling);
+        server.setTopologyWatcher(topologyWatcher);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ThreadContext.put("nodeID", server.selfNodeNumber + "");
+            server.stop();
+            LogManager.shutdown();
+        }, "shutdown"));
+
+        try {
+            server.start();
+            server.awaitStop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Cannot recover persistent state.", e);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Recovers state of accounts, starts listeners and sender and waits until all listening sockets are bound.
+     * @throws InterruptedException - if interrupted while waiting for readiness
+     * @throws IOException - if persistent state cannot be recovered
+     */
+    public void start() throws InterruptedException, IOException {
+        int[] ports = Config.listeningPorts(selfNodeNumber);
 
         logger.info("Starting servers");
 
+        // Recovery of accounts from the latest checkpoint and log tail, must finish before any operation is performed
+        Accounts accounts = Accounts.getInstance();
+        log = TransactionLog.open(dataDir, flushInterval);
+        CheckpointStore checkpoints = new CheckpointStore(selfNodeNumber, dataDir, log);
+        Checkpoint checkpoint = checkpoints.loadLatest();
+        long checkpointLsn = 0;
+        if (checkpoint != null) {
+            accounts.restore(checkpoint.getAccounts());
+            checkpointLsn = checkpoint.getLsn();
+        }
+        log.replay(checkpointLsn, (lsn, type, accountId, amount) -> accounts.restore(type, accountId, amount));
+        accounts.setLog(log);
+        log.start();
+        logger.info("Recovered balance: {}", accounts.getTotalBalance());
+
+        // Collector of local states of all nodes
+        if (selfNodeNumber == ConnectionRegistry.REPORT_NODE) {
+            aggregator = new GlobalStateAggregator(Config.nodesCount(), Config.expectedTotal(),
+                    Config.SNAPSHOT_TIMEOUT);
+            aggregator.setMembers(Config.activeNodes(), Config.expectedTotal());
+        }
+
+        snapshots = new SnapshotCoordinator(selfNodeNumber, checkpoints, aggregator);
+
+        // Outbound connections must exist before listeners start replying
+        sender = new Sender(selfNodeNumber, snapshots);
+
         // Listeners
-        ListenerManager lm = new ListenerManager(selfNodeNumber);
-        for (int port: nodeInfo.getPorts()) {
-            ListenerManager.Listener l = lm.createListener(port);
-            executor.execute(l);
+        lm = new ListenerManager(selfNodeNumber, snapshots);
+        if (aggregator != null) {
+            lm.registerHandler(MessageType.GLOBAL_STATE, aggregator);
+        }
+        if ("poller".equals(mode)) {
+            pollingListener = lm.createPollingListener(ports, workersCount, parallel);
+            executor.execute(pollingListener);
+        }
+        else if ("virtual".equals(mode)) {
+            pollingListener = lm.createVirtualListener(ports);
+            executor.execute(pollingListener);
+        }
+        else {
+            synchronized (listeners) {
+                for (int port: ports) {
+                    startListener(port);
+                }
+            }
+        }
+        lm.awaitReady();
+
+        // Changes of topology at runtime
+        topologyListener = this::topologyChanged;
+        Config.addListener(topologyListener);
+        if (topologyWatcher != null) {
+            topologyWatcher.start();
+        }
+
+        // Bank request generator
+        if (loadRate > 0) {
+            load = new LoadGenerator(sender, loadRate, loadPoisson, loadGenerators, loadCreditRatio, loadBatchSize);
+            executor.execute(load);
+        }
+        else {
+            executor.execute(sender);
+        }
+
+        // Metrics of components which keep their own counters
+        registerMetrics(snapshots);
+        metricsEndpoint = new MetricsEndpoint(selfNodeNumber, Metrics.getInstance());
+        metricsEndpoint.start(metricsPort);
+
+        logger.info("Server ready");
+
+        // Periodic snapshots
+        if (snapshotInterval > 0) {
+            if (fullEvery > 0 && aggregator == null) {
+                logger.warn("Delta snapshots need global states collected by this node, using full snapshots.");
+            }
+            scheduler = new SnapshotScheduler(snapshots, aggregator, snapshotInterval, fullEvery);
+            scheduler.start();
+        }
+    }
+
+    /**
+     * Starts listener of thread mode on given port. Must be called with lock of {@link #listeners}.
+     * @param port - listening port
+     */
+    private void startListener(int port) {
+        Listener l = lm.createListener(port);
+        listeners.put(port, l);
+        executor.execute(l);
+    }
+
+    /**
+     * Applies new topology to server components which do not follow it by themselves - snapshot channels,
+     * members of global states and listening ports. Server stops if hosting node left topology.
+     * @param previous - previous topology
+     * @param current - new topology
+     */
+    private void topologyChanged(Nodes previous, Nodes current) {
+        if (!Config.isActive(selfNodeNumber)) {
+            logger.info("Node left topology.");
+            new Thread(this::stop, "leave").start();
+            return;
+        }
+
+        snapshots.addChannels(Config.nodesCount());
+        boolean[] neighbour = new boolean[Config.nodesCount()];
+        for (int n: Config.activeNeighbours(selfNodeNumber)) {
+            neighbour[n] = true;
+        }
+        for (int i = 0; i < neighbour.length; i++) {
+            if (!neighbour[i]) {
+                snapshots.channelClosed(i); // no MARKER will come from node which left
+            }
+        }
+        if (aggregator != null) {
+            aggregator.setMembers(Config.activeNodes(), Config.expectedTotal());
+        }
+
+        int[] ports = Config.listeningPorts(selfNodeNumber);
+        if (pollingListener != null) {
+            pollingListener.setPorts(ports);
+            return;
         }
 
-        // Sender
-        Sender s = new Sender(selfNodeNumber);
-        executor.execute(s);
+        synchronized (listeners) {
+            Map<Integer, Listener> removed = new HashMap<>(listeners);
+            for (int port: ports) {
+                if (removed.remove(port) == null) {
+                    startListener(port);
+                }
+            }
+            for (Map.Entry<Integer, Listener> entry: removed.entrySet()) {
+                entry.getValue().close();
+                listeners.remove(entry.getKey());
+            }
+        }
+        logger.info("Listening on ports {}.", Arrays.toString(ports));
+    }
+
+    /**
+     * Registers gauges reading state of server components.
+     * @param snapshots - coordinator of snapshots
+     */
+    private void registerMetrics(SnapshotCoordinator snapshots) {
+        Metrics metrics = Metrics.getInstance();
+        Accounts accounts = Accounts.getInstance();
+
+        metrics.gauge("balance_total", accounts::getTotalBalance);
+        metrics.gauge("account_cas_retries_total", Account::getRetries);
+        metrics.gauge("snapshots_active", snapshots::activeCount);
+        metrics.gauge("wal_last_lsn", log::getLastLsn);
+        metrics.gauge("wal_pending_records", () -> log.getLastLsn() - log.getDurableLsn());
+        metrics.gauge("wal_flushes_total", log::getFlushes);
 
-        executor.shutdown();
+        PendingRequests requests = Sender.getRequests();
+        metrics.gauge("debit_requests_pending", requests::getPendingCount);
+        metrics.gauge("debit_requests_timed_out_total", requests::getTimedOutCount);
+        metrics.gauge("debit_replies_late_total", requests::getLateCount);
 
-        while (!executor.isTerminated()) {
-            // wait until all tasks finish
+        if (aggregator != null) {
+            metrics.gauge("global_states_collecting", aggregator::getCollectingCount);
+            metrics.gauge("global_states_completed_total", aggregator::getCompletedCount);
+            metrics.gauge("global_states_incomplete_total", aggregator::getIncompleteCount);
+            metrics.gauge("global_states_not_conserved_total", aggregator::getViolationsCount);
         }
+    }
 
-        // Closing opened sockets
-        s.closeConnections();
+    /**
+     * Gracefully stops server. Stops generating new bank requests, lets running snapshots finish, stops
+     * listeners after handling of in-flight messages and closes all sockets.
+     */
+    public synchronized void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
 
         logger.info("Stopping servers");
+
+        try {
+            if (topologyWatcher != null) {
+                topologyWatcher.close();
+            }
+            if (topologyListener != null) {
+                Config.removeListener(topologyListener);
+            }
+            if (scheduler != null) {
+                scheduler.close();
+            }
+            if (load != null) {
+                load.shutdown();
+            }
+            if (sender != null) {
+                sender.shutdown();
+            }
+            if (lm != null) {
+                if (!lm.awaitSnapshots(SNAPSHOT_DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.warn("Running snapshots not finished in time.");
+                }
+                lm.shutdown();
+            }
+
+            executor.shutdown();
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("Some workers not terminated in time.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Closing opened sockets
+            if (sender != null) {
+                sender.closeConnections();
+            }
+            if (lm != null) {
+                lm.close();
+            }
+            if (aggregator != null) {
+                aggregator.close();
+            }
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    logger.error("Cannot close transaction log.", e);
+                }
+            }
+
+            logger.info("Servers stopped");
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Blocks until server is stopped.
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
     }
 
 }
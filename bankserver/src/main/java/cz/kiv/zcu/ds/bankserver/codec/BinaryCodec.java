@@ -0,0 +1,311 @@
+package cz.kiv.zcu.ds.bankserver.codec;
+
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact fixed-layout binary wire format. Layout of version 1 (big endian):
+ * <pre>
+ * byte   magic (0xB5)
+ * byte   version
+ * byte   message type (code of {@link MessageType}, -1 = unknown)
+ * int    from
+ * int    numData
+ * int    accountId
+ * long   requestId
+ * long   timestamp
+ * long   sequence
+ * long   snapshotId
+ * long   baseSnapshotId
+ * int    length of strData in bytes (-1 = null)
+ * byte[] strData in UTF-8
+ * byte   local state: 0 = none, 1 = full report followed by:
+ *        long snapshotId, int nodeId, long balance, long creditsInFlight, long debitsInFlight,
+ *        int recordedMessages, long recordingTime, long baseSnapshotId
+ *        2 = delta report followed by zigzag varints:
+ *        snapshotId - message snapshotId, nodeId, snapshotId - baseSnapshotId, balance, creditsInFlight,
+ *        debitsInFlight, recordedMessages, recordingTime
+ * int    number of batch entries (-1 = no batch), followed by entries:
+ *        byte type, int accountId, int amount
+ * </pre>
+ * Messages of other versions are rejected.
+ * <p>
+ * Delta report is sent frequently and its fields are mostly small or zero (change of balance, channels recorded
+ * for short time), so each of them takes from 1 to 10 bytes instead of fixed 4 or 8 bytes.
+ */
+public class BinaryCodec implements MessageCodec {
+
+    /**
+     * First byte of every binary message. Cannot collide with JSON, which always starts with '{' or whitespace.
+     */
+    public static final byte MAGIC = (byte) 0xB5;
+
+    /**
+     * Current version of binary layout.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Size of fixed part of the message.
+     */
+    static final int HEADER_SIZE = 3 + 5 * Integer.BYTES + 5 * Long.BYTES + 1;
+
+    /**
+     * Size of full local state.
+     */
+    static final int STATE_SIZE = 2 * Integer.BYTES + 6 * Long.BYTES;
+
+    /**
+     * Size of one batch entry.
+     */
+    static final int ENTRY_SIZE = 1 + 2 * Integer.BYTES;
+
+    /**
+     * Maximum size of zigzag varint encoding of long.
+     */
+    private static final int MAX_VARINT_SIZE = 10;
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer buffer) {
+        String strData = message.getStrData();
+        byte[] str = strData == null ? null : strData.getBytes(ZMQ.CHARSET);
+        LocalState state = message.getState();
+        Batch batch = message.getBatch();
+        int size = HEADER_SIZE + (str == null ? 0 : str.length) + stateSize(message)
+                + (batch == null ? 0 : batch.size() * ENTRY_SIZE);
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        MessageType type = message.getType();
+
+        buffer.clear();
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type == null ? -1 : type.getCode());
+        buffer.putInt(message.getFrom());
+        buffer.putInt(message.getNumData());
+        buffer.putInt(message.getAccountId());
+        buffer.putLong(message.getRequestId());
+        buffer.putLong(message.getTimestamp());
+        buffer.putLong(message.getSequence());
+        buffer.putLong(message.getSnapshotId());
+        buffer.putLong(message.getBaseSnapshotId());
+        if (str == null) {
+            buffer.putInt(-1);
+        }
+        else {
+            buffer.putInt(str.length);
+            buffer.put(str);
+        }
+        if (state == null) {
+            buffer.put((byte) 0);
+        }
+        else if (state.isDelta()) {
+            buffer.put((byte) 2);
+            putVarLong(buffer, state.getSnapshotId() - message.getSnapshotId());
+            putVarLong(buffer, state.getNodeId());
+            putVarLong(buffer, state.getSnapshotId() - state.getBaseSnapshotId());
+            putVarLong(buffer, state.getBalance());
+            putVarLong(buffer, state.getCreditsInFlight());
+            putVarLong(buffer, state.getDebitsInFlight());
+            putVarLong(buffer, state.getRecordedMessages());
+            putVarLong(buffer, state.getRecordingTime());
+        }
+        else {
+            buffer.put((byte) 1);
+            buffer.putLong(state.getSnapshotId());
+            buffer.putInt(state.getNodeId());
+            buffer.putLong(state.getBalance());
+            buffer.putLong(state.getCreditsInFlight());
+            buffer.putLong(state.getDebitsInFlight());
+            buffer.putInt(state.getRecordedMessages());
+            buffer.putLong(state.getRecordingTime());
+            buffer.putLong(state.getBaseSnapshotId());
+        }
+        if (batch == null) {
+            buffer.putInt(-1);
+        }
+        else {
+            buffer.putInt(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                MessageType entryType = batch.getType(i);
+                buffer.put(entryType == null ? -1 : entryType.getCode());
+                buffer.putInt(batch.getAccountId(i));
+                buffer.putInt(batch.getAmount(i));
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * {@inheritDoc} Truncated message results in {@link java.nio.BufferUnderflowException}.
+     */
+    @Override
+    public Message decode(byte[] data, int offset, int length) {
+        Message message = new Message();
+        decode(ByteBuffer.wrap(data, offset, length), message);
+
+        return message;
+    }
+
+    /**
+     * {@inheritDoc} Truncated message results in {@link java.nio.BufferUnderflowException}. Lengths are checked
+     * against size of the message before anything is allocated.
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Message message) {
+        if (buffer.remaining() < 2 || buffer.get() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary message.");
+        }
+
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary message version " + version + ".");
+        }
+
+        message.setType(MessageType.fromCode(buffer.get()));
+
+        message.setFrom(buffer.getInt());
+        message.setNumData(buffer.getInt());
+        message.setAccountId(buffer.getInt());
+        message.setRequestId(buffer.getLong());
+        message.setTimestamp(buffer.getLong());
+        message.setSequence(buffer.getLong());
+        message.setSnapshotId(buffer.getLong());
+        message.setBaseSnapshotId(buffer.getLong());
+
+        int strLength = buffer.getInt();
+        if (strLength < -1 || strLength > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length of string " + strLength + ".");
+        }
+        if (strLength >= 0) {
+            byte[] str = new byte[strLength];
+            buffer.get(str);
+            message.setStrData(new String(str, ZMQ.CHARSET));
+        }
+        else {
+            message.setStrData(null);
+        }
+
+        byte stateFlag = buffer.get();
+        if (stateFlag == 2) {
+            LocalState state = new LocalState();
+            state.setSnapshotId(message.getSnapshotId() + getVarLong(buffer));
+            state.setNodeId((int) getVarLong(buffer));
+            state.setBaseSnapshotId(state.getSnapshotId() - getVarLong(buffer));
+            state.setBalance(getVarLong(buffer));
+            state.setCreditsInFlight(getVarLong(buffer));
+            state.setDebitsInFlight(getVarLong(buffer));
+            state.setRecordedMessages((int) getVarLong(buffer));
+            state.setRecordingTime(getVarLong(buffer));
+            message.setState(state);
+        }
+        else if (stateFlag == 1) {
+            LocalState state = new LocalState();
+            state.setSnapshotId(buffer.getLong());
+            state.setNodeId(buffer.getInt());
+            state.setBalance(buffer.getLong());
+            state.setCreditsInFlight(buffer.getLong());
+            state.setDebitsInFlight(buffer.getLong());
+            state.setRecordedMessages(buffer.getInt());
+            state.setRecordingTime(buffer.getLong());
+            state.setBaseSnapshotId(buffer.getLong());
+            message.setState(state);
+        }
+        else {
+            message.setState(null);
+        }
+
+        int entries = buffer.getInt();
+        if (entries < -1 || entries > Batch.MAX_SIZE || entries * ENTRY_SIZE > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid number of batch entries " + entries + ".");
+        }
+        if (entries >= 0) {
+            Batch batch = new Batch(entries);
+            for (int i = 0; i < entries; i++) {
+                batch.add(MessageType.fromCode(buffer.get()), buffer.getInt(), buffer.getInt());
+            }
+            message.setBatch(batch);
+        }
+        else {
+            message.setBatch(null);
+        }
+    }
+
+    /**
+     * @param message - encoded message
+     * @return - size of local state of the message, excluding its flag
+     */
+    private static int stateSize(Message message) {
+        LocalState state = message.getState();
+        if (state == null) {
+            return 0;
+        }
+        if (!state.isDelta()) {
+            return STATE_SIZE;
+        }
+
+        return varLongSize(state.getSnapshotId() - message.getSnapshotId()) + varLongSize(state.getNodeId())
+                + varLongSize(state.getSnapshotId() - state.getBaseSnapshotId()) + varLongSize(state.getBalance())
+                + varLongSize(state.getCreditsInFlight()) + varLongSize(state.getDebitsInFlight())
+                + varLongSize(state.getRecordedMessages()) + varLongSize(state.getRecordingTime());
+    }
+
+    /**
+     * @param value - encoded value
+     * @return - number of bytes of zigzag varint encoding of the value
+     */
+    static int varLongSize(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((zigzag & ~0x7FL) != 0) {
+            zigzag >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes value as zigzag varint, 7 bits per byte starting with the lowest ones, highest bit set if more
+     * bytes follow. Zigzag keeps small negative values short.
+     * @param buffer - target buffer
+     * @param value - written value
+     */
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    /**
+     * Reads value written by {@link #putVarLong(ByteBuffer, long)}.
+     * @param buffer - source buffer
+     * @return - read value
+     */
+    private static long getVarLong(ByteBuffer buffer) {
+        long zigzag = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+
+        throw new IllegalArgumentException("Varint longer than " + MAX_VARINT_SIZE + " bytes.");
+    }
+
+}
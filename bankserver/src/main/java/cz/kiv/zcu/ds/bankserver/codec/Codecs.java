@@ -0,0 +1,84 @@
+package cz.kiv.zcu.ds.bankserver.codec;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides available wire formats and detects format of received messages.
+ */
+public class Codecs {
+
+    public static final MessageCodec BINARY = new BinaryCodec();
+    public static final MessageCodec JSON = new JsonCodec();
+
+    /**
+     * Initial size of per-thread encoding buffer.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * Reusable encoding buffer of each sending thread.
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    /**
+     * Resolves codec by its configuration name.
+     * @param name - "binary" or "json", null means json
+     * @return - codec
+     */
+    public static MessageCodec forName(String name) {
+        if (name == null || "json".equalsIgnoreCase(name)) {
+            return JSON;
+        }
+        if ("binary".equalsIgnoreCase(name)) {
+            return BINARY;
+        }
+
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    /**
+     * Encodes message into buffer owned by calling thread. Returned buffer is valid until next call from
+     * the same thread.
+     * @param codec - wire format
+     * @param message - message to encode
+     * @return - buffer with encoded message
+     */
+    public static ByteBuffer encode(MessageCodec codec, Message message) {
+        ByteBuffer buffer = codec.encode(message, buffers.get());
+        buffers.set(buffer);
+
+        return buffer;
+    }
+
+    /**
+     * Decodes received frame, format is detected from its first byte.
+     * @param data - received frame
+     * @return - decoded message
+     */
+    public static Message decode(byte[] data) {
+        if (data.length > 0 && data[0] == BinaryCodec.MAGIC) {
+            return BINARY.decode(data, 0, data.length);
+        }
+
+        return JSON.decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes received frame into existing message, format is detected from its first byte. Binary messages
+     * are decoded in place without allocation (except of text, local state and batch entries, which single bank requests
+     * do not have).
+     * @param buffer - received frame
+     * @param message - reused message
+     */
+    public static void decode(ByteBuffer buffer, Message message) {
+        if (buffer.hasRemaining() && buffer.get(buffer.position()) == BinaryCodec.MAGIC) {
+            BINARY.decode(buffer, message);
+        }
+        else {
+            JSON.decode(buffer, message);
+        }
+    }
+
+}
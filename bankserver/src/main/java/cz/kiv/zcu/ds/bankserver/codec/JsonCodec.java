@@ -0,0 +1,38 @@
+package cz.kiv.zcu.ds.bankserver.codec;
+
+import com.google.gson.Gson;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JSON wire format. Kept for compatibility with external clients (e.g. send_marker.py). Message type is
+ * written by its name, unknown name is decoded as null type. This is the only place where types are parsed
+ * from strings.
+ */
+public class JsonCodec implements MessageCodec {
+
+    private static final Gson gson = new Gson();
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer buffer) {
+        byte[] json = gson.toJson(message).getBytes(ZMQ.CHARSET);
+
+        if (buffer.capacity() < json.length) {
+            buffer = ByteBuffer.allocate(json.length);
+        }
+
+        buffer.clear();
+        buffer.put(json);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    public Message decode(byte[] data, int offset, int length) {
+        return gson.fromJson(new String(data, offset, length, ZMQ.CHARSET), Message.class);
+    }
+
+}
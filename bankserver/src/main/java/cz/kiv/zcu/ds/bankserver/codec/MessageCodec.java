@@ -0,0 +1,42 @@
+package cz.kiv.zcu.ds.bankserver.codec;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of custom ZeroMQ messages.
+ */
+public interface MessageCodec {
+
+    /**
+     * Encodes message into given buffer. Buffer is cleared before writing and flipped after, so it is ready
+     * to be sent. When buffer is too small, a bigger one is allocated and returned instead.
+     * @param message - message to encode
+     * @param buffer - reusable target buffer
+     * @return - buffer with encoded message
+     */
+    ByteBuffer encode(Message message, ByteBuffer buffer);
+
+    /**
+     * Decodes message from given bytes.
+     * @param data - received frame
+     * @param offset - start of encoded message
+     * @param length - length of encoded message
+     * @return - decoded message
+     */
+    Message decode(byte[] data, int offset, int length);
+
+    /**
+     * Decodes message from remaining bytes of given buffer into existing message, all its fields are overwritten.
+     * Local state is always decoded into new instance, because it is kept after message is handled.
+     * @param buffer - received frame, its position is moved to the end of encoded message
+     * @param message - reused message
+     */
+    default void decode(ByteBuffer buffer, Message message) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        message.copyFrom(decode(data, 0, data.length));
+    }
+
+}
@@ -2,15 +2,28 @@ package cz.kiv.zcu.ds.bankserver.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
 import cz.kiv.zcu.ds.bankserver.domain.Node;
 import cz.kiv.zcu.ds.bankserver.domain.Nodes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Loads YAML configuration of network topology.
+ * Loads YAML configuration of network topology. Default topology is {@code nodes.yaml} from classpath, it can be
+ * replaced by external file, which is watched and reloaded at runtime by {@link TopologyWatcher}. Nodes join
+ * by being appended to the list and leave by {@code active: false}, IDs of other nodes never change.
+ * <p>
+ * Topology is immutable and replaced as a whole, so readers see either old or new one. Components which keep
+ * state derived from topology (connections, listening ports) are notified by {@link TopologyListener}.
  */
 public class Config {
 
@@ -22,26 +35,301 @@ public class Config {
     public static final int MIN_AMOUNT = 10000;
     public static final int MAX_AMOUNT = 50000;
 
+    // Opening balance of default account of each node
+    public static final long INITIAL_BALANCE = 5000000;
+
+    // Number of accounts of each node, accounts with IDs 0 .. ACCOUNTS_COUNT - 1 are opened on first use
+    public static final int ACCOUNTS_COUNT = 16;
+
+    // Max time in ms for collecting local states of one snapshot
+    public static final long SNAPSHOT_TIMEOUT = 30000;
+
+    // Max time in ms for reply to bank request
+    public static final long REQUEST_TIMEOUT = 10000;
+
+    // Interval in ms of checks of external topology file
+    public static final long TOPOLOGY_CHECK_INTERVAL = 1000;
+
+    // Node which collects results of CL algorithm
+    public static final int REPORT_NODE = 0;
+
+    // Transports of channels
+    public static final String TRANSPORT_PAIR = "pair";
+    public static final String TRANSPORT_ROUTER = "router";
+
     // Nodes configuration
-    private static Nodes nodes;
+    private static volatile Nodes nodes;
+
+    // Ports of nodes configuration
+    private static volatile PortAllocator ports;
+
+    private static final List<TopologyListener> listeners = new CopyOnWriteArrayList<>();
 
     // Configuration loader
     static {
-        try {
-            ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-            nodes = mapper.readValue(Config.class.getClassLoader().getResourceAsStream("nodes.yaml"), Nodes.class);
-        } catch (IOException e) {
+        try (InputStream in = Config.class.getClassLoader().getResourceAsStream("nodes.yaml")) {
+            if (in == null) {
+                nodes = new Nodes();
+                nodes.setNodes(new ArrayList<>());
+            }
+            else {
+                nodes = parse(in);
+            }
+            ports = createAllocator(nodes);
+        } catch (IOException | RuntimeException e) {
             logger.error("Cannot loads nodes configuration.");
             System.exit(-2);
         }
     }
 
+    /**
+     * Loads topology from external file and notifies listeners. Invalid file does not change current topology,
+     * neither does change of transport once components are running.
+     * @param file - YAML topology file
+     * @throws IOException - if file cannot be read or topology is invalid
+     */
+    public static void load(Path file) throws IOException {
+        Nodes loaded;
+        PortAllocator allocator;
+        try (InputStream in = Files.newInputStream(file)) {
+            loaded = parse(in);
+            allocator = createAllocator(loaded);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid topology " + file + ": " + e.getMessage(), e);
+        }
+
+        Nodes previous;
+        synchronized (Config.class) {
+            // sockets of running components cannot change their type
+            if (!listeners.isEmpty() && !transport(loaded).equals(transport(nodes))) {
+                throw new IOException("Invalid topology " + file + ": transport cannot be changed at runtime.");
+            }
+            previous = nodes;
+            nodes = loaded;
+            ports = allocator;
+        }
+        logger.info("Topology loaded from {}: {} active of {} nodes.", file, activeNodes().length, nodesCount());
+
+        for (TopologyListener listener: listeners) {
+            try {
+                listener.topologyChanged(previous, loaded);
+            } catch (RuntimeException e) {
+                logger.error("Cannot apply new topology.", e);
+            }
+        }
+    }
+
+    /**
+     * Registers listener of topology changes.
+     * @param listener - listener
+     */
+    public static void addListener(TopologyListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(TopologyListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param idx - node ID
+     * @return - node configuration, null if node is not in topology
+     */
     public static Node getNode(int idx) {
-        return nodes.getNodes().get(idx);
+        List<Node> list = nodes.getNodes();
+        return idx < 0 || idx >= list.size() ? null : list.get(idx);
     }
 
+    /**
+     * @return - number of node IDs in topology, including nodes which left
+     */
     public static int nodesCount() {
         return nodes.getNodes().size();
     }
 
+    /**
+     * @param idx - node ID
+     * @return - true if node is in topology and did not leave
+     */
+    public static boolean isActive(int idx) {
+        Node node = getNode(idx);
+        return node != null && node.isActive();
+    }
+
+    /**
+     * @return - IDs of nodes which did not leave
+     */
+    public static int[] activeNodes() {
+        List<Node> list = nodes.getNodes();
+        int[] result = new int[list.size()];
+        int count = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).isActive()) {
+                result[count++] = i;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @param idx - node ID
+     * @return - neighbours of node which did not leave, empty if node is not in topology
+     */
+    public static int[] activeNeighbours(int idx) {
+        Node node = getNode(idx);
+        if (node == null) {
+            return new int[0];
+        }
+
+        return Arrays.stream(node.getNeighbours()).filter(Config::isActive).toArray();
+    }
+
+    /**
+     * @return - amount of money in the system, which must be conserved by all bank operations
+     */
+    public static long expectedTotal() {
+        return activeNodes().length * INITIAL_BALANCE;
+    }
+
+    /**
+     * @return - true if all channels of node share single ROUTER socket
+     */
+    public static boolean isRouterTransport() {
+        return TRANSPORT_ROUTER.equals(transport(nodes));
+    }
+
+    /**
+     * @param idx - node ID
+     * @return - port of ROUTER socket of node, 0 if channels use PAIR transport
+     */
+    public static int routerPort(int idx) {
+        return isRouterTransport() ? ports.nodePort(idx) : 0;
+    }
+
+    /**
+     * @return - port allocation of current topology
+     */
+    public static PortAllocator ports() {
+        return ports;
+    }
+
+    /**
+     * Returns listening ports of node - ports from configuration, or ports assigned by port allocation to
+     * channels from all active nodes which have the node as neighbour, to reports (collector only) and to clients.
+     * With ROUTER transport node listens only on its node port and client port.
+     * @param idx - node ID
+     * @return - listening ports
+     */
+    public static int[] listeningPorts(int idx) {
+        Nodes current = nodes;
+        PortAllocator allocator = ports;
+        Node self = getNode(idx);
+        if (self == null) {
+            return new int[0];
+        }
+        if (TRANSPORT_ROUTER.equals(transport(current))) {
+            int client = allocator.clientPort(idx);
+            return client > 0 ? new int[] {allocator.nodePort(idx), client} : new int[] {allocator.nodePort(idx)};
+        }
+        if (self.getPorts() != null) {
+            return self.getPorts();
+        }
+
+        List<Integer> result = new ArrayList<>();
+        List<Node> list = current.getNodes();
+        for (int i = 0; i < list.size(); i++) {
+            Node node = list.get(i);
+            if (i != idx && node.isActive() && contains(node.getNeighbours(), idx)) {
+                result.add(allocator.channelPort(idx, i));
+            }
+        }
+        if (idx == REPORT_NODE) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i).isActive()) {
+                    result.add(allocator.reportPort(i));
+                }
+            }
+        }
+        if (allocator.clientPort(idx) > 0) {
+            result.add(allocator.clientPort(idx));
+        }
+
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Parses and validates topology.
+     * @param in - YAML topology
+     * @return - topology
+     * @throws IOException - if topology cannot be parsed
+     */
+    private static Nodes parse(InputStream in) throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        Nodes loaded = mapper.readValue(in, Nodes.class);
+
+        if (loaded.getNodes() == null || loaded.getNodes().isEmpty()) {
+            throw new IllegalArgumentException("No nodes.");
+        }
+        String transport = transport(loaded);
+        if (!TRANSPORT_PAIR.equals(transport) && !TRANSPORT_ROUTER.equals(transport)) {
+            throw new IllegalArgumentException("Unknown transport " + transport + ".");
+        }
+        for (int i = 0; i < loaded.getNodes().size(); i++) {
+            Node node = loaded.getNodes().get(i);
+            if (node.getIp() == null) {
+                throw new IllegalArgumentException("Node " + i + " has no IP address.");
+            }
+            if (node.getPorts() != null && TRANSPORT_ROUTER.equals(transport)) {
+                throw new IllegalArgumentException("Node " + i + " has ports, router transport uses port allocation.");
+            }
+            if (node.getNeighbours() == null) {
+                node.setNeighbours(new int[0]);
+            }
+            for (int neighbour: node.getNeighbours()) {
+                if (neighbour < 0 || neighbour >= loaded.getNodes().size() || neighbour == i) {
+                    throw new IllegalArgumentException("Node " + i + " has invalid neighbour " + neighbour + ".");
+                }
+            }
+            Codecs.forName(node.getCodec());
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Creates port allocation selected by topology.
+     * @param nodes - topology
+     * @return - port allocation
+     */
+    private static PortAllocator createAllocator(Nodes nodes) {
+        String name = nodes.getPortAllocation();
+        if (name == null || "offset".equals(name)) {
+            return new OffsetPortAllocator(nodes);
+        }
+        if ("per-node".equals(name)) {
+            return new PerNodePortAllocator(nodes);
+        }
+
+        try {
+            return (PortAllocator) Class.forName(name).getConstructor(Nodes.class).newInstance(nodes);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown port allocation " + name + ".", e);
+        }
+    }
+
+    private static String transport(Nodes nodes) {
+        return nodes.getTransport() == null ? TRANSPORT_PAIR : nodes.getTransport();
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v: values) {
+            if (v == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
 }
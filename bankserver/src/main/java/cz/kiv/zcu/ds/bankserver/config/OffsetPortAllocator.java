@@ -0,0 +1,43 @@
+package cz.kiv.zcu.ds.bankserver.config;
+
+import cz.kiv.zcu.ds.bankserver.domain.Nodes;
+
+/**
+ * Original allocation - node listens for sender on {@code basePort + sender ID} and collector listens for reports
+ * on {@code reportBasePort + sender ID}. Ports do not depend on receiver, so two nodes on the same host
+ * collide as soon as they have a common neighbour. Only collector of reports listens for clients.
+ */
+public class OffsetPortAllocator implements PortAllocator {
+
+    private final int basePort;
+
+    private final int reportBasePort;
+
+    private final int clientPort;
+
+    /**
+     * Creates allocation from settings of topology file, defaults are 5000, 5550 and 5555.
+     * @param nodes - topology
+     */
+    public OffsetPortAllocator(Nodes nodes) {
+        this.basePort = nodes.getBasePort() == null ? 5000 : nodes.getBasePort();
+        this.reportBasePort = nodes.getReportBasePort() == null ? 5550 : nodes.getReportBasePort();
+        this.clientPort = nodes.getClientPort() == null ? 5555 : nodes.getClientPort();
+    }
+
+    @Override
+    public int channelPort(int target, int sender) {
+        return basePort + sender;
+    }
+
+    @Override
+    public int reportPort(int sender) {
+        return reportBasePort + sender;
+    }
+
+    @Override
+    public int clientPort(int node) {
+        return node == Config.REPORT_NODE ? clientPort : 0;
+    }
+
+}
@@ -0,0 +1,51 @@
+package cz.kiv.zcu.ds.bankserver.config;
+
+import cz.kiv.zcu.ds.bankserver.domain.Nodes;
+
+/**
+ * Each node has its own range of {@code maxNodes} ports, node listens for sender on
+ * {@code basePort + node ID * maxNodes + sender ID}. Ports of all nodes differ, so any number of nodes can run
+ * on one host. Reports use {@code reportBasePort + sender ID}, every node listens for clients on
+ * {@code clientPort + node ID}.
+ */
+public class PerNodePortAllocator implements PortAllocator {
+
+    private final int basePort;
+
+    private final int maxNodes;
+
+    private final int reportBasePort;
+
+    private final int clientPort;
+
+    /**
+     * Creates allocation from settings of topology file, defaults are 10000, 100 nodes, 9000 and 9500.
+     * @param nodes - topology
+     */
+    public PerNodePortAllocator(Nodes nodes) {
+        this.basePort = nodes.getBasePort() == null ? 10000 : nodes.getBasePort();
+        this.maxNodes = nodes.getMaxNodes() == null ? 100 : nodes.getMaxNodes();
+        this.reportBasePort = nodes.getReportBasePort() == null ? 9000 : nodes.getReportBasePort();
+        this.clientPort = nodes.getClientPort() == null ? 9500 : nodes.getClientPort();
+
+        if (nodes.getNodes() != null && nodes.getNodes().size() > maxNodes) {
+            throw new IllegalArgumentException("Topology has more than " + maxNodes + " nodes.");
+        }
+    }
+
+    @Override
+    public int channelPort(int target, int sender) {
+        return basePort + target * maxNodes + sender;
+    }
+
+    @Override
+    public int reportPort(int sender) {
+        return reportBasePort + sender;
+    }
+
+    @Override
+    public int clientPort(int node) {
+        return clientPort + node;
+    }
+
+}
@@ -0,0 +1,39 @@
+package cz.kiv.zcu.ds.bankserver.config;
+
+/**
+ * Assigns ports of channels. With PAIR transport each inbound channel has its own listening port, so receiver
+ * knows the sender from the port. With ROUTER transport all channels of node share its node port. Allocation
+ * is selected by {@code portAllocation} of topology file.
+ */
+public interface PortAllocator {
+
+    /**
+     * @param target - receiving node ID
+     * @param sender - sending node ID
+     * @return - port on which target listens for messages of sender
+     */
+    int channelPort(int target, int sender);
+
+    /**
+     * @param sender - reporting node ID
+     * @return - port on which collector of CL algorithm results listens for reports of sender
+     */
+    int reportPort(int sender);
+
+    /**
+     * @param node - node ID
+     * @return - port on which node listens for external clients, 0 = node does not listen for clients
+     */
+    int clientPort(int node);
+
+    /**
+     * Port of ROUTER socket receiving all channels of node. Defaults to port of channel from node to itself,
+     * which is never used by PAIR transport.
+     * @param node - node ID
+     * @return - port on which node listens for all nodes in ROUTER transport
+     */
+    default int nodePort(int node) {
+        return channelPort(node, node);
+    }
+
+}
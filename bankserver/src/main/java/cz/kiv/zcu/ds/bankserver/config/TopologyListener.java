@@ -0,0 +1,18 @@
+package cz.kiv.zcu.ds.bankserver.config;
+
+import cz.kiv.zcu.ds.bankserver.domain.Nodes;
+
+/**
+ * Reacts to reloaded topology, e.g. by opening connections to joined nodes.
+ */
+@FunctionalInterface
+public interface TopologyListener {
+
+    /**
+     * Called after new topology is published by {@link Config}, new topology is already visible.
+     * @param previous - previous topology
+     * @param current - new topology
+     */
+    void topologyChanged(Nodes previous, Nodes current);
+
+}
@@ -0,0 +1,105 @@
+package cz.kiv.zcu.ds.bankserver.config;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads external topology file when it changes. File stands in for registry of nodes - operator (or
+ * deployment tool) edits it and all nodes pick up the change within check interval. File is checked by
+ * modification time and size, so it works also on file systems without change notifications.
+ */
+public class TopologyWatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(TopologyWatcher.class);
+
+    private final Path file;
+
+    private final long interval;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Modification time and size of the last loaded version of file
+     */
+    private long lastModified;
+    private long lastSize;
+
+    /**
+     * Defines watcher of topology file.
+     * @param file - YAML topology file
+     * @param interval - interval of checks in milliseconds
+     */
+    public TopologyWatcher(Path file, long interval) {
+        this.file = file;
+        this.interval = interval;
+
+        final String nodeID = ThreadContext.get("nodeID");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(() -> {
+                ThreadContext.put("nodeID", nodeID);
+                r.run();
+            }, "topology-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Loads file by {@link Config#load(Path)}. Version of file is recorded before reading, so change made
+     * meanwhile is picked up by the next check.
+     * @throws IOException - if file cannot be read or topology is invalid
+     */
+    public void load() throws IOException {
+        lastModified = Files.getLastModifiedTime(file).toMillis();
+        lastSize = Files.size(file);
+
+        Config.load(file);
+    }
+
+    /**
+     * Starts periodic checks of file.
+     */
+    public void start() {
+        timer.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("Watching topology file {}.", file);
+    }
+
+    /**
+     * Stops checks.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Reloads file if it changed since the last load.
+     */
+    private void check() {
+        long modified;
+        long size;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+            size = Files.size(file);
+        } catch (IOException e) {
+            logger.warn("Cannot read topology file {}.", file);
+            return;
+        }
+        if (modified == lastModified && size == lastSize) {
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            logger.error("Cannot reload topology, keeping previous one: {}", e.getMessage());
+        }
+    }
+
+}
@@ -1,39 +1,151 @@
 package cz.kiv.zcu.ds.bankserver.domain;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
- * Singleton bank account. Provides thread safe methods for changing account's balance.
+ * Bank account with its ledger. Provides lock-free thread safe methods for changing account's balance. Every
+ * successful change is reported to owning {@link Accounts}, which keeps total balance and transaction log.
  */
 public class Account {
 
-    private volatile int balance;
+    /**
+     * Number of failed compare-and-set attempts of all accounts, i.e. contention of concurrent updates
+     */
+    private static final LongAdder retries = new LongAdder();
+
+    /**
+     * Accounts of hosting node
+     */
+    private final Accounts owner;
+
+    /**
+     * Account ID
+     */
+    private final int id;
+
+    /**
+     * Current balance
+     */
+    private final AtomicLong balance;
 
-    private static Account instance;
+    /**
+     * Ledger - total credited and debited money and number of performed operations.
+     */
+    private final LongAdder credited = new LongAdder();
+    private final LongAdder debited = new LongAdder();
+    private final LongAdder credits = new LongAdder();
+    private final LongAdder debits = new LongAdder();
 
-    private Account() {
-        balance = 5000000;
+    /**
+     * Opens account.
+     * @param owner - accounts of hosting node
+     * @param id - account ID
+     * @param initialBalance - opening balance
+     */
+    Account(Accounts owner, int id, long initialBalance) {
+        this.owner = owner;
+        this.id = id;
+        this.balance = new AtomicLong(initialBalance);
     }
 
-    public static Account getInstance() {
-        if (instance == null) {
-            instance = new Account();
+    /**
+     * Adds money to account.
+     * @param amount - amount of money
+     * @throws ArithmeticException - if balance overflows
+     */
+    public void credit(long amount) {
+        long current = balance.get();
+        while (!balance.compareAndSet(current, Math.addExact(current, amount))) {
+            retries.increment();
+            current = balance.get();
         }
 
-        return instance;
-    }
+        credited.add(amount);
+        credits.increment();
 
-    public synchronized void credit(long amount) {
-        this.balance += amount;
+        owner.applied(MessageType.CREDIT, id, amount);
     }
 
-    public synchronized boolean debit(long amount) {
-        if (this.balance - amount < 0) return false;
+    /**
+     * Atomically checks balance and withdraws money from account.
+     * @param amount - amount of money
+     * @return - false if balance is too low
+     */
+    public boolean debit(long amount) {
+        long current = balance.get();
+        while (true) {
+            if (current - amount < 0) return false;
+            if (balance.compareAndSet(current, current - amount)) break;
+            retries.increment();
+            current = balance.get();
+        }
+
+        debited.add(amount);
+        debits.increment();
 
-        this.balance -= amount;
+        owner.applied(MessageType.DEBIT, id, amount);
         return true;
     }
 
-    public int getBalance() {
-        return balance;
+    /**
+     * Applies operation replayed from transaction log. Balance is not checked and operation is not logged again,
+     * replayed operations may be ordered differently than they were applied.
+     * @param type - operation CREDIT or DEBIT
+     * @param amount - amount of money
+     */
+    void restore(MessageType type, long amount) {
+        if (type == MessageType.CREDIT) {
+            balance.addAndGet(amount);
+            credited.add(amount);
+            credits.increment();
+            owner.restored(amount);
+        }
+        else if (type == MessageType.DEBIT) {
+            balance.addAndGet(-amount);
+            debited.add(amount);
+            debits.increment();
+            owner.restored(-amount);
+        }
+    }
+
+    /**
+     * Sets balance recovered from checkpoint.
+     * @param balance - recovered balance
+     */
+    void restoreBalance(long balance) {
+        owner.restored(balance - this.balance.getAndSet(balance));
+    }
+
+    /**
+     * @return - number of failed compare-and-set attempts of all accounts
+     */
+    public static long getRetries() {
+        return retries.sum();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getBalance() {
+        return balance.get();
+    }
+
+    public long getCredited() {
+        return credited.sum();
+    }
+
+    public long getDebited() {
+        return debited.sum();
+    }
+
+    public long getCreditsCount() {
+        return credits.sum();
+    }
+
+    public long getDebitsCount() {
+        return debits.sum();
     }
 
 }
@@ -0,0 +1,224 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import cz.kiv.zcu.ds.bankserver.config.Config;
+import cz.kiv.zcu.ds.bankserver.persistence.TransactionLog;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts of hosting node keyed by account ID. Each account is updated independently without any global lock.
+ * Total balance of all accounts is maintained on each change, so it is read in constant time.
+ * <p>
+ * Only accounts with configured IDs (below {@link Config#ACCOUNTS_COUNT}) are opened on first use, other IDs
+ * exist only if they were recovered from checkpoint or transaction log. Account IDs come from the wire, so
+ * unknown ones must not open accounts.
+ */
+public class Accounts {
+
+    /**
+     * Account used by messages without explicit account ID.
+     */
+    public static final int DEFAULT_ACCOUNT = 0;
+
+    private static final Accounts instance = new Accounts();
+
+    private final ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * Shortcut to default account, the most used one.
+     */
+    private final Account defaultAccount;
+
+    /**
+     * Write-ahead log of applied operations, null if state is not persisted
+     */
+    private volatile TransactionLog log;
+
+    /**
+     * Sum of balances of all accounts
+     */
+    private final LongAdder total = new LongAdder();
+
+    private Accounts() {
+        defaultAccount = new Account(this, DEFAULT_ACCOUNT, Config.INITIAL_BALANCE);
+        accounts.put(DEFAULT_ACCOUNT, defaultAccount);
+        total.add(Config.INITIAL_BALANCE);
+    }
+
+    public static Accounts getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns account with given ID, opens empty one if it does not exist and its ID is configured.
+     * @param accountId - account ID
+     * @return - account, null if account does not exist and cannot be opened
+     */
+    public Account get(int accountId) {
+        if (accountId == DEFAULT_ACCOUNT) {
+            return defaultAccount;
+        }
+
+        Account account = accounts.get(accountId);
+        if (account == null && isConfigured(accountId)) {
+            account = open(accountId);
+        }
+
+        return account;
+    }
+
+    /**
+     * @param accountId - account ID
+     * @return - true if account with this ID is opened on first use
+     */
+    public static boolean isConfigured(int accountId) {
+        return accountId >= 0 && accountId < Config.ACCOUNTS_COUNT;
+    }
+
+    /**
+     * Returns account with given ID, opens empty one if it does not exist.
+     * @param accountId - account ID
+     * @return - account
+     */
+    private Account open(int accountId) {
+        return accounts.computeIfAbsent(accountId, id -> new Account(this, id, 0));
+    }
+
+    /**
+     * Applies all entries of batch or none of them. DEBIT entries are performed first, if any of them fails
+     * on low balance, already performed ones are credited back and no CREDIT entry is performed. Callers of
+     * other operations may therefore see balance debited only transiently, but no money is ever created.
+     * Caller must hold channel lock, so snapshot sees either none or all entries.
+     * @param batch - CREDIT and DEBIT entries, other entries are ignored
+     * @return - false if batch is not applied because of low balance or unknown account
+     */
+    public boolean apply(Batch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (get(batch.getAccountId(i)) == null) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getType(i) == MessageType.DEBIT && !get(batch.getAccountId(i)).debit(batch.getAmount(i))) {
+                for (int j = i - 1; j >= 0; j--) {
+                    if (batch.getType(j) == MessageType.DEBIT) {
+                        get(batch.getAccountId(j)).credit(batch.getAmount(j));
+                    }
+                }
+                return false;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getType(i) == MessageType.CREDIT) {
+                get(batch.getAccountId(i)).credit(batch.getAmount(i));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Called by account after operation changed its balance.
+     * @param type - operation CREDIT or DEBIT
+     * @param accountId - account ID
+     * @param amount - amount of money
+     */
+    void applied(MessageType type, int accountId, long amount) {
+        total.add(type == MessageType.CREDIT ? amount : -amount);
+
+        TransactionLog l = log;
+        if (l != null) {
+            l.append(type, accountId, amount);
+        }
+    }
+
+    /**
+     * Called by account after its balance was changed by recovery.
+     * @param change - change of balance
+     */
+    void restored(long change) {
+        total.add(change);
+    }
+
+    /**
+     * Applies operation replayed from transaction log.
+     * @param type - operation CREDIT or DEBIT
+     * @param accountId - account ID
+     * @param amount - amount of money
+     */
+    public void restore(MessageType type, int accountId, long amount) {
+        open(accountId).restore(type, amount);
+    }
+
+    /**
+     * Captures balances of all accounts. Result is consistent (and matches transaction log position) only if no
+     * operation is running, i.e. caller must block all operations (e.g. by holding all channel locks).
+     * @return - balances of all accounts
+     */
+    public AccountsState captureState() {
+        TransactionLog l = log;
+        long lsn = l == null ? 0 : l.getLastLsn();
+
+        Account[] current = accounts.values().toArray(new Account[0]);
+        int[] ids = new int[current.length];
+        long[] balances = new long[current.length];
+        for (int i = 0; i < current.length; i++) {
+            ids[i] = current[i].getId();
+            balances[i] = current[i].getBalance();
+        }
+
+        return new AccountsState(lsn, ids, balances);
+    }
+
+    /**
+     * Sets balances of accounts to recovered state. Accounts not present in the state keep their balances.
+     * Must be called before any operation is performed.
+     * @param state - recovered balances
+     */
+    public void restore(AccountsState state) {
+        for (int i = 0; i < state.size(); i++) {
+            open(state.getId(i)).restoreBalance(state.getBalance(i));
+        }
+    }
+
+    /**
+     * Attaches transaction log, all following operations are appended to it. Must be called before any operation
+     * is performed.
+     * @param log - write-ahead log
+     */
+    public void setLog(TransactionLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Waits until all operations performed so far are durable. Must be called before effects of operation
+     * leave the node (e.g. before sending debited money) - if node crashed after sending money whose debit was
+     * not written yet, replay would restore the money and it would exist twice.
+     * @return - false if operations may not be durable
+     */
+    public boolean awaitDurable() {
+        TransactionLog l = log;
+        return l == null || l.sync();
+    }
+
+    public Account getDefault() {
+        return defaultAccount;
+    }
+
+    public Collection<Account> all() {
+        return accounts.values();
+    }
+
+    /**
+     * Returns total balance of all accounts in constant time. Result is exact only if no operation is running.
+     * @return - total balance of hosting node
+     */
+    public long getTotalBalance() {
+        return total.sum();
+    }
+
+}
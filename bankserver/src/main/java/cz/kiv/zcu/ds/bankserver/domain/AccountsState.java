@@ -0,0 +1,64 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+/**
+ * Balances of all accounts of hosting node together with position in transaction log they correspond to.
+ */
+public class AccountsState {
+
+    /**
+     * Last operation in transaction log reflected in balances, 0 if state is not persisted
+     */
+    private final long lsn;
+
+    /**
+     * Account IDs, balance of account ids[i] is balances[i]
+     */
+    private final int[] ids;
+
+    private final long[] balances;
+
+    /**
+     * Defines state.
+     * @param lsn - last operation in transaction log reflected in balances
+     * @param ids - account IDs
+     * @param balances - balances of accounts
+     */
+    public AccountsState(long lsn, int[] ids, long[] balances) {
+        if (ids.length != balances.length) {
+            throw new IllegalArgumentException("Each account must have exactly one balance.");
+        }
+
+        this.lsn = lsn;
+        this.ids = ids;
+        this.balances = balances;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int idx) {
+        return ids[idx];
+    }
+
+    public long getBalance(int idx) {
+        return balances[idx];
+    }
+
+    /**
+     * @return - sum of balances of all accounts
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long balance: balances) {
+            total += balance;
+        }
+
+        return total;
+    }
+
+}
@@ -0,0 +1,124 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+/**
+ * Entries of {@link MessageType#BATCH} message - CREDIT and DEBIT bank requests sent to one node in a single frame
+ * and applied there atomically by {@link Accounts#apply(Batch)}. Entries are kept in primitive arrays of fixed
+ * capacity, so batch of thousands of transfers costs only three allocations.
+ * <p>
+ * Account IDs have the same meaning on both nodes, as with single bank requests.
+ */
+public class Batch {
+
+    /**
+     * Max number of entries, encoded batch must fit into receive buffer of listener.
+     */
+    public static final int MAX_SIZE = 4096;
+
+    private MessageType[] types;
+
+    private int[] accountIds;
+
+    private int[] amounts;
+
+    private int size;
+
+    /**
+     * Creates empty batch.
+     * @param capacity - max number of entries
+     */
+    public Batch(int capacity) {
+        if (capacity < 0 || capacity > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid batch capacity " + capacity + ".");
+        }
+
+        this.types = new MessageType[capacity];
+        this.accountIds = new int[capacity];
+        this.amounts = new int[capacity];
+    }
+
+    /**
+     * Appends entry.
+     * @param type - bank operation CREDIT or DEBIT
+     * @param accountId - target account ID
+     * @param amount - amount of money
+     * @throws IllegalStateException - if batch is full
+     */
+    public void add(MessageType type, int accountId, int amount) {
+        if (size == types.length) {
+            throw new IllegalStateException("Batch is full.");
+        }
+
+        types[size] = type;
+        accountIds[size] = accountId;
+        amounts[size] = amount;
+        size++;
+    }
+
+    /**
+     * Selects entries of given type.
+     * @param selected - type of selected entries
+     * @param as - type of entries in result, e.g. DEBIT entries are returned to sender as CREDIT
+     * @return - new batch with selected entries
+     */
+    public Batch select(MessageType selected, MessageType as) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] == selected) {
+                count++;
+            }
+        }
+
+        Batch result = new Batch(count);
+        for (int i = 0; i < size; i++) {
+            if (types[i] == selected) {
+                result.add(as, accountIds[i], amounts[i]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param type - bank operation CREDIT or DEBIT
+     * @return - sum of amounts of entries of given type
+     */
+    public long sum(MessageType type) {
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] == type) {
+                sum += amounts[i];
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return - false if size does not match entries, which only batch decoded from malformed JSON can do
+     */
+    public boolean isConsistent() {
+        return types != null && accountIds != null && amounts != null && size >= 0 && size <= MAX_SIZE
+                && size <= types.length && size <= accountIds.length && size <= amounts.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public MessageType getType(int i) {
+        return types[i];
+    }
+
+    public int getAccountId(int i) {
+        return accountIds[i];
+    }
+
+    public int getAmount(int i) {
+        return amounts[i];
+    }
+
+}
@@ -0,0 +1,155 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Global state of the system assembled from local states of all nodes reported for one snapshot.
+ */
+public class GlobalState {
+
+    /**
+     * Snapshot ID
+     */
+    private final long snapshotId;
+
+    /**
+     * Local states by node ID, null for nodes which did not report
+     */
+    private final LocalState[] reports;
+
+    /**
+     * Nodes which had to report by node ID, null = all nodes
+     */
+    private final boolean[] members;
+
+    /**
+     * Expected amount of money in the system
+     */
+    private final long expectedTotal;
+
+    /**
+     * Time from start of aggregation (initiation or first marker) to its end in microseconds
+     */
+    private final long latency;
+
+    private final long balance;
+
+    private final long inFlight;
+
+    /**
+     * Assembles global state.
+     * @param snapshotId - snapshot ID
+     * @param reports - local states by node ID, null for missing reports
+     * @param expectedTotal - expected amount of money in the system
+     * @param latency - duration of the snapshot in microseconds
+     */
+    public GlobalState(long snapshotId, LocalState[] reports, long expectedTotal, long latency) {
+        this(snapshotId, reports, null, expectedTotal, latency);
+    }
+
+    /**
+     * Assembles global state of snapshot of some nodes (e.g. other nodes already left the system).
+     * @param snapshotId - snapshot ID
+     * @param reports - local states by node ID, null for missing reports
+     * @param members - nodes which had to report by node ID, null = all nodes
+     * @param expectedTotal - expected amount of money in the system
+     * @param latency - duration of the snapshot in microseconds
+     */
+    public GlobalState(long snapshotId, LocalState[] reports, boolean[] members, long expectedTotal, long latency) {
+        this.snapshotId = snapshotId;
+        this.reports = reports;
+        this.members = members;
+        this.expectedTotal = expectedTotal;
+        this.latency = latency;
+
+        long balance = 0;
+        long inFlight = 0;
+        for (LocalState report: reports) {
+            if (report != null) {
+                balance += report.getBalance();
+                inFlight += report.getCreditsInFlight();
+            }
+        }
+        this.balance = balance;
+        this.inFlight = inFlight;
+    }
+
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * @return - true if all nodes reported their local states
+     */
+    public boolean isComplete() {
+        return getMissing().isEmpty();
+    }
+
+    /**
+     * @return - IDs of nodes which did not report
+     */
+    public List<Integer> getMissing() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < reports.length; i++) {
+            if (reports[i] == null && (members == null || members[i])) {
+                missing.add(i);
+            }
+        }
+
+        return missing;
+    }
+
+    /**
+     * @param nodeId - node ID
+     * @return - local state reported by node, null if it did not report
+     */
+    public LocalState getReport(int nodeId) {
+        return nodeId < reports.length ? reports[nodeId] : null;
+    }
+
+    /**
+     * @return - sum of balances of all reported nodes
+     */
+    public long getBalance() {
+        return balance;
+    }
+
+    /**
+     * @return - money in flight in all channels
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return - total money in the system (balances and money in flight)
+     */
+    public long getTotal() {
+        return balance + inFlight;
+    }
+
+    public long getExpectedTotal() {
+        return expectedTotal;
+    }
+
+    /**
+     * @return - true if snapshot is complete and no money was created or lost
+     */
+    public boolean isConserved() {
+        return isComplete() && getTotal() == expectedTotal;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "Global state " + snapshotId + ": total " + getTotal() + ",- CZK (balance " + balance
+                + ", in flight " + inFlight + "), expected " + expectedTotal + ",- CZK, "
+                + (isComplete() ? (isConserved() ? "conserved" : "NOT CONSERVED") : "INCOMPLETE, missing nodes "
+                + getMissing()) + ", latency " + latency + " us";
+    }
+
+}
@@ -0,0 +1,130 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+/**
+ * Structured local state of one node recorded by Chandy-Lamport snapshot, sent to aggregator in
+ * {@link MessageType#GLOBAL_STATE} message.
+ * <p>
+ * Delta report differs from full report by meaning of balance. Its fields are small, so binary codec writes them
+ * as varints (see {@link cz.kiv.zcu.ds.bankserver.codec.BinaryCodec}).
+ */
+public class LocalState {
+
+    /**
+     * Snapshot ID
+     */
+    private long snapshotId;
+
+    /**
+     * Reporting node ID
+     */
+    private int nodeId;
+
+    /**
+     * Recorded balance of all accounts of the node, change of balance since base snapshot if report is delta
+     */
+    private long balance;
+
+    /**
+     * Base snapshot of delta report, -1 if report contains full balance
+     */
+    private long baseSnapshotId = -1;
+
+    /**
+     * Money in flight - sum of credits recorded in incoming channels
+     */
+    private long creditsInFlight;
+
+    /**
+     * Sum of debit requests recorded in incoming channels, not money (money moves with reply)
+     */
+    private long debitsInFlight;
+
+    /**
+     * Number of messages recorded in incoming channels
+     */
+    private int recordedMessages;
+
+    /**
+     * Time from local start of snapshot to recording of all channels in microseconds
+     */
+    private long recordingTime;
+
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+
+    public void setSnapshotId(long snapshotId) {
+        this.snapshotId = snapshotId;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public void setBalance(long balance) {
+        this.balance = balance;
+    }
+
+    public long getBaseSnapshotId() {
+        return baseSnapshotId;
+    }
+
+    public void setBaseSnapshotId(long baseSnapshotId) {
+        this.baseSnapshotId = baseSnapshotId;
+    }
+
+    /**
+     * @return - true if balance is change since base snapshot
+     */
+    public boolean isDelta() {
+        return baseSnapshotId >= 0;
+    }
+
+    public long getCreditsInFlight() {
+        return creditsInFlight;
+    }
+
+    public void setCreditsInFlight(long creditsInFlight) {
+        this.creditsInFlight = creditsInFlight;
+    }
+
+    public long getDebitsInFlight() {
+        return debitsInFlight;
+    }
+
+    public void setDebitsInFlight(long debitsInFlight) {
+        this.debitsInFlight = debitsInFlight;
+    }
+
+    public int getRecordedMessages() {
+        return recordedMessages;
+    }
+
+    public void setRecordedMessages(int recordedMessages) {
+        this.recordedMessages = recordedMessages;
+    }
+
+    public long getRecordingTime() {
+        return recordingTime;
+    }
+
+    public void setRecordingTime(long recordingTime) {
+        this.recordingTime = recordingTime;
+    }
+
+    @Override
+    public String toString() {
+        return "Node " + nodeId + ": balance " + (isDelta() ? "change since " + baseSnapshotId + " " : "") + balance
+                + ",- CZK, in flight +" + creditsInFlight + " / -"
+                + debitsInFlight + ",- CZK in " + recordedMessages + " messages, recorded in " + recordingTime + " us";
+    }
+
+}
@@ -9,10 +9,26 @@ public class Message {
 
     private int numData;
 
-    private String type;
+    private MessageType type;
 
     private int from;
 
+    private int accountId;
+
+    private LocalState state;
+
+    private long snapshotId;
+
+    private long baseSnapshotId = -1;
+
+    private long requestId;
+
+    private long timestamp;
+
+    private long sequence;
+
+    private Batch batch;
+
     public String getStrData() {
         return strData;
     }
@@ -29,11 +45,11 @@ public class Message {
         this.numData = numData;
     }
 
-    public String getType() {
+    public MessageType getType() {
         return type;
     }
 
-    public void setType(String type) {
+    public void setType(MessageType type) {
         this.type = type;
     }
 
@@ -45,4 +61,111 @@ public class Message {
         this.from = from;
     }
 
+    /**
+     * Target account of bank request, {@link Accounts#DEFAULT_ACCOUNT} if not specified.
+     */
+    public int getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(int accountId) {
+        this.accountId = accountId;
+    }
+
+    /**
+     * Local state reported by {@link MessageType#GLOBAL_STATE} message, null for other messages.
+     */
+    public LocalState getState() {
+        return state;
+    }
+
+    public void setState(LocalState state) {
+        this.state = state;
+    }
+
+    /**
+     * Snapshot of {@link MessageType#MARKER} and {@link MessageType#GLOBAL_STATE} messages.
+     */
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+
+    public void setSnapshotId(long snapshotId) {
+        this.snapshotId = snapshotId;
+    }
+
+    /**
+     * Base of delta snapshot started by {@link MessageType#MARKER} message, -1 for full snapshot.
+     */
+    public long getBaseSnapshotId() {
+        return baseSnapshotId;
+    }
+
+    public void setBaseSnapshotId(long baseSnapshotId) {
+        this.baseSnapshotId = baseSnapshotId;
+    }
+
+    /**
+     * ID of request assigned by its originator, copied to the reply. 0 = request does not expect reply.
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Wall-clock time when message was sent in milliseconds, 0 if unknown.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Number of message in its channel (1, 2, ...) assigned when message is sent, 0 = message is not sequenced.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Entries of {@link MessageType#BATCH} and {@link MessageType#BATCH_REPLY} messages, null for other messages.
+     */
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Overwrites all fields by fields of given message, so message instance can be reused.
+     * @param source - copied message
+     */
+    public void copyFrom(Message source) {
+        this.strData = source.strData;
+        this.numData = source.numData;
+        this.type = source.type;
+        this.from = source.from;
+        this.accountId = source.accountId;
+        this.state = source.state;
+        this.snapshotId = source.snapshotId;
+        this.baseSnapshotId = source.baseSnapshotId;
+        this.requestId = source.requestId;
+        this.timestamp = source.timestamp;
+        this.sequence = source.sequence;
+        this.batch = source.batch;
+    }
+
 }
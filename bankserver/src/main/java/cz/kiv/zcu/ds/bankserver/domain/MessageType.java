@@ -1,23 +1,66 @@
 package cz.kiv.zcu.ds.bankserver.domain;
 
 /**
- * Types of ZeroMQ messages that this applications supports.
+ * Types of ZeroMQ messages that this applications supports. Each type has stable compact code used by binary
+ * wire format, so order of constants can change without breaking compatibility.
  */
 public enum MessageType {
 
-    CREDIT,         // Credit bank request
-    DEBIT,          // Debit bank request
-    MARKER,         // Marker message for CL algorithm
-    GLOBAL_STATE;   // Result of CL algorithm
+    CREDIT(0),          // Credit bank request
+    DEBIT(1),           // Debit bank request
+    MARKER(2),          // Marker message for CL algorithm
+    GLOBAL_STATE(3),    // Result of CL algorithm
+    REJECT(4),          // Rejected bank request, returns money of rejected CREDIT (numData 0 for DEBIT)
+    BATCH(5),           // CREDIT and DEBIT bank requests applied atomically
+    BATCH_REPLY(6);     // Reply to BATCH carrying money of its DEBITs, or of its CREDITs if it was rejected
 
-    public static MessageType resolve(String messageType) {
+    /**
+     * Types indexed by their code
+     */
+    private static final MessageType[] BY_CODE;
+
+    static {
+        int max = 0;
+        for (MessageType m: values()) {
+            max = Math.max(max, m.code);
+        }
+
+        BY_CODE = new MessageType[max + 1];
         for (MessageType m: values()) {
-            if (m.toString().equals(messageType)) {
-                return m;
+            if (BY_CODE[m.code] != null) {
+                throw new IllegalStateException("Duplicate message type code " + m.code + ".");
             }
+            BY_CODE[m.code] = m;
+        }
+    }
+
+    /**
+     * Compact code of the type
+     */
+    private final byte code;
+
+    MessageType(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * @return - compact code of the type
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * Finds type by its compact code without allocation.
+     * @param code - compact code of the type
+     * @return - message type or null if code is unknown
+     */
+    public static MessageType fromCode(byte code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            return null;
         }
 
-        return null;
+        return BY_CODE[code];
     }
 
 }
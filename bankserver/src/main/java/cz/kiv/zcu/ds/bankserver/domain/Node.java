@@ -8,6 +8,8 @@ public class Node {
     private String ip;
     private int[] ports;
     private int[] neighbours;
+    private String codec;
+    private boolean active = true;
 
     public String getIp() {
         return ip;
@@ -17,6 +19,9 @@ public class Node {
         this.ip = ip;
     }
 
+    /**
+     * Listening ports, null = ports are assigned by {@link cz.kiv.zcu.ds.bankserver.config.PortAllocator}.
+     */
     public int[] getPorts() {
         return ports;
     }
@@ -32,4 +37,26 @@ public class Node {
     public void setNeighbours(int[] neighbours) {
         this.neighbours = neighbours;
     }
+
+    /**
+     * Wire format this node expects on its channels, "binary" or "json" (default).
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * False = node left the cluster. Its ID is not reused, so IDs of other nodes do not change.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
 }
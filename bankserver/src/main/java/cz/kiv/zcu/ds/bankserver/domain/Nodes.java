@@ -3,12 +3,24 @@ package cz.kiv.zcu.ds.bankserver.domain;
 import java.util.List;
 
 /**
- * Wrapper for list of nodes.
+ * Wrapper for list of nodes and settings of their ports. Node ID is its index in the list.
  */
 public class Nodes {
 
     private List<Node> nodes;
 
+    private String portAllocation;
+
+    private String transport;
+
+    private Integer basePort;
+
+    private Integer reportBasePort;
+
+    private Integer clientPort;
+
+    private Integer maxNodes;
+
     public List<Node> getNodes() {
         return nodes;
     }
@@ -16,4 +28,72 @@ public class Nodes {
     public void setNodes(List<Node> nodes) {
         this.nodes = nodes;
     }
+
+    /**
+     * Port allocation scheme - "offset" (default), "per-node" or class name of custom
+     * {@link cz.kiv.zcu.ds.bankserver.config.PortAllocator}.
+     */
+    public String getPortAllocation() {
+        return portAllocation;
+    }
+
+    public void setPortAllocation(String portAllocation) {
+        this.portAllocation = portAllocation;
+    }
+
+    /**
+     * Transport of channels - "pair" (default, socket and port per channel) or "router" (single ROUTER socket
+     * per node, peers connect by DEALER sockets).
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * First port of channels between nodes, null = default of port allocation.
+     */
+    public Integer getBasePort() {
+        return basePort;
+    }
+
+    public void setBasePort(Integer basePort) {
+        this.basePort = basePort;
+    }
+
+    /**
+     * First port of channels for reports of CL algorithm, null = default of port allocation.
+     */
+    public Integer getReportBasePort() {
+        return reportBasePort;
+    }
+
+    public void setReportBasePort(Integer reportBasePort) {
+        this.reportBasePort = reportBasePort;
+    }
+
+    /**
+     * Port for external clients, null = default of port allocation.
+     */
+    public Integer getClientPort() {
+        return clientPort;
+    }
+
+    public void setClientPort(Integer clientPort) {
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Max number of node IDs, used by port allocations which reserve range of ports for each node.
+     */
+    public Integer getMaxNodes() {
+        return maxNodes;
+    }
+
+    public void setMaxNodes(Integer maxNodes) {
+        this.maxNodes = maxNodes;
+    }
 }
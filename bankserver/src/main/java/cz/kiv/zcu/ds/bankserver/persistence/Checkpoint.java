@@ -0,0 +1,86 @@
+package cz.kiv.zcu.ds.bankserver.persistence;
+
+import cz.kiv.zcu.ds.bankserver.domain.AccountsState;
+
+/**
+ * Local state of hosting node recorded by one completed Chandy-Lamport snapshot.
+ */
+public class Checkpoint {
+
+    /**
+     * Snapshot ID
+     */
+    private final long snapshotId;
+
+    /**
+     * Time when checkpoint was written (ms since epoch)
+     */
+    private final long timestamp;
+
+    /**
+     * Balances of accounts and LSN of the last operation reflected in them
+     */
+    private final AccountsState accounts;
+
+    /**
+     * Recorded incoming channels (sender node IDs)
+     */
+    private final int[] channels;
+
+    /**
+     * Amounts in flight on each recorded channel, credits positive, debits negative
+     */
+    private final long[][] amounts;
+
+    /**
+     * Defines checkpoint.
+     * @param snapshotId - snapshot ID
+     * @param timestamp - time when checkpoint was written
+     * @param accounts - balances of accounts
+     * @param channels - recorded channels
+     * @param amounts - amounts in flight on recorded channels
+     */
+    public Checkpoint(long snapshotId, long timestamp, AccountsState accounts, int[] channels, long[][] amounts) {
+        if (channels.length != amounts.length) {
+            throw new IllegalArgumentException("Each channel must have exactly one history.");
+        }
+
+        this.snapshotId = snapshotId;
+        this.timestamp = timestamp;
+        this.accounts = accounts;
+        this.channels = channels;
+        this.amounts = amounts;
+    }
+
+    public long getSnapshotId() {
+        return snapshotId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public AccountsState getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return - LSN of the last operation reflected in balances
+     */
+    public long getLsn() {
+        return accounts.getLsn();
+    }
+
+    public int getChannelsCount() {
+        return channels.length;
+    }
+
+    public int getChannel(int idx) {
+        return channels[idx];
+    }
+
+    public long[] getAmounts(int idx) {
+        return amounts[idx];
+    }
+
+}
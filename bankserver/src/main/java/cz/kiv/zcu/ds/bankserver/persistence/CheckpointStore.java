@@ -0,0 +1,288 @@
+package cz.kiv.zcu.ds.bankserver.persistence;
+
+import cz.kiv.zcu.ds.bankserver.domain.AccountsState;
+import cz.kiv.zcu.ds.bankserver.util.LocalStateLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores local states of completed Chandy-Lamport snapshots as checkpoints and loads them on restart.
+ * <p>
+ * Checkpoint contains balances of all accounts together with LSN of the last operation reflected in them, so
+ * restarting node restores balances from the latest valid checkpoint and replays only the log tail after it.
+ * Log segments older than the oldest retained checkpoint are deleted after each checkpoint.
+ * <p>
+ * File layout (big endian):
+ * <pre>
+ * int    magic
+ * byte   version
+ * int    node ID
+ * long   snapshot ID
+ * long   timestamp
+ * long   LSN
+ * int    accounts count, then for each: int account ID, long balance
+ * int    channels count, then for each: int sender node ID, int amounts count, long[] amounts
+ * int    CRC32 of all previous bytes
+ * </pre>
+ * Checkpoint is written to temporary file, forced and atomically renamed, so crash never leaves partial checkpoint
+ * under valid name.
+ */
+public class CheckpointStore {
+
+    private static Logger logger = LoggerFactory.getLogger(CheckpointStore.class);
+
+    /**
+     * First bytes of checkpoint file ("CKP" + 0xB5).
+     */
+    static final int MAGIC = 0x434B50B5;
+
+    /**
+     * Current version of file layout.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * Number of kept checkpoints, older one is used when the latest is corrupted.
+     */
+    private static final int RETAINED = 2;
+
+    private static final String PREFIX = "checkpoint-";
+
+    private static final String SUFFIX = ".ckpt";
+
+    /**
+     * Hosting node ID
+     */
+    private final int selfNodeNumber;
+
+    /**
+     * Data directory of hosting node
+     */
+    private final Path dir;
+
+    /**
+     * Transaction log, checkpoint is written only after all its operations are durable
+     */
+    private final TransactionLog log;
+
+    /**
+     * Defines store.
+     * @param selfNodeNumber - hosting node ID
+     * @param dir - data directory of hosting node
+     * @param log - transaction log of hosting node
+     */
+    public CheckpointStore(int selfNodeNumber, Path dir, TransactionLog log) {
+        this.selfNodeNumber = selfNodeNumber;
+        this.dir = dir;
+        this.log = log;
+    }
+
+    /**
+     * Writes local state of completed snapshot, deletes old checkpoints and log segments covered by retained ones.
+     * @param snapshotId - snapshot ID
+     * @param lsl - recorded local state
+     * @throws IOException - if checkpoint cannot be written
+     */
+    public synchronized void save(long snapshotId, LocalStateLogger lsl) throws IOException {
+        AccountsState accounts = lsl.getAccountsState();
+        if (!log.sync()) {
+            logger.warn("Operations up to LSN {} may not be durable, skipping checkpoint of snapshot {}.",
+                    accounts.getLsn(), snapshotId);
+            return;
+        }
+
+        int[] channels = lsl.getChannels();
+        long[][] amounts = new long[channels.length][];
+        for (int i = 0; i < channels.length; i++) {
+            amounts[i] = lsl.getChannelAmounts(channels[i]);
+        }
+        Checkpoint checkpoint = new Checkpoint(snapshotId, System.currentTimeMillis(), accounts, channels, amounts);
+
+        Path file = path(checkpoint.getLsn());
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = encode(checkpoint);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        logger.info("Checkpoint of snapshot {} at LSN {} written.", snapshotId, checkpoint.getLsn());
+
+        // retention
+        List<Long> lsns = list();
+        for (int i = 0; i < lsns.size() - RETAINED; i++) {
+            Files.deleteIfExists(path(lsns.get(i)));
+        }
+        long oldest = lsns.get(Math.max(0, lsns.size() - RETAINED));
+
+        log.roll();
+        int deleted = log.deleteBefore(oldest);
+        logger.debug("Deleted {} transaction log segments before LSN {}.", deleted, oldest);
+    }
+
+    /**
+     * Loads the latest valid checkpoint. Corrupted checkpoints are skipped.
+     * @return - latest valid checkpoint, null if there is none
+     * @throws IOException - if data directory cannot be read
+     */
+    public Checkpoint loadLatest() throws IOException {
+        List<Long> lsns = list();
+        Collections.reverse(lsns);
+
+        for (long lsn: lsns) {
+            Path file = path(lsn);
+            try {
+                Checkpoint checkpoint = decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+                logger.info("Loaded checkpoint of snapshot {} at LSN {}.", checkpoint.getSnapshotId(), lsn);
+                return checkpoint;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Skipping corrupted checkpoint " + file + ".", e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return - LSNs of existing checkpoints in ascending order
+     * @throws IOException - if data directory cannot be read
+     */
+    private List<Long> list() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .map(f -> f.getFileName().toString())
+                    .filter(f -> f.startsWith(PREFIX) && f.endsWith(SUFFIX))
+                    .map(f -> Long.parseLong(f.substring(PREFIX.length(), f.length() - SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private Path path(long lsn) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+    }
+
+    /**
+     * Serializes checkpoint.
+     * @param checkpoint - checkpoint
+     * @return - buffer ready for reading
+     */
+    private ByteBuffer encode(Checkpoint checkpoint) {
+        AccountsState accounts = checkpoint.getAccounts();
+
+        int size = Integer.BYTES + 1 + Integer.BYTES + 3 * Long.BYTES
+                + Integer.BYTES + accounts.size() * (Integer.BYTES + Long.BYTES)
+                + Integer.BYTES + Integer.BYTES;
+        for (int i = 0; i < checkpoint.getChannelsCount(); i++) {
+            size += 2 * Integer.BYTES + checkpoint.getAmounts(i).length * Long.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putInt(selfNodeNumber);
+        buffer.putLong(checkpoint.getSnapshotId());
+        buffer.putLong(checkpoint.getTimestamp());
+        buffer.putLong(checkpoint.getLsn());
+
+        buffer.putInt(accounts.size());
+        for (int i = 0; i < accounts.size(); i++) {
+            buffer.putInt(accounts.getId(i));
+            buffer.putLong(accounts.getBalance(i));
+        }
+
+        buffer.putInt(checkpoint.getChannelsCount());
+        for (int i = 0; i < checkpoint.getChannelsCount(); i++) {
+            long[] amounts = checkpoint.getAmounts(i);
+            buffer.putInt(checkpoint.getChannel(i));
+            buffer.putInt(amounts.length);
+            for (long amount: amounts) {
+                buffer.putLong(amount);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Deserializes and validates checkpoint.
+     * @param buffer - content of checkpoint file
+     * @return - checkpoint
+     * @throws IOException - if checkpoint is corrupted or belongs to other node
+     * @throws BufferUnderflowException - if checkpoint is truncated
+     */
+    private Checkpoint decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES + 1 + Integer.BYTES) {
+            throw new IOException("Checkpoint is truncated.");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit() - Integer.BYTES);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - Integer.BYTES)) {
+            throw new IOException("Checkpoint checksum mismatch.");
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a supported checkpoint.");
+        }
+        if (buffer.get() != VERSION) {
+            throw new IOException("Not a supported checkpoint.");
+        }
+        int nodeId = buffer.getInt();
+        if (nodeId != selfNodeNumber) {
+            throw new IOException("Checkpoint belongs to node " + nodeId + ".");
+        }
+
+        long snapshotId = buffer.getLong();
+        long timestamp = buffer.getLong();
+        long lsn = buffer.getLong();
+
+        int[] ids = new int[buffer.getInt()];
+        long[] balances = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buffer.getInt();
+            balances[i] = buffer.getLong();
+        }
+
+        int[] channels = new int[buffer.getInt()];
+        long[][] amounts = new long[channels.length][];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = buffer.getInt();
+            amounts[i] = new long[buffer.getInt()];
+            for (int j = 0; j < amounts[i].length; j++) {
+                amounts[i][j] = buffer.getLong();
+            }
+        }
+
+        return new Checkpoint(snapshotId, timestamp, new AccountsState(lsn, ids, balances), channels, amounts);
+    }
+
+}
@@ -0,0 +1,668 @@
+package cz.kiv.zcu.ds.bankserver.persistence;
+
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of applied account operations with group commit.
+ * <p>
+ * Log is split into segments named by LSN of their first record. New segment is started by {@link #roll()}
+ * (after each checkpoint), segments older than checkpoint are deleted by {@link #deleteBefore(long)}, so recovery
+ * reads only the log tail after the latest checkpoint.
+ * <p>
+ * Appending only copies fixed size record to in-memory buffer. Dedicated flusher thread swaps buffers and writes and
+ * forces the whole batch by single {@link FileChannel#force(boolean)}, so one fsync is shared by all operations
+ * appended meanwhile. Threads which must not continue before their operation is durable (e.g. before money is sent
+ * to other node) wait in {@link #sync()}, which has the batch flushed at once. Batch nobody waits for is flushed
+ * after flush interval.
+ * <p>
+ * Segment layout (big endian):
+ * <pre>
+ * int    magic
+ * byte   version
+ * record* - long LSN, byte operation (code of {@link MessageType}), int account ID, long amount, int CRC32
+ * </pre>
+ * Torn record at the end of log (crash during write) is detected by CRC and cut off during replay.
+ */
+public class TransactionLog implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(TransactionLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * First bytes of segment file ("WAL" + 0xB5).
+     */
+    static final int MAGIC = 0x57414CB5;
+
+    /**
+     * Current version of file layout.
+     */
+    static final byte VERSION = 1;
+
+    static final int HEADER_SIZE = Integer.BYTES + 1;
+
+    static final int RECORD_SIZE = Long.BYTES + 1 + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Size of one batch buffer, appending threads wait for flusher when it is full.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Delay between attempts to write batch after I/O error.
+     */
+    private static final long RETRY_INTERVAL = 1000;
+
+    /**
+     * Handles records read during replay.
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+
+        /**
+         * @param lsn - log sequence number of the record
+         * @param type - operation CREDIT or DEBIT
+         * @param accountId - account ID
+         * @param amount - amount of money
+         */
+        void apply(long lsn, MessageType type, int accountId, long amount);
+
+    }
+
+    /**
+     * Data directory of hosting node
+     */
+    private final Path dir;
+
+    /**
+     * First LSNs of existing segments in ascending order, the last one is written
+     */
+    private final List<Long> segments;
+
+    /**
+     * Currently written segment, owned by flusher once it is started
+     */
+    private Path file;
+
+    private FileChannel channel;
+
+    /**
+     * Max time between append and flush of its batch, in nanoseconds.
+     */
+    private final long flushInterval;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled to flusher when batch has first record, is full, is waited for or log is closed.
+     */
+    private final Condition pending = lock.newCondition();
+
+    /**
+     * Signalled to waiting appenders when buffers are swapped or batch becomes durable.
+     */
+    private final Condition progress = lock.newCondition();
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Batch being filled by appenders and batch being written by flusher.
+     */
+    private ByteBuffer active = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer standby = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private boolean full;
+
+    /**
+     * Some thread waits in {@link #sync()} for record of the active batch, so the batch is flushed at once.
+     */
+    private boolean syncRequested;
+
+    /**
+     * Last LSN of batch taken by flusher
+     */
+    private long swappedLsn;
+
+    private long nextLsn = 1;
+
+    /**
+     * Last LSN which is forced to disk
+     */
+    private long durableLsn;
+
+    private long flushes;
+
+    private boolean closed;
+
+    private boolean rollRequested;
+
+    private Thread flusher;
+
+    /**
+     * Opens log in given directory. Log must be replayed by {@link #replay(long, RecordHandler)} and then started
+     * by {@link #start()}.
+     * @param dir - data directory of hosting node
+     * @param flushInterval - max time between append and flush in milliseconds
+     * @return - opened log
+     * @throws IOException - if directory cannot be read
+     */
+    public static TransactionLog open(Path dir, long flushInterval) throws IOException {
+        Files.createDirectories(dir);
+
+        List<Long> segments;
+        try (Stream<Path> files = Files.list(dir)) {
+            segments = files
+                    .map(f -> f.getFileName().toString())
+                    .filter(f -> f.startsWith(SEGMENT_PREFIX) && f.endsWith(SEGMENT_SUFFIX))
+                    .map(f -> Long.parseLong(f.substring(SEGMENT_PREFIX.length(), f.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        return new TransactionLog(dir, segments, flushInterval);
+    }
+
+    private TransactionLog(Path dir, List<Long> segments, long flushInterval) {
+        this.dir = dir;
+        this.segments = segments;
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    /**
+     * Reads all valid records after given LSN and passes them to handler. Segments which contain only older records
+     * are not read at all. Cuts off torn or corrupted tail of the log, so new records are appended right after
+     * the last valid one. Must be called before {@link #start()}.
+     * @param afterLsn - LSN of state recovered from checkpoint, 0 = replay whole log
+     * @param handler - handler of records
+     * @return - number of replayed records
+     * @throws IOException - if log cannot be read
+     */
+    public long replay(long afterLsn, RecordHandler handler) throws IOException {
+        long lastLsn = 0;
+        long tailEnd = -1; // last LSN in the last read segment
+        long count = 0;
+        int idx = 0;
+
+        // skip segments covered by checkpoint
+        while (idx + 1 < segments.size() && segments.get(idx + 1) <= afterLsn + 1) {
+            idx++;
+        }
+        if (idx < segments.size() && segments.get(idx) > afterLsn + 1) {
+            logger.warn("Transaction log starts at LSN {}, operations after LSN {} are missing.", segments.get(idx),
+                    afterLsn);
+        }
+
+        for (; idx < segments.size(); idx++) {
+            long first = segments.get(idx);
+            if (lastLsn > 0 && first != lastLsn + 1) {
+                logger.warn("Transaction log segment {} does not continue LSN {}.", segmentPath(first), lastLsn);
+                break;
+            }
+
+            try (FileChannel segment = openSegment(first)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                long position = HEADER_SIZE;
+                long valid = position;
+                long expected = first;
+                int read;
+
+                records:
+                while ((read = segment.read(buffer, position)) > 0) {
+                    position += read;
+                    buffer.flip();
+
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        int start = buffer.position();
+                        crc.reset();
+                        crc.update(buffer.array(), start, RECORD_SIZE - Integer.BYTES);
+
+                        long lsn = buffer.getLong();
+                        MessageType type = MessageType.fromCode(buffer.get());
+                        int accountId = buffer.getInt();
+                        long amount = buffer.getLong();
+                        int checksum = buffer.getInt();
+
+                        if (checksum != (int) crc.getValue() || type == null || lsn != expected) {
+                            break records;
+                        }
+
+                        if (lsn > afterLsn) {
+                            handler.apply(lsn, type, accountId, amount);
+                            count++;
+                        }
+                        lastLsn = lsn;
+                        valid += RECORD_SIZE;
+                        expected++;
+                    }
+                    buffer.compact();
+                }
+                tailEnd = expected - 1;
+
+                if (valid < segment.size()) {
+                    logger.warn("Cutting off {} bytes of torn or corrupted tail of {}.", segment.size() - valid,
+                            segmentPath(first));
+                    segment.truncate(valid);
+                    segment.force(true);
+                    idx++;
+                    break;
+                }
+            }
+        }
+
+        // later segments cannot continue the cut off log
+        while (segments.size() > idx) {
+            long first = segments.remove(segments.size() - 1);
+            logger.warn("Deleting transaction log segment {} after corrupted record.", segmentPath(first));
+            Files.delete(segmentPath(first));
+        }
+
+        if (lastLsn < afterLsn) {
+            if (!segments.isEmpty()) {
+                logger.warn("Transaction log ends at LSN {} before checkpoint LSN {}.", lastLsn, afterLsn);
+            }
+            lastLsn = afterLsn;
+        }
+
+        // continue in the last segment, or start new one when there is none or it does not end with last LSN
+        if (segments.isEmpty() || tailEnd != lastLsn) {
+            segments.add(lastLsn + 1);
+        }
+        file = segmentPath(segments.get(segments.size() - 1));
+        channel = openSegment(segments.get(segments.size() - 1));
+        channel.position(channel.size());
+
+        lock.lock();
+        try {
+            nextLsn = lastLsn + 1;
+            durableLsn = lastLsn;
+        } finally {
+            lock.unlock();
+        }
+
+        logger.info("Replayed {} records after LSN {} from {}, last LSN {}.", count, afterLsn, dir, lastLsn);
+
+        return count;
+    }
+
+    /**
+     * Starts flusher thread.
+     */
+    public void start() {
+        final String nodeID = ThreadContext.get("nodeID");
+        flusher = new Thread(() -> {
+            ThreadContext.put("nodeID", nodeID);
+            flush();
+        }, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends operation to the log. Does not wait for disk, only when current batch is full.
+     * @param type - operation CREDIT or DEBIT
+     * @param accountId - account ID
+     * @param amount - amount of money
+     * @return - log sequence number of the record
+     */
+    public long append(MessageType type, int accountId, long amount) {
+        lock.lock();
+        try {
+            while (!closed && active.remaining() < RECORD_SIZE) {
+                full = true;
+                pending.signal();
+                progress.awaitUninterruptibly();
+            }
+            if (closed) {
+                throw new IllegalStateException("Transaction log " + file + " is closed.");
+            }
+
+            if (active.position() == 0) {
+                pending.signal(); // first record of batch
+            }
+
+            long lsn = nextLsn++;
+            int start = active.position();
+            active.putLong(lsn).put(type.getCode()).putInt(accountId).putLong(amount);
+            crc.reset();
+            crc.update(active.array(), start, RECORD_SIZE - Integer.BYTES);
+            active.putInt((int) crc.getValue());
+
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all records appended so far are forced to disk. Wakes flusher instead of waiting for the rest
+     * of flush interval, records appended by other threads until flusher takes the batch share the same fsync.
+     * @return - false if interrupted or log was closed before records became durable
+     */
+    public boolean sync() {
+        lock.lock();
+        try {
+            long lsn = nextLsn - 1;
+            while (durableLsn < lsn) {
+                if (closed && (flusher == null || !flusher.isAlive())) {
+                    logger.warn("Transaction log closed before LSN {} became durable.", lsn);
+                    return false;
+                }
+                if (lsn > swappedLsn && !syncRequested) {
+                    syncRequested = true;
+                    pending.signal();
+                }
+                progress.await();
+            }
+
+            return true;
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for transaction log.");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - LSN of the last appended record
+     */
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return nextLsn - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks flusher to continue in new segment after the current batch is written.
+     */
+    public void roll() {
+        lock.lock();
+        try {
+            rollRequested = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes segments which contain only records up to given LSN. Written segment is never deleted.
+     * @param lsn - LSN of the oldest state which can be recovered without log
+     * @return - number of deleted segments
+     */
+    public int deleteBefore(long lsn) {
+        List<Long> deleted = new ArrayList<>();
+
+        lock.lock();
+        try {
+            while (segments.size() > 1 && segments.get(1) - 1 <= lsn) {
+                deleted.add(segments.remove(0));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (long first: deleted) {
+            try {
+                Files.deleteIfExists(segmentPath(first));
+            } catch (IOException e) {
+                logger.warn("Cannot delete transaction log segment " + segmentPath(first) + ".", e);
+            }
+        }
+
+        return deleted.size();
+    }
+
+    /**
+     * @return - last LSN forced to disk
+     */
+    public long getDurableLsn() {
+        lock.lock();
+        try {
+            return durableLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - number of performed fsyncs
+     */
+    public long getFlushes() {
+        lock.lock();
+        try {
+            return flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes all appended records, stops flusher and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.signal();
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+
+        logger.info("Transaction log {} closed, last LSN {}, {} flushes.", dir, getDurableLsn(), getFlushes());
+    }
+
+    private Path segmentPath(long first) {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, first, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Opens segment, creates it with header if it does not exist.
+     * @param first - LSN of the first record of segment
+     * @return - opened segment
+     * @throws IOException - if segment cannot be opened or is not a transaction log segment
+     */
+    private FileChannel openSegment(long first) throws IOException {
+        Path path = segmentPath(first);
+        FileChannel segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (segment.size() < HEADER_SIZE) {
+                header.putInt(MAGIC).put(VERSION).flip();
+                segment.truncate(0);
+                segment.write(header, 0);
+                segment.force(true);
+            }
+            else {
+                segment.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.get() != VERSION) {
+                    throw new IOException("File " + path + " is not a supported transaction log segment.");
+                }
+            }
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+
+        return segment;
+    }
+
+    /**
+     * Flusher loop. Waits for records, lets batch grow for flush interval (unless it is full, some thread waits for
+     * it, log is closed or new segment is requested), swaps buffers, forces the batch to disk and rolls segment if
+     * requested.
+     */
+    private void flush() {
+        long lastFlush = System.nanoTime() - flushInterval;
+
+        while (true) {
+            ByteBuffer batch;
+            long lastLsn;
+            boolean roll;
+
+            lock.lock();
+            try {
+                while (!closed && !rollRequested && (active.position() == 0
+                        || !full && !syncRequested && System.nanoTime() - lastFlush < flushInterval)) {
+                    if (active.position() == 0) {
+                        pending.awaitUninterruptibly();
+                    }
+                    else {
+                        pending.awaitNanos(flushInterval - (System.nanoTime() - lastFlush));
+                    }
+                }
+                if (active.position() == 0 && !rollRequested) {
+                    return; // closed and everything flushed
+                }
+
+                batch = active;
+                active = standby;
+                standby = batch;
+                full = false;
+                syncRequested = false;
+                lastLsn = nextLsn - 1;
+                swappedLsn = lastLsn;
+                roll = rollRequested;
+                rollRequested = false;
+                progress.signalAll();
+            } catch (InterruptedException e) {
+                logger.warn("Transaction log flusher interrupted.");
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            batch.flip();
+            if (batch.hasRemaining() && !write(batch)) {
+                logger.error("Transaction log {} closed with unwritten records after LSN {}.", file, durableLsn);
+                return;
+            }
+            batch.clear();
+            lastFlush = System.nanoTime();
+
+            if (roll) {
+                rollSegment(lastLsn + 1);
+            }
+
+            lock.lock();
+            try {
+                if (lastLsn > durableLsn) {
+                    durableLsn = lastLsn;
+                    flushes++;
+                }
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes written segment and continues in new one. Keeps the old segment if new one cannot be created.
+     * @param first - LSN of the first record of new segment
+     */
+    private void rollSegment(long first) {
+        lock.lock();
+        try {
+            if (first == segments.get(segments.size() - 1)) {
+                return; // current segment is empty
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            FileChannel next = openSegment(first);
+            next.position(next.size());
+
+            channel.close();
+            channel = next;
+            file = segmentPath(first);
+
+            lock.lock();
+            try {
+                segments.add(first);
+            } finally {
+                lock.unlock();
+            }
+
+            logger.debug("Transaction log continues in segment {}.", file);
+        } catch (IOException e) {
+            logger.error("Cannot start new transaction log segment.", e);
+        }
+    }
+
+    /**
+     * Writes and forces batch, retries until it succeeds or log is closed. Appenders are blocked by full buffer
+     * in meantime, so no operation is acknowledged without being durable.
+     * @param batch - batch of records
+     * @return - false if log was closed before batch was written
+     */
+    private boolean write(ByteBuffer batch) {
+        while (true) {
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+                return true;
+            } catch (IOException e) {
+                logger.error("Cannot write transaction log " + file + ", retrying.", e);
+            }
+
+            lock.lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                progress.awaitNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL));
+            } catch (InterruptedException e) {
+                logger.warn("Transaction log flusher interrupted.");
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -1,16 +1,31 @@
 package cz.kiv.zcu.ds.bankserver.util;
 
-import cz.kiv.zcu.ds.bankserver.domain.Account;
-import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.AccountsState;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
 import cz.kiv.zcu.ds.bankserver.domain.MessageType;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
- * Provides methods for storing and logging global state in memory.
+ * Provides methods for storing and logging global state in memory. Thread safe, each channel is guarded by its own
+ * monitor, so channels are recorded concurrently.
+ * <p>
+ * Recorded amounts are kept in growable primitive arrays indexed by channel, so recording does not allocate
+ * (except growing of the array) and costs about 8 bytes per message.
+ * <p>
+ * Delta logger (part of delta snapshot series) reports only change of balance since its base snapshot and keeps
+ * only sums of channels. It does not capture balances of individual accounts, so it costs constant time
+ * regardless of number of accounts and messages, but it cannot be used as checkpoint.
  */
 public class LocalStateLogger {
 
+    /**
+     * Initial capacity of channel history.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
      * ID of hosting node
      */
@@ -19,12 +34,34 @@ public class LocalStateLogger {
     /**
      * State of hosting node
      */
-    private int nodeState;
+    private long nodeState;
+
+    /**
+     * Balances of accounts of hosting node when logging started, null for delta logger
+     */
+    private AccountsState accountsState;
+
+    /**
+     * Base snapshot of delta logger, -1 for full logger
+     */
+    private long baseSnapshotId = -1;
+
+    /**
+     * State of hosting node recorded by base snapshot
+     */
+    private long baseState;
+
+    /**
+     * Time when logging started (System.nanoTime)
+     */
+    private long startedAt;
 
     /**
-     * History of messages from logging time interval divided by communication channel.
+     * History of messages from logging time interval indexed by communication channel (sender node ID),
+     * null for channels which are not logged. Replaced as a whole under monitor of logger, read without locking
+     * by workers recording messages.
      */
-    private Map<Integer, List<Integer>> channelsState;
+    private volatile ChannelState[] channelsState;
 
     /**
      * Defines which channels can be logged.
@@ -32,62 +69,92 @@ public class LocalStateLogger {
     private BitSet logging;
 
     /**
-     * Defines state logger
+     * Defines state logger and records state of accounts. No operation may run while it is created.
      * @param nodeIdx - hosting node ID
-     * @param account - account reference
+     * @param accounts - accounts of hosting node
      */
-    public LocalStateLogger(int nodeIdx, Account account) {
+    public LocalStateLogger(int nodeIdx, Accounts accounts) {
+        this(nodeIdx, accounts, 0);
+    }
+
+    /**
+     * Defines state logger and records state of accounts. No operation may run while it is created.
+     * @param nodeIdx - hosting node ID
+     * @param accounts - accounts of hosting node
+     * @param unsent - money already debited from accounts but not sent yet, part of node state
+     */
+    public LocalStateLogger(int nodeIdx, Accounts accounts, long unsent) {
         this.nodeIdx = nodeIdx;
-        this.nodeState = account.getBalance();
-        this.channelsState = new HashMap<>();
+        this.accountsState = accounts.captureState();
+        this.nodeState = accountsState.getTotal() + unsent;
+        this.startedAt = System.nanoTime();
+        this.channelsState = new ChannelState[0];
         this.logging = new BitSet();
     }
 
     /**
-     * Store message details.     *
-     * @param message - received message
+     * Defines delta state logger and records total balance. No operation may run while it is created.
+     * @param nodeIdx - hosting node ID
+     * @param accounts - accounts of hosting node
+     * @param unsent - money already debited from accounts but not sent yet, part of node state
+     * @param baseSnapshotId - base snapshot ID
+     * @param baseState - state of hosting node recorded by base snapshot
      */
-    public void saveMessage(Message message) {
-        if (channelsState.containsKey(message.getFrom())) {
-            storeAmount(channelsState.get(message.getFrom()), message);
-        }
-        else {
-            List<Integer> list = new ArrayList<>();
-            storeAmount(list, message);
-
-            channelsState.put(message.getFrom(), list);
-        }
+    public LocalStateLogger(int nodeIdx, Accounts accounts, long unsent, long baseSnapshotId, long baseState) {
+        this.nodeIdx = nodeIdx;
+        this.nodeState = accounts.getTotalBalance() + unsent;
+        this.baseSnapshotId = baseSnapshotId;
+        this.baseState = baseState;
+        this.startedAt = System.nanoTime();
+        this.channelsState = new ChannelState[0];
+        this.logging = new BitSet();
     }
 
     /**
-     * Store amount of transferred money.
-     * @param channel - reference to specific channel history
-     * @param message - received message
+     * Store message details. Thread safe.
+     * @param from - sender node ID
+     * @param type - type of bank request
+     * @param amount - amount of money
      */
-    private void storeAmount(List<Integer> channel, Message message) {
-        if (MessageType.CREDIT.toString().equals(message.getType())) {
-            channel.add(message.getNumData());
+    public void saveMessage(int from, MessageType type, int amount) {
+        ChannelState[] channels = channelsState;
+        if (from < 0 || from >= channels.length || channels[from] == null) {
+            return; // channel is not logged
+        }
+
+        if (type == MessageType.CREDIT) {
+            channels[from].add(amount);
         }
-        else if (MessageType.DEBIT.toString().equals(message.getType())) {
-            channel.add(-1 * message.getNumData());
+        else if (type == MessageType.DEBIT) {
+            channels[from].add(-1L * amount);
         }
     }
 
     /**
-     * Enables logging for all specified nodes based on their ID.     *
+     * Enables logging for all specified nodes based on their ID. Must be called before any message is saved.
      * @param nodeIdxs - array of nodes IDs
      */
-    public void startLogging(int[] nodeIdxs) {
+    public synchronized void startLogging(int[] nodeIdxs) {
+        int length = channelsState.length;
+        for (int nodeIdx : nodeIdxs) {
+            length = Math.max(length, nodeIdx + 1);
+        }
+
+        ChannelState[] channels = Arrays.copyOf(channelsState, length);
         for (int nodeIdx : nodeIdxs) {
             logging.set(nodeIdx);
+            if (channels[nodeIdx] == null) {
+                channels[nodeIdx] = new ChannelState(!isDelta());
+            }
         }
+        channelsState = channels;
     }
 
     /**
      * Disable logging messages from specified hosting node.
      * @param nodeIdx - node ID
      */
-    public void stopLogging(int nodeIdx) {
+    public synchronized void stopLogging(int nodeIdx) {
         logging.clear(nodeIdx);
     }
 
@@ -96,7 +163,7 @@ public class LocalStateLogger {
      * @param nodeIdx - node ID
      * @return - true = node is logged
      */
-    public boolean isLogging(int nodeIdx) {
+    public synchronized boolean isLogging(int nodeIdx) {
         return logging.get(nodeIdx);
     }
 
@@ -104,10 +171,124 @@ public class LocalStateLogger {
      * Checks if is logging disabled for all nodes.
      * @return - true = logging disabled for all nodes
      */
-    public boolean isLoggingDone() {
+    public synchronized boolean isLoggingDone() {
         return logging.isEmpty();
     }
 
+    /**
+     * @return - recorded state of hosting node
+     */
+    public long getNodeState() {
+        return nodeState;
+    }
+
+    /**
+     * @return - true if logger reports only changes since its base snapshot
+     */
+    public boolean isDelta() {
+        return baseSnapshotId >= 0;
+    }
+
+    /**
+     * @return - recorded balances of accounts of hosting node, null for delta logger
+     */
+    public AccountsState getAccountsState() {
+        return accountsState;
+    }
+
+    /**
+     * @return - ID of hosting node
+     */
+    public int getNodeIdx() {
+        return nodeIdx;
+    }
+
+    /**
+     * @return - IDs of recorded channels (sender node IDs) in ascending order
+     */
+    public int[] getChannels() {
+        ChannelState[] channels = channelsState;
+        int count = 0;
+        for (ChannelState channel: channels) {
+            if (channel != null) {
+                count++;
+            }
+        }
+
+        int[] result = new int[count];
+        for (int i = 0, j = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                result[j++] = i;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param nodeIdx - channel (sender node ID)
+     * @return - copy of amounts recorded in channel, credits positive, debits negative, empty for delta logger
+     */
+    public long[] getChannelAmounts(int nodeIdx) {
+        ChannelState channel = channel(nodeIdx);
+        return channel == null ? new long[0] : channel.amounts();
+    }
+
+    /**
+     * @param nodeIdx - channel (sender node ID)
+     * @return - sum of credits recorded in channel
+     */
+    public long getCreditSum(int nodeIdx) {
+        ChannelState channel = channel(nodeIdx);
+        return channel == null ? 0 : channel.creditSum();
+    }
+
+    /**
+     * @param nodeIdx - channel (sender node ID)
+     * @return - sum of debits recorded in channel
+     */
+    public long getDebitSum(int nodeIdx) {
+        ChannelState channel = channel(nodeIdx);
+        return channel == null ? 0 : channel.debitSum();
+    }
+
+    private ChannelState channel(int nodeIdx) {
+        ChannelState[] channels = channelsState;
+        return nodeIdx >= 0 && nodeIdx < channels.length ? channels[nodeIdx] : null;
+    }
+
+    /**
+     * Composes structured report from CL algorithm for this node.
+     * @param snapshotId - snapshot ID
+     * @return - local state of this node
+     */
+    public LocalState toLocalState(long snapshotId) {
+        LocalState state = new LocalState();
+        state.setSnapshotId(snapshotId);
+        state.setNodeId(nodeIdx);
+        if (isDelta()) {
+            state.setBaseSnapshotId(baseSnapshotId);
+            state.setBalance(nodeState - baseState);
+        }
+        else {
+            state.setBalance(nodeState);
+        }
+
+        ChannelState[] channels = channelsState;
+        for (ChannelState channel: channels) {
+            if (channel != null) {
+                synchronized (channel) {
+                    state.setCreditsInFlight(state.getCreditsInFlight() + channel.creditSum);
+                    state.setDebitsInFlight(state.getDebitsInFlight() + channel.debitSum);
+                    state.setRecordedMessages(state.getRecordedMessages() + channel.count);
+                }
+            }
+        }
+        state.setRecordingTime((System.nanoTime() - startedAt) / 1000);
+
+        return state;
+    }
+
     /**
      * Composes report from CL algorithm for this node.
      * @return - formatted report message
@@ -120,14 +301,77 @@ public class LocalStateLogger {
         sb.append("STATE OF NODE No.").append(nodeIdx).append("\n");
         sb.append("Amount: ").append(nodeState).append("\n");
 
-        for (Map.Entry<Integer, List<Integer>> entry: channelsState.entrySet()) {
-            sb.append("Channel: ").append(entry.getKey()).append(" => ").append(nodeIdx).append("\n");
-            for (Integer amount: entry.getValue()) {
-                sb.append(amount).append(",- CZK").append("\n");
+        ChannelState[] channels = channelsState;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                channels[i].appendTo(sb, i, nodeIdx);
             }
         }
         sb.append("---------------------------------------------------------------\n");
 
         return sb.toString();
     }
+
+    /**
+     * Recorded history of one channel with running sums.
+     */
+    private static class ChannelState {
+
+        /**
+         * Recorded amounts, null if only sums are kept
+         */
+        private long[] amounts;
+
+        private int count;
+
+        private long creditSum;
+
+        private long debitSum;
+
+        private ChannelState(boolean history) {
+            this.amounts = history ? new long[INITIAL_CAPACITY] : null;
+        }
+
+        private synchronized void add(long amount) {
+            if (amounts != null) {
+                if (count == amounts.length) {
+                    amounts = Arrays.copyOf(amounts, count * 2);
+                }
+                amounts[count] = amount;
+            }
+            count++;
+
+            if (amount >= 0) {
+                creditSum += amount;
+            }
+            else {
+                debitSum -= amount;
+            }
+        }
+
+        private synchronized long[] amounts() {
+            return amounts == null ? new long[0] : Arrays.copyOf(amounts, count);
+        }
+
+        private synchronized long creditSum() {
+            return creditSum;
+        }
+
+        private synchronized long debitSum() {
+            return debitSum;
+        }
+
+        private synchronized void appendTo(StringBuilder sb, int from, int to) {
+            if (count == 0) {
+                return;
+            }
+
+            sb.append("Channel: ").append(from).append(" => ").append(to).append("\n");
+            for (int i = 0; amounts != null && i < count; i++) {
+                sb.append(amounts[i]).append(",- CZK").append("\n");
+            }
+            sb.append("Sum: +").append(creditSum).append(" / -").append(debitSum).append(",- CZK").append("\n");
+        }
+
+    }
 }
@@ -0,0 +1,63 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits rate of log messages of one kind on hot path, e.g. error logged for each malformed message. At most
+ * given number of messages is allowed per second, others are only counted and the count is reported with the
+ * next allowed message. Thread safe and does not allocate.
+ */
+public class LogLimiter {
+
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Max number of messages per second
+     */
+    private final int limit;
+
+    /**
+     * Start of current window (System.nanoTime)
+     */
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    /**
+     * Number of messages in current window
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Number of messages suppressed since the last allowed one
+     */
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Defines limiter.
+     * @param limit - max number of messages per second
+     */
+    public LogLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Checks if message may be logged now.
+     * @return - number of messages suppressed since the last allowed one, -1 if this message must be suppressed
+     */
+    public long acquire() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= WINDOW && windowStart.compareAndSet(start, now)) {
+            count.set(0);
+        }
+
+        if (count.incrementAndGet() > limit) {
+            suppressed.incrementAndGet();
+            return -1;
+        }
+
+        return suppressed.getAndSet(0);
+    }
+
+}
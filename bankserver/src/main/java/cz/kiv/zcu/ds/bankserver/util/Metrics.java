@@ -0,0 +1,160 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of metrics of hosting node. Counters are {@link LongAdder}s and histograms are HdrHistogram
+ * {@link Recorder}s, so recording is wait-free and does not allocate. Hot paths resolve their metrics once and
+ * keep references to them, registry maps are used only on registration and when metrics are read.
+ * <p>
+ * Metric name may contain labels in Prometheus style, e.g. {@code messages_received_total{type="CREDIT"}}.
+ * Histograms are cumulative since start and are exposed as count, max and quantiles.
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * Precision of histograms (significant decimal digits).
+     */
+    private static final int HISTOGRAM_PRECISION = 3;
+
+    /**
+     * Reported quantiles of histograms.
+     */
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Timer> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns counter with given name, creates it if it does not exist.
+     * @param name - metric name
+     * @return - counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Returns counters of given name labelled by enum constants, creates them if they do not exist.
+     * @param name - metric name
+     * @param label - name of the label
+     * @param values - all constants of the enum
+     * @return - counters indexed by ordinal of the constant
+     */
+    public LongAdder[] counters(String name, String label, Enum<?>[] values) {
+        LongAdder[] result = new LongAdder[values.length];
+        for (Enum<?> value: values) {
+            result[value.ordinal()] = counter(name + "{" + label + "=\"" + value.name() + "\"}");
+        }
+
+        return result;
+    }
+
+    /**
+     * Registers gauge with given name, replaces previous one.
+     * @param name - metric name
+     * @param gauge - supplier of current value, must be thread safe
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns histogram with given name, creates it if it does not exist.
+     * @param name - metric name, should contain unit
+     * @return - recorder of histogram values
+     */
+    public Recorder histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Timer()).recorder;
+    }
+
+    /**
+     * Reads all metrics. Histograms are flattened into count, max and quantile values.
+     * @return - current values by metric name, sorted by name
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> result = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> e: counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> e: gauges.entrySet()) {
+            result.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Timer> e: histograms.entrySet()) {
+            Histogram h = e.getValue().collect();
+            String name = e.getKey();
+            result.put(withSuffix(name, "_count"), h.getTotalCount());
+            result.put(withSuffix(name, "_max"), h.getMaxValue());
+            for (double q: QUANTILES) {
+                result.put(withLabel(name, "quantile=\"" + q + "\""), h.getValueAtPercentile(q * 100));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Formats all metrics in Prometheus text format, one metric per line.
+     * @return - formatted metrics
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e: values().entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private static String withSuffix(String name, String suffix) {
+        int labels = name.indexOf('{');
+        return labels < 0 ? name + suffix : name.substring(0, labels) + suffix + name.substring(labels);
+    }
+
+    private static String withLabel(String name, String label) {
+        return name.endsWith("}")
+                ? name.substring(0, name.length() - 1) + "," + label + "}"
+                : name + "{" + label + "}";
+    }
+
+    /**
+     * Histogram recorded concurrently and accumulated when it is read.
+     */
+    private static class Timer {
+
+        private final Recorder recorder = new Recorder(HISTOGRAM_PRECISION);
+
+        private final Histogram total = new Histogram(HISTOGRAM_PRECISION);
+
+        private Histogram interval;
+
+        private synchronized Histogram collect() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+
+            return total.copy();
+        }
+
+    }
+
+}
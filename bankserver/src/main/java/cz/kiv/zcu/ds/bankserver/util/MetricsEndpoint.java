@@ -0,0 +1,178 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Exports {@link Metrics} of hosting node as plain text over HTTP ({@code GET /metrics}) and as attributes of
+ * JMX bean {@code cz.kiv.zcu.ds.bankserver:type=Metrics,node=N}. Metrics are read only when requested.
+ * <p>
+ * HTTP endpoint also switches per-message {@link Tracing} ({@code GET /trace?on}, {@code /trace?off}, without
+ * query returns current state).
+ */
+public class MetricsEndpoint implements DynamicMBean {
+
+    private static Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private final Metrics metrics;
+
+    private final ObjectName name;
+
+    private HttpServer http;
+
+    /**
+     * Defines endpoint of specified hosting node.
+     * @param nodeIdx - hosting node ID
+     * @param metrics - exported metrics
+     */
+    public MetricsEndpoint(int nodeIdx, Metrics metrics) {
+        this.metrics = metrics;
+
+        try {
+            this.name = new ObjectName("cz.kiv.zcu.ds.bankserver:type=Metrics,node=" + nodeIdx);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Registers JMX bean and starts HTTP server.
+     * @param port - HTTP port, 0 = metrics are exported only by JMX
+     * @throws IOException - if HTTP server cannot be started
+     */
+    public void start(int port) throws IOException {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot register metrics bean " + name + ".", e);
+        }
+
+        if (port > 0) {
+            http = HttpServer.create(new InetSocketAddress(port), 0);
+            http.createContext("/metrics", this::handle);
+            http.createContext("/trace", this::handleTrace);
+            http.start();
+            logger.info("Metrics available on http://localhost:{}/metrics", port);
+        }
+    }
+
+    /**
+     * Stops HTTP server and unregisters JMX bean.
+     */
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot unregister metrics bean " + name + ".", e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void handleTrace(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        if ("on".equals(query) || "off".equals(query)) {
+            Tracing.setEnabled("on".equals(query));
+            logger.info("Per-message tracing switched {}.", query);
+        }
+
+        byte[] body = ("trace " + (Tracing.isEnabled() ? "on" : "off") + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // JMX - each metric is read-only attribute
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metrics.values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only.");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = metrics.values();
+
+        AttributeList result = new AttributeList();
+        for (String attribute: attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                result.add(new Attribute(attribute, value));
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics bean has no operations.");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> values = metrics.values();
+
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String attribute: values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(attribute, "long", attribute, true, false, false);
+        }
+
+        return new MBeanInfo(getClass().getName(), "Metrics of bank node", attributes, null, null, null);
+    }
+
+}
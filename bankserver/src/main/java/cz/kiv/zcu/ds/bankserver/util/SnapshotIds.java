@@ -0,0 +1,47 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+/**
+ * Globally unique snapshot IDs. Each node assigns IDs of snapshots it initiates from its own range, so snapshots
+ * initiated concurrently by different nodes never collide. Layout of ID (always positive):
+ * <pre>
+ * bits 48-62  ID of initiating node
+ * bits 16-47  epoch - time of start of initiating node in seconds
+ * bits 0-15   counter of snapshots initiated since start
+ * </pre>
+ * Counter overflows into epoch, so IDs of one node keep increasing across restarts as long as node initiates
+ * less than 65536 snapshots per second on average.
+ */
+public class SnapshotIds {
+
+    /**
+     * Max number of nodes which can initiate snapshots.
+     */
+    public static final int MAX_NODES = 1 << 15;
+
+    private static final int NODE_SHIFT = 48;
+
+    private static final int EPOCH_SHIFT = 16;
+
+    /**
+     * Returns the first ID of snapshots initiated by node started now.
+     * @param nodeIdx - initiating node ID
+     * @return - snapshot ID
+     */
+    public static long first(int nodeIdx) {
+        if (nodeIdx < 0 || nodeIdx >= MAX_NODES) {
+            throw new IllegalArgumentException("Node " + nodeIdx + " cannot initiate snapshots.");
+        }
+
+        long epoch = System.currentTimeMillis() / 1000;
+        return ((long) nodeIdx << NODE_SHIFT) | (epoch << EPOCH_SHIFT);
+    }
+
+    /**
+     * @param snapshotId - snapshot ID
+     * @return - ID of node which initiated the snapshot
+     */
+    public static int initiator(long snapshotId) {
+        return (int) (snapshotId >>> NODE_SHIFT);
+    }
+
+}
@@ -0,0 +1,50 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Runtime switch of per-message tracing. Messages, bank requests and sends are logged at trace level, which is
+ * disabled by configuration, so hot path only checks the level. Tracing enables trace level of all loggers of
+ * the application, disabling it restores configured level.
+ */
+public class Tracing {
+
+    /**
+     * Parent logger of the application
+     */
+    private static final String LOGGER = "cz.kiv.zcu.ds.bankserver";
+
+    /**
+     * Level configured before tracing was enabled
+     */
+    private static Level configured;
+
+    /**
+     * Enables or disables per-message tracing.
+     * @param enabled - true = log each message
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if (enabled == isEnabled()) {
+            return;
+        }
+
+        if (enabled) {
+            configured = LogManager.getLogger(LOGGER).getLevel();
+            Configurator.setLevel(LOGGER, Level.TRACE);
+        }
+        else {
+            Configurator.setLevel(LOGGER, configured == null || configured.isLessSpecificThan(Level.TRACE)
+                    ? Level.DEBUG : configured);
+        }
+    }
+
+    /**
+     * @return - true if each message is logged
+     */
+    public static boolean isEnabled() {
+        return LogManager.getLogger(LOGGER).isTraceEnabled();
+    }
+
+}
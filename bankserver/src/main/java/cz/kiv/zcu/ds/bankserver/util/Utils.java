@@ -1,58 +1,37 @@
 package cz.kiv.zcu.ds.bankserver.util;
 
-import com.google.gson.Gson;
 import cz.kiv.zcu.ds.bankserver.config.Config;
-import cz.kiv.zcu.ds.bankserver.domain.Message;
 import cz.kiv.zcu.ds.bankserver.domain.MessageType;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Provides methods for generating random data for bank requests and methods for JSON serialization/deserialization.
+ * Provides methods for generating random data for bank requests. Each thread uses its own random generator,
+ * so concurrent load generators do not contend.
  */
 public class Utils {
 
-    // Used references
-    private static Random r = new Random();
-    private static Gson gson = new Gson();
-
-    /**
-     * Deserialize JSON and return message.
-     * @param msg  - serialized version of message in JSON format
-     * @return - custom ZeroMq message
-     */
-    public static Message deserialize(String msg) {
-        return gson.fromJson(msg, Message.class);
-    }
-
-    /**
-     * Serialize ZeroMQ message into string version of JSON.
-     * @param message - ZeroMQ message
-     * @return - serialized JSON
-     */
-    public static String serialize(Message message) {
-        return gson.toJson(message);
-    }
-
     /**
      * Generates uniformly distributed random sleep time in range <MIN_SLEEP_TIME, SLEEP_TIME_INTERVAL_LENGTH + MIN_SLEEP_TIME>.
      * @return - uniformly distributed random sleep time
      */
     public static int getUDRSleepTime() {
-        int rand_time = r.nextInt(Config.SLEEP_TIME_INTERVAL_LENGTH) + Config.MIN_SLEEP_TIME;
+        int rand_time = ThreadLocalRandom.current().nextInt(Config.SLEEP_TIME_INTERVAL_LENGTH) + Config.MIN_SLEEP_TIME;
         return rand_time * 1000;
     }
 
     /**
-     * Generates uniformly distributed random node ID from range <0, number of nodes in config file> except
-     * hosting node ID.
+     * Generates uniformly distributed random node ID from active neighbours of hosting node.
      * @param nodeNumber - hosting node ID
-     * @return - uniformly distributed random node ID
+     * @return - uniformly distributed random node ID, -1 if hosting node has no neighbours
      */
     public static int getUDRNodeIdx(int nodeNumber) {
-        int[] neighbours = Config.getNode(nodeNumber).getNeighbours();
+        int[] neighbours = Config.activeNeighbours(nodeNumber);
+        if (neighbours.length == 0) {
+            return -1;
+        }
 
-        int idx = r.nextInt(neighbours.length);
+        int idx = ThreadLocalRandom.current().nextInt(neighbours.length);
         return neighbours[idx];
     }
 
@@ -63,18 +42,36 @@ public class Utils {
     public static int getUDRAmount() {
         final int interval_length = Config.MAX_AMOUNT - Config.MIN_AMOUNT;
 
-        return r.nextInt(interval_length) + Config.MIN_AMOUNT;
+        return ThreadLocalRandom.current().nextInt(interval_length) + Config.MIN_AMOUNT;
     }
 
     /**
      * Generates uniformly distributed random bank operation (message type) from options CREDIT or DEBIT.
      * @return - uniformly distributed random bank operation
      */
-    public static String getUDRBankOperation() {
-        double number = r.nextDouble();
+    public static MessageType getUDRBankOperation() {
+        return getBankOperation(0.5);
+    }
+
+    /**
+     * Generates random bank operation with given share of CREDIT operations.
+     * @param creditRatio - probability of CREDIT operation in range <0, 1>
+     * @return - random bank operation
+     */
+    public static MessageType getBankOperation(double creditRatio) {
+        double number = ThreadLocalRandom.current().nextDouble();
 
-        if (number <= 0.5) return MessageType.CREDIT.toString();
-        else return MessageType.DEBIT.toString();
+        if (number < creditRatio) return MessageType.CREDIT;
+        else return MessageType.DEBIT;
+    }
+
+    /**
+     * Generates exponentially distributed random time, i.e. interarrival time of Poisson process.
+     * @param mean - mean time
+     * @return - exponentially distributed random time
+     */
+    public static long getExponential(long mean) {
+        return (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * mean);
     }
 
 }
@@ -0,0 +1,79 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories of virtual threads (JDK 21+). Project is compiled for Java 8, so virtual threads are created by
+ * reflection. On older JDK factories fall back to platform daemon threads, which behave the same, only each
+ * thread is more expensive.
+ */
+public class VirtualThreads {
+
+    private static Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * {@code Thread.ofVirtual()}, null if virtual threads are not available
+     */
+    private static final Method ofVirtual;
+
+    /**
+     * {@code Thread.Builder.name(String, long)} and {@code Thread.Builder.factory()}
+     */
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method o = null;
+        Method n = null;
+        Method f = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            o = Thread.class.getMethod("ofVirtual");
+            n = builder.getMethod("name", String.class, long.class);
+            f = builder.getMethod("factory");
+
+            o.invoke(null); // preview API of JDK 19 and 20 throws if preview is not enabled
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            o = null;
+        }
+
+        ofVirtual = o;
+        name = n;
+        factory = f;
+    }
+
+    /**
+     * @return - true if JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Creates factory of threads named {@code prefix0}, {@code prefix1}, ...
+     * @param prefix - prefix of thread names
+     * @return - factory of virtual threads, or of platform daemon threads if virtual threads are not available
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (ofVirtual != null) {
+            try {
+                return (ThreadFactory) factory.invoke(name.invoke(ofVirtual.invoke(null), prefix, 0L));
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Cannot create virtual thread factory, using platform threads.", e);
+            }
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + next.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+}
@@ -0,0 +1,295 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Restores FIFO order of one inbound channel (messages from one sender) and hands its messages to workers.
+ * Chandy-Lamport algorithm needs FIFO channels, so messages are released strictly by their sequence numbers
+ * assigned by sender's {@link Outbox}. Messages received ahead of order are buffered until the missing ones
+ * come, duplicates are dropped. Transport does not lose messages (socket of outbox is never recreated), so gap is
+ * never skipped on timeout. Only broken sender can cause gap which is not filled - when more than
+ * {@link #MAX_BUFFERED} messages wait for it, order of the channel is given up and all its messages are released
+ * as they come, so money they carry is never dropped.
+ * <p>
+ * In ordered mode all messages are handled one by one by worker of the channel. In parallel mode bank requests
+ * are spread over all workers and MARKER is a barrier - it is handled only after all earlier messages of the
+ * channel are finished and later messages are started only after the MARKER is finished.
+ * <p>
+ * Messages without sequence number (e.g. from external clients) are released immediately.
+ * <p>
+ * Handled and dropped messages are returned to {@link MessagePool}.
+ */
+class ChannelSequencer {
+
+    private static Logger logger = LoggerFactory.getLogger(ChannelSequencer.class);
+
+    /**
+     * Max number of messages buffered ahead of a gap, order of the channel is given up when exceeded.
+     */
+    static final int MAX_BUFFERED = 4096;
+
+    // Metrics
+    private static final LongAdder reordered = Metrics.getInstance().counter("messages_reordered_total");
+    private static final LongAdder duplicates = Metrics.getInstance().counter("messages_duplicate_total");
+    private static final LongAdder unordered = Metrics.getInstance().counter("channels_unordered_total");
+
+    /**
+     * Executor running messages on thread which offers them, messages are then handled without allocation
+     */
+    static final Executor DIRECT = Runnable::run;
+
+    /**
+     * Sender node ID
+     */
+    private final int channel;
+
+    /**
+     * Worker of the channel, handles all messages in ordered mode and MARKERs in parallel mode
+     */
+    private final Executor worker;
+
+    /**
+     * Workers handling bank requests in parallel mode, null = ordered mode
+     */
+    private final Executor[] parallel;
+
+    private final MessageHandler handler;
+
+    private final MessagePool pool;
+
+    // State guarded by monitor of this object
+
+    /**
+     * Sequence number of the next released message, 0 = no sequenced message received yet
+     */
+    private long next;
+
+    /**
+     * Messages received ahead of order by their sequence numbers
+     */
+    private final TreeMap<Long, Message> early = new TreeMap<>();
+
+    /**
+     * True if order was given up because of gap which was not filled, messages are released as they come
+     */
+    private boolean broken;
+
+    /**
+     * Released messages not started yet because of barrier (parallel mode)
+     */
+    private final ArrayDeque<Message> waiting = new ArrayDeque<>();
+
+    /**
+     * Number of started and not finished messages (parallel mode)
+     */
+    private int running;
+
+    /**
+     * True while MARKER is handled (parallel mode)
+     */
+    private boolean barrier;
+
+    private int nextWorker;
+
+    /**
+     * Creates sequencer of one channel.
+     * @param channel - sender node ID
+     * @param worker - worker of the channel
+     * @param parallel - workers handling bank requests in parallel, null = all messages are handled by worker of
+     *                   the channel
+     * @param handler - handler of released messages
+     * @param pool - pool of received messages
+     */
+    ChannelSequencer(int channel, Executor worker, Executor[] parallel, MessageHandler handler, MessagePool pool) {
+        this.channel = channel;
+        this.worker = worker;
+        this.parallel = parallel;
+        this.handler = handler;
+        this.pool = pool;
+    }
+
+    /**
+     * Accepts received message and releases all messages which are in order.
+     * @param message - received message
+     */
+    synchronized void offer(Message message) {
+        long sequence = message.getSequence();
+        if (sequence == 0 || (broken && sequence != 1)) {
+            release(message);
+            return;
+        }
+
+        if (next == 0 || (sequence == 1 && next > 1)) {
+            if (next > 1) {
+                // messages before gap were lost with sender, messages after it were sent and must be handled
+                logger.info("Channel from node {} restarted, {} buffered messages released.", channel,
+                        early.size());
+                releaseAll();
+            }
+            next = sequence;
+            broken = false;
+        }
+
+        if (sequence < next) {
+            duplicates.increment();
+            pool.release(message);
+            return;
+        }
+
+        if (sequence > next) {
+            Message duplicate = early.put(sequence, message);
+            if (duplicate != null) {
+                duplicates.increment();
+                pool.release(duplicate);
+            }
+            reordered.increment();
+
+            if (early.size() > MAX_BUFFERED) {
+                logger.error("Message {} from node {} is missing and {} later messages wait for it, order of the "
+                        + "channel is given up.", next, channel, early.size());
+                unordered.increment();
+                broken = true;
+                releaseAll();
+            }
+            return;
+        }
+
+        release(message);
+        next++;
+        releaseBuffered();
+    }
+
+    /**
+     * Waits until all released messages are handled. Messages must not be offered meanwhile.
+     * @param timeout - max waiting time
+     * @param unit - unit of timeout
+     * @return - true if no released message is waiting or being handled
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (running > 0 || !waiting.isEmpty()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+
+        return true;
+    }
+
+    /**
+     * Releases buffered messages following the last released one.
+     */
+    private void releaseBuffered() {
+        Map.Entry<Long, Message> first;
+        while ((first = early.firstEntry()) != null && first.getKey() == next) {
+            early.pollFirstEntry();
+            release(first.getValue());
+            next++;
+        }
+    }
+
+    /**
+     * Releases all buffered messages in order of their sequence numbers regardless of gaps.
+     */
+    private void releaseAll() {
+        Map.Entry<Long, Message> first;
+        while ((first = early.pollFirstEntry()) != null) {
+            release(first.getValue());
+        }
+    }
+
+    /**
+     * Hands message which is in order to workers.
+     * @param message - message in order
+     */
+    private void release(Message message) {
+        if (parallel == null) {
+            if (worker == DIRECT) {
+                handle(message);
+            }
+            else {
+                worker.execute(() -> handle(message));
+            }
+            return;
+        }
+
+        waiting.add(message);
+        start();
+    }
+
+    /**
+     * Starts waiting messages up to the next MARKER, MARKER is started when all earlier messages finished.
+     */
+    private void start() {
+        Message message;
+        while (!barrier && (message = waiting.peek()) != null) {
+            Executor executor;
+            if (message.getType() == MessageType.MARKER) {
+                if (running > 0) {
+                    return;
+                }
+                barrier = true;
+                executor = worker;
+            }
+            else {
+                executor = parallel[nextWorker];
+                nextWorker = (nextWorker + 1) % parallel.length;
+            }
+
+            waiting.poll();
+            running++;
+            final Message started = message;
+            executor.execute(() -> {
+                try {
+                    handler.handle(started);
+                } finally {
+                    finished(started);
+                    pool.release(started);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles message and returns it to pool.
+     * @param message - message in order
+     */
+    private void handle(Message message) {
+        try {
+            handler.handle(message);
+        } finally {
+            pool.release(message);
+        }
+    }
+
+    /**
+     * Marks started message as handled and starts messages which were waiting for it.
+     * @param message - handled message
+     */
+    private synchronized void finished(Message message) {
+        running--;
+        if (message.getType() == MessageType.MARKER) {
+            barrier = false;
+        }
+        start();
+
+        if (running == 0) {
+            notifyAll();
+        }
+    }
+
+}
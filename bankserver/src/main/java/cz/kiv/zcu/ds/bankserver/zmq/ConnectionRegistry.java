@@ -0,0 +1,276 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
+import cz.kiv.zcu.ds.bankserver.config.Config;
+import cz.kiv.zcu.ds.bankserver.config.TopologyListener;
+import cz.kiv.zcu.ds.bankserver.domain.Node;
+import cz.kiv.zcu.ds.bankserver.domain.Nodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Outbound connections of hosting node built on one shared ZeroMQ context. Connections to all neighbours and
+ * to the report collector are opened eagerly at startup, so sending is only an array lookup. Each connection
+ * is an {@link Outbox} whose writer thread is the only owner of the socket.
+ * <p>
+ * When topology changes, connections to nodes which left or changed their address are closed and connections
+ * to new neighbours are opened.
+ */
+public class ConnectionRegistry implements TopologyListener {
+
+    private static Logger logger = LoggerFactory.getLogger(ConnectionRegistry.class);
+
+    /**
+     * Node which collects results of CL algorithm.
+     */
+    public static final int REPORT_NODE = Config.REPORT_NODE;
+
+    /**
+     * Channel of reports is identified as node ID + offset, so it is not mixed with bank channel of the node
+     */
+    public static final int REPORT_CHANNEL_OFFSET = 550;
+
+    /**
+     * Hosting node ID
+     */
+    private final int selfNodeNumber;
+
+    private final ZContext context = new ZContext();
+
+    /**
+     * Outbound channels indexed by target node ID. Replaced as a whole (copy on write) when new channel is
+     * opened lazily.
+     */
+    private volatile Outbox[] channels;
+
+    /**
+     * Channel for reports of CL algorithm
+     */
+    private volatile Outbox reportChannel;
+
+    private volatile boolean closed;
+
+    /**
+     * Defines registry of specified hosting node.
+     * @param selfNodeNumber - hosting node ID
+     */
+    public ConnectionRegistry(int selfNodeNumber) {
+        this.selfNodeNumber = selfNodeNumber;
+        this.channels = new Outbox[Config.nodesCount()];
+    }
+
+    /**
+     * Opens connections to all neighbours from configuration and to the report collector.
+     */
+    public synchronized void connectAll() {
+        int[] neighbours = Config.activeNeighbours(selfNodeNumber);
+        for (int neighbour: neighbours) {
+            channel(neighbour);
+        }
+        reportChannel();
+
+        logger.info("Opened {} outbound connections.", neighbours.length + 1);
+    }
+
+    /**
+     * Closes connections which do not match new topology and opens connections to new neighbours.
+     * @param previous - previous topology
+     * @param current - new topology
+     */
+    @Override
+    public synchronized void topologyChanged(Nodes previous, Nodes current) {
+        if (closed || !Config.isActive(selfNodeNumber)) {
+            return;
+        }
+
+        Outbox[] updated = channels.clone();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] != null && !matches(updated[i], i, channelPort(i))) {
+                logger.info("Closing connection {} ({}).", updated[i].getName(), updated[i].getEndpoint());
+                updated[i].close();
+                updated[i] = null;
+            }
+        }
+        channels = updated;
+
+        if (reportChannel != null
+                && !matches(reportChannel, REPORT_NODE, reportPort())) {
+            logger.info("Closing connection {} ({}).", reportChannel.getName(), reportChannel.getEndpoint());
+            reportChannel.close();
+            reportChannel = null;
+        }
+
+        connectAll();
+    }
+
+    /**
+     * Checks if opened channel still leads to active target on its current address.
+     * @param outbox - opened channel
+     * @param targetNodeIdx - target node ID
+     * @param port - current port of the channel
+     * @return - false if channel must be closed
+     */
+    private boolean matches(Outbox outbox, int targetNodeIdx, int port) {
+        Node node = Config.getNode(targetNodeIdx);
+
+        return node != null && node.isActive() && outbox.getEndpoint().equals(endpoint(node.getIp(), port))
+                && outbox.getCodec() == Codecs.forName(node.getCodec());
+    }
+
+    /**
+     * Returns channel to target node, opens it if it is not opened yet.
+     * Target listens on port assigned to sender by {@link Config#ports()} to distinguish channels, or on its
+     * ROUTER port, which distinguishes channels by identity of DEALER socket.
+     * @param targetNodeIdx - target node ID
+     * @return - outbound channel
+     */
+    Outbox channel(int targetNodeIdx) {
+        Outbox[] current = channels;
+        if (targetNodeIdx < current.length && current[targetNodeIdx] != null) {
+            return current[targetNodeIdx];
+        }
+
+        return open(targetNodeIdx);
+    }
+
+    /**
+     * Returns channel for reports of CL algorithm. Collector listens on port assigned to sender's reports.
+     * @return - outbound channel
+     */
+    Outbox reportChannel() {
+        Outbox channel = reportChannel;
+        if (channel != null) {
+            return channel;
+        }
+
+        synchronized (this) {
+            checkOpened();
+            if (reportChannel == null) {
+                Node node = Config.getNode(REPORT_NODE);
+                reportChannel = new Outbox("report", context, endpoint(node.getIp(), reportPort()),
+                        Codecs.forName(node.getCodec()), identity(REPORT_CHANNEL_OFFSET + selfNodeNumber));
+            }
+
+            return reportChannel;
+        }
+    }
+
+    /**
+     * Opens channel to target node.
+     * @param targetNodeIdx - target node ID
+     * @return - outbound channel
+     */
+    private synchronized Outbox open(int targetNodeIdx) {
+        checkOpened();
+
+        Outbox[] current = channels;
+        if (targetNodeIdx < current.length && current[targetNodeIdx] != null) {
+            return current[targetNodeIdx];
+        }
+
+        Node node = Config.getNode(targetNodeIdx);
+        if (node == null || !node.isActive()) {
+            throw new IllegalStateException("Node " + targetNodeIdx + " is not in topology.");
+        }
+        Outbox outbox = new Outbox(targetNodeIdx + "", context, endpoint(node.getIp(), channelPort(targetNodeIdx)),
+                Codecs.forName(node.getCodec()), identity(selfNodeNumber));
+
+        Outbox[] updated = Arrays.copyOf(current, Math.max(current.length, targetNodeIdx + 1));
+        updated[targetNodeIdx] = outbox;
+        channels = updated;
+
+        return outbox;
+    }
+
+    /**
+     * @param targetNodeIdx - target node ID
+     * @return - port of channel to target in current topology
+     */
+    private int channelPort(int targetNodeIdx) {
+        return Config.isRouterTransport()
+                ? Config.ports().nodePort(targetNodeIdx)
+                : Config.ports().channelPort(targetNodeIdx, selfNodeNumber);
+    }
+
+    /**
+     * @return - port of channel for reports in current topology
+     */
+    private int reportPort() {
+        return Config.isRouterTransport()
+                ? Config.ports().nodePort(REPORT_NODE)
+                : Config.ports().reportPort(selfNodeNumber);
+    }
+
+    /**
+     * Returns identity of DEALER socket of channel, which is the ID used by receiver to restore order of the
+     * channel. Identity must not start with zero byte, so it is the ID as text.
+     * @param channelId - channel ID
+     * @return - identity, null if channels use PAIR transport
+     */
+    private static byte[] identity(int channelId) {
+        return Config.isRouterTransport() ? Integer.toString(channelId).getBytes(StandardCharsets.US_ASCII) : null;
+    }
+
+    private static String endpoint(String ip, int port) {
+        return "tcp://" + ip + ":" + port;
+    }
+
+    private void checkOpened() {
+        if (closed) {
+            throw new IllegalStateException("Connections are closed.");
+        }
+    }
+
+    /**
+     * Logs health and metrics of all connections.
+     */
+    public void logStats() {
+        for (Outbox outbox: all()) {
+            logger.info("Connection {} ({}): connected={}, queued={}, sent={} in {} batches, failed={}, " +
+                            "disconnects={}, reconnects={}",
+                    outbox.getName(), outbox.getEndpoint(), outbox.isConnected(), outbox.getQueueSize(),
+                    outbox.getSentMessages(), outbox.getSentBatches(), outbox.getFailedSends(),
+                    outbox.getDisconnects(), outbox.getReconnects());
+        }
+    }
+
+    /**
+     * @return - all opened channels
+     */
+    List<Outbox> all() {
+        List<Outbox> result = new ArrayList<>();
+        for (Outbox outbox: channels) {
+            if (outbox != null) {
+                result.add(outbox);
+            }
+        }
+        if (reportChannel != null) {
+            result.add(reportChannel);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends all queued messages, closes all channels and destroys shared context.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        logStats();
+        for (Outbox outbox: all()) {
+            outbox.close();
+        }
+        context.close();
+    }
+
+}
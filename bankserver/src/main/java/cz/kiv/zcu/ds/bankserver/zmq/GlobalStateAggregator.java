@@ -0,0 +1,392 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.GlobalState;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects local states reported by all nodes for each snapshot and assembles global state. Snapshot is finished
+ * when all nodes reported or when timeout expires, then global total (balances and money in flight) is checked
+ * against expected amount of money in the system.
+ * <p>
+ * Snapshots initiated by any node are collected, each independently. Snapshot is collected only when it is
+ * announced - initiated by hosting node or started by marker - so stray reports (e.g. late reports of snapshots
+ * whose results are no longer kept) are dropped and never produce spurious incomplete results. Latency of snapshot
+ * is measured from its local initiation (or from its first marker if it was initiated by other node) to the last
+ * report.
+ * <p>
+ * Delta reports (change of balance since base snapshot) are resolved against kept result of the base snapshot,
+ * so all kept results contain full balances.
+ * <p>
+ * Nodes which must report and expected amount of money follow topology ({@link #setMembers}), each snapshot
+ * keeps the members it started with. Total of snapshot collected while topology changed is not checked, money
+ * recorded by members may already include transfers from joined node or miss balance of node which left.
+ */
+public class GlobalStateAggregator implements MessageHandler {
+
+    private static Logger logger = LoggerFactory.getLogger(GlobalStateAggregator.class);
+
+    /**
+     * Number of kept results.
+     */
+    private static final int HISTORY_SIZE = 64;
+
+    /**
+     * Nodes which must report and expected amount of money for new snapshots
+     */
+    private volatile Members members;
+
+    /**
+     * Max time for collecting reports in milliseconds
+     */
+    private final long timeout;
+
+    /**
+     * Snapshots being collected by their ID
+     */
+    private final ConcurrentHashMap<Long, Collecting> collecting = new ConcurrentHashMap<>();
+
+    /**
+     * Finished snapshots by their ID, oldest are removed
+     */
+    private final Map<Long, GlobalState> results = new LinkedHashMap<Long, GlobalState>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, GlobalState> eldest) {
+            return size() > HISTORY_SIZE;
+        }
+    };
+
+    private volatile GlobalState latest;
+
+    private final ScheduledExecutorService timer;
+
+    // Statistics
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder incomplete = new LongAdder();
+    private final LongAdder violations = new LongAdder();
+
+    /**
+     * Defines aggregator.
+     * @param nodesCount - number of nodes which must report
+     * @param expectedTotal - expected amount of money in the system
+     * @param timeout - max time for collecting reports in milliseconds
+     */
+    public GlobalStateAggregator(int nodesCount, long expectedTotal, long timeout) {
+        int[] all = new int[nodesCount];
+        for (int i = 0; i < nodesCount; i++) {
+            all[i] = i;
+        }
+        this.members = new Members(all, expectedTotal);
+        this.timeout = timeout;
+
+        final String nodeID = ThreadContext.get("nodeID");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(() -> {
+                ThreadContext.put("nodeID", nodeID);
+                r.run();
+            }, "snapshot-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Changes nodes which must report to snapshots started from now on, e.g. when node joined or left.
+     * @param nodes - IDs of nodes which must report
+     * @param expectedTotal - expected amount of money in the system
+     */
+    public void setMembers(int[] nodes, long expectedTotal) {
+        this.members = new Members(nodes, expectedTotal);
+
+        for (Collecting c: collecting.values()) {
+            c.topologyChanged = true;
+        }
+    }
+
+    /**
+     * Starts collecting of snapshot initiated by hosting node, so latency includes the whole snapshot.
+     * @param snapshotId - snapshot ID
+     * @return - future of global state, completed when all nodes reported or timeout expired
+     */
+    public CompletableFuture<GlobalState> initiated(long snapshotId) {
+        return collecting(snapshotId).result;
+    }
+
+    /**
+     * Starts collecting of snapshot which hosting node started because of marker. Does nothing if the snapshot
+     * is already collected or finished.
+     * @param snapshotId - snapshot ID
+     */
+    public void announced(long snapshotId) {
+        if (getResult(snapshotId) == null) {
+            collecting(snapshotId);
+        }
+    }
+
+    /**
+     * Handles {@link cz.kiv.zcu.ds.bankserver.domain.MessageType#GLOBAL_STATE} message. Messages without structured
+     * state (old text reports) are only logged.
+     * @param message - received report
+     */
+    @Override
+    public void handle(Message message) {
+        LocalState state = message.getState();
+        if (state == null) {
+            logger.info(message.getStrData());
+            return;
+        }
+
+        report(state);
+    }
+
+    /**
+     * Adds local state to its snapshot, finishes the snapshot if all nodes reported. State of snapshot which was
+     * not announced is dropped.
+     * @param state - local state of one node
+     */
+    public void report(LocalState state) {
+        if (state.getNodeId() < 0) {
+            logger.warn("Local state of unknown node {} for snapshot {}.", state.getNodeId(), state.getSnapshotId());
+            return;
+        }
+        logger.info("Snapshot {}: {}", state.getSnapshotId(), state);
+
+        Collecting c = collecting.get(state.getSnapshotId());
+        if (c == null) {
+            logger.warn("Local state of node {} for {} snapshot {} dropped.", state.getNodeId(),
+                    getResult(state.getSnapshotId()) != null ? "finished" : "unknown", state.getSnapshotId());
+            return;
+        }
+        boolean done;
+        synchronized (c) {
+            if (!c.members.contains(state.getNodeId())) {
+                logger.warn("Local state of node {} which is not member of snapshot {}.", state.getNodeId(),
+                        state.getSnapshotId());
+                return;
+            }
+            if (c.reports[state.getNodeId()] != null) {
+                logger.warn("Duplicate local state of node {} for snapshot {}.", state.getNodeId(),
+                        state.getSnapshotId());
+                return;
+            }
+            c.reports[state.getNodeId()] = state;
+            done = ++c.count == c.members.count;
+        }
+
+        if (done) {
+            finish(state.getSnapshotId(), c);
+        }
+    }
+
+    /**
+     * @param snapshotId - snapshot ID
+     * @return - result of finished snapshot, null if it is unknown or still collected
+     */
+    public GlobalState getResult(long snapshotId) {
+        synchronized (results) {
+            return results.get(snapshotId);
+        }
+    }
+
+    /**
+     * @return - result of the last finished snapshot, null if there is none
+     */
+    public GlobalState getLatest() {
+        return latest;
+    }
+
+    /**
+     * @return - number of snapshots being collected
+     */
+    public int getCollectingCount() {
+        return collecting.size();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getIncompleteCount() {
+        return incomplete.sum();
+    }
+
+    /**
+     * @return - number of complete snapshots whose total did not match expected amount
+     */
+    public long getViolationsCount() {
+        return violations.sum();
+    }
+
+    /**
+     * Stops timeout timer, snapshots being collected are dropped and their futures cancelled.
+     */
+    public void close() {
+        timer.shutdownNow();
+        for (Collecting c: collecting.values()) {
+            c.result.cancel(false);
+        }
+    }
+
+    /**
+     * Returns snapshot being collected, starts collecting if it is new.
+     * @param snapshotId - snapshot ID
+     * @return - collected snapshot
+     */
+    private Collecting collecting(long snapshotId) {
+        return collecting.computeIfAbsent(snapshotId, id -> {
+            Collecting c = new Collecting();
+            c.timeout = timer.schedule(() -> finish(id, c), timeout, TimeUnit.MILLISECONDS);
+            return c;
+        });
+    }
+
+    /**
+     * Assembles and publishes global state. Called once, either by the last report or by timeout.
+     * @param snapshotId - snapshot ID
+     * @param c - collected snapshot
+     */
+    private void finish(long snapshotId, Collecting c) {
+        if (!collecting.remove(snapshotId, c)) {
+            return; // already finished
+        }
+        if (c.timeout != null) {
+            c.timeout.cancel(false);
+        }
+
+        LocalState[] reports;
+        synchronized (c) {
+            reports = c.reports.clone();
+        }
+        for (int i = 0; i < reports.length; i++) {
+            if (reports[i] != null && reports[i].isDelta()) {
+                reports[i] = resolve(snapshotId, reports[i]);
+            }
+        }
+        GlobalState state = new GlobalState(snapshotId, reports, c.members.member, c.members.expectedTotal,
+                (System.nanoTime() - c.startedAt) / 1000);
+
+        synchronized (results) {
+            results.put(snapshotId, state);
+        }
+        latest = state;
+        c.result.complete(state);
+
+        if (!state.isComplete()) {
+            incomplete.increment();
+            logger.warn(state.toString());
+        }
+        else if (c.topologyChanged) {
+            completed.increment();
+            logger.warn("{} (topology changed, total not checked)", state);
+        }
+        else if (!state.isConserved()) {
+            completed.increment();
+            violations.increment();
+            logger.error(state.toString());
+        }
+        else {
+            completed.increment();
+            logger.info(state.toString());
+        }
+    }
+
+    /**
+     * Converts delta report to full one using result of its base snapshot.
+     * @param snapshotId - snapshot ID
+     * @param delta - delta report
+     * @return - full report, null if base is not known
+     */
+    private LocalState resolve(long snapshotId, LocalState delta) {
+        GlobalState base = getResult(delta.getBaseSnapshotId());
+        LocalState baseReport = base == null ? null : base.getReport(delta.getNodeId());
+        if (baseReport == null) {
+            logger.warn("Snapshot {}: base {} of node {} is unknown, report dropped.", snapshotId,
+                    delta.getBaseSnapshotId(), delta.getNodeId());
+            return null;
+        }
+
+        LocalState full = new LocalState();
+        full.setSnapshotId(delta.getSnapshotId());
+        full.setNodeId(delta.getNodeId());
+        full.setBalance(baseReport.getBalance() + delta.getBalance());
+        full.setCreditsInFlight(delta.getCreditsInFlight());
+        full.setDebitsInFlight(delta.getDebitsInFlight());
+        full.setRecordedMessages(delta.getRecordedMessages());
+        full.setRecordingTime(delta.getRecordingTime());
+
+        return full;
+    }
+
+    /**
+     * Local states collected for one snapshot.
+     */
+    private class Collecting {
+
+        private final long startedAt = System.nanoTime();
+
+        private final Members members = GlobalStateAggregator.this.members;
+
+        private final LocalState[] reports = new LocalState[members.member.length];
+
+        private int count;
+
+        private final CompletableFuture<GlobalState> result = new CompletableFuture<>();
+
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * True if members changed while snapshot was collected
+         */
+        private volatile boolean topologyChanged;
+
+    }
+
+    /**
+     * Nodes which must report to snapshot.
+     */
+    private static class Members {
+
+        /**
+         * True for member by node ID
+         */
+        private final boolean[] member;
+
+        private final int count;
+
+        private final long expectedTotal;
+
+        private Members(int[] nodes, long expectedTotal) {
+            int size = 0;
+            for (int node: nodes) {
+                size = Math.max(size, node + 1);
+            }
+
+            this.member = new boolean[size];
+            for (int node: nodes) {
+                member[node] = true;
+            }
+            this.count = nodes.length;
+            this.expectedTotal = expectedTotal;
+        }
+
+        private boolean contains(int node) {
+            return node < member.length && member[node];
+        }
+
+    }
+
+}
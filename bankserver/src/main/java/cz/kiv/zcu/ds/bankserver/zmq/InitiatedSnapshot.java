@@ -0,0 +1,61 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.GlobalState;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Snapshot initiated by hosting node through {@link SnapshotCoordinator#initiate(long)}. Initiation does not
+ * block, completion of the snapshot is tracked by futures.
+ */
+public class InitiatedSnapshot {
+
+    /**
+     * Globally unique snapshot ID
+     */
+    private final long id;
+
+    /**
+     * Completed with local state of hosting node when all its incoming channels are recorded
+     */
+    private final CompletableFuture<LocalState> local;
+
+    /**
+     * Completed with global state when the report node collected reports of all nodes or timed out
+     */
+    private final CompletableFuture<GlobalState> global;
+
+    /**
+     * Defines initiated snapshot.
+     * @param id - snapshot ID
+     * @param local - future of local state of hosting node
+     * @param global - future of global state
+     */
+    InitiatedSnapshot(long id, CompletableFuture<LocalState> local, CompletableFuture<GlobalState> global) {
+        this.id = id;
+        this.local = local;
+        this.global = global;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return - future of local state of hosting node, never fails
+     */
+    public CompletableFuture<LocalState> getLocal() {
+        return local;
+    }
+
+    /**
+     * Global state is assembled only by {@link ConnectionRegistry#REPORT_NODE}, on other nodes the future fails
+     * with {@link IllegalStateException}. Global state may be incomplete if some node did not report in time.
+     * @return - future of global state
+     */
+    public CompletableFuture<GlobalState> getGlobal() {
+        return global;
+    }
+
+}
@@ -1,11 +1,16 @@
 package cz.kiv.zcu.ds.bankserver.zmq;
 
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
 import cz.kiv.zcu.ds.bankserver.domain.Account;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
 import cz.kiv.zcu.ds.bankserver.config.Config;
 import cz.kiv.zcu.ds.bankserver.domain.Message;
 import cz.kiv.zcu.ds.bankserver.domain.MessageType;
-import cz.kiv.zcu.ds.bankserver.util.LocalStateLogger;
-import cz.kiv.zcu.ds.bankserver.util.Utils;
+import cz.kiv.zcu.ds.bankserver.util.LogLimiter;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import cz.kiv.zcu.ds.bankserver.util.VirtualThreads;
+import org.HdrHistogram.Recorder;
 import org.apache.logging.log4j.ThreadContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,11 +18,19 @@ import org.zeromq.SocketType;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Provides methods to handling Chandy-Lamport algorithm flow. Creates listeners of type {@link Listener} for specified
- * port.
+ * port, or single {@link PollingListener} for all ports.
  */
 public class ListenerManager {
 
@@ -29,30 +42,119 @@ public class ListenerManager {
     private int selfNodeNumber;
 
     /**
-     * Map of state loggers for running algorithm
+     * Coordinator of running global state snapshots
      */
-    private HashMap<Integer, LocalStateLogger> lslMap;
+    private SnapshotCoordinator snapshots;
 
     /**
-     * Store free ID for new global state snapshot algorithm
+     * ZeroMQ context shared by all listening sockets
      */
-    private int lslCounter;
+    private ZContext context;
 
     /**
-     * Map of flags that defines if algorithm ends and prints report or not. Flags are separated for each
-     * running algorithm.
+     * Max time of blocking receive, listeners check if they should stop after it.
      */
-    private HashMap<Integer, Boolean> printed;
+    static final int RECEIVE_TIMEOUT = 500;
+
+    /**
+     * Max time for handling of already received messages when listener stops.
+     */
+    static final long DRAIN_TIMEOUT = 5;
+
+    /**
+     * Size of receive buffer of each listener thread, bigger frames are refused by sockets.
+     */
+    static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    // Metrics
+    private static final LongAdder[] received = Metrics.getInstance()
+            .counters("messages_received_total", "type", MessageType.values());
+    private static final LongAdder malformed = Metrics.getInstance().counter("messages_malformed_total");
+    private static final LongAdder unknown = Metrics.getInstance().counter("messages_unknown_type_total");
+    private static final Recorder decodeTime = Metrics.getInstance().histogram("message_decode_time_ns");
+
+    /**
+     * Max number of errors caused by single received message logged per second.
+     */
+    private static final int ERRORS_PER_SECOND = 10;
+
+    // Limiters of errors logged on hot path
+    private static final LogLimiter malformedLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter unknownLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter invalidAmountLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter invalidBatchLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter unknownAccountLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter unknownChannelLog = new LogLimiter(ERRORS_PER_SECOND);
+    private static final LogLimiter reportLog = new LogLimiter(ERRORS_PER_SECOND);
+
+    /**
+     * Sequencer channel shared by unnumbered messages of senders outside topology (e.g. external clients)
+     */
+    static final int OTHER_CHANNEL = -1;
+
+    /**
+     * Returned by {@link #sequencerChannel(int, Message)} for dropped message
+     */
+    static final int DROPPED = -2;
+
+    /**
+     * Listeners run until manager is shut down.
+     */
+    private volatile boolean running;
+
+    /**
+     * Number of created listeners that have not bound their sockets yet.
+     */
+    private int unbound;
+
+    /**
+     * Handlers of received messages by their type. Read without locking by all listeners and workers, so it is
+     * changed only before the first listener is created.
+     */
+    private final Map<MessageType, MessageHandler> handlers = new EnumMap<>(MessageType.class);
+
+    /**
+     * True once the first listener is created, handlers cannot be changed since then.
+     */
+    private boolean listening;
+
+    /**
+     * Reusable received messages
+     */
+    private final MessagePool pool = new MessagePool();
 
     /**
      * Initializes manager.
      * @param nodeNumber - hosting node ID
+     * @param snapshots - coordinator of global state snapshots
      */
-    public ListenerManager(int nodeNumber) {
+    public ListenerManager(int nodeNumber, SnapshotCoordinator snapshots) {
         this.selfNodeNumber = nodeNumber;
-        this.lslMap = new HashMap<>();
-        this.printed = new HashMap<>();
-        this.lslCounter = 0;
+        this.snapshots = snapshots;
+        this.context = new ZContext();
+        this.running = true;
+        this.unbound = 0;
+
+        registerHandler(MessageType.MARKER, this::handleMarker);
+        registerHandler(MessageType.GLOBAL_STATE, this::dropReport);
+        registerHandler(MessageType.CREDIT, this::performCredit);
+        registerHandler(MessageType.DEBIT, this::performDebit);
+        registerHandler(MessageType.REJECT, this::handleReject);
+        registerHandler(MessageType.BATCH, this::performBatch);
+        registerHandler(MessageType.BATCH_REPLY, this::handleBatchReply);
+    }
+
+    /**
+     * Registers handler of given message type, replaces previous one. Must be called before listeners are created.
+     * @param type - message type
+     * @param handler - handler of messages of the type
+     * @throws IllegalStateException - if listener was already created
+     */
+    public synchronized void registerHandler(MessageType type, MessageHandler handler) {
+        if (listening) {
+            throw new IllegalStateException("Handlers cannot be changed while listening.");
+        }
+        handlers.put(type, handler);
     }
 
     /**
@@ -60,78 +162,578 @@ public class ListenerManager {
      * @param port - listening port
      * @return - instance of listener worker
      */
-    public Listener createListener(int port) {
+    public synchronized Listener createListener(int port) {
+        listening = true;
+        unbound++;
         return new Listener(port);
     }
 
     /**
-     * Initialize CL algorithm and defines his ID. Thread safe.
-     * @param neighbours - array of channels that must be logged
-     * @return - global state ID or error (-1)
+     * Creates single listener serving all given ports.
+     * @param ports - listening ports
+     * @param workers - number of threads handling received messages, 0 = handle them on polling thread
+     * @param parallel - true = bank requests of one channel are handled by all workers, MARKERs are barriers
+     * @return - instance of polling listener
+     */
+    public synchronized PollingListener createPollingListener(int[] ports, int workers, boolean parallel) {
+        if (parallel && workers == 0) {
+            throw new IllegalArgumentException("Parallel handling needs workers.");
+        }
+
+        listening = true;
+        unbound++;
+        return new PollingListener(this, ports, workers, withNodeId(Executors.defaultThreadFactory()), parallel);
+    }
+
+    /**
+     * Creates single listener serving all given ports, messages of each port are handled by its own virtual
+     * thread. Handler blocked e.g. by full outbox stalls only its channel, not the listener or other channels.
+     * Falls back to platform threads if JVM does not support virtual threads.
+     * @param ports - listening ports
+     * @return - instance of polling listener
+     */
+    public synchronized PollingListener createVirtualListener(int[] ports) {
+        if (!VirtualThreads.isAvailable()) {
+            logger.warn("Virtual threads are not supported by this JVM, channels are handled by platform threads.");
+        }
+
+        listening = true;
+        unbound++;
+        return new PollingListener(this, ports, -1, withNodeId(VirtualThreads.factory("channel-")), false);
+    }
+
+    /**
+     * Wraps thread factory, so created threads log with ID of hosting node.
+     * @param factory - wrapped factory
+     * @return - factory of threads with node ID in their thread context
+     */
+    private ThreadFactory withNodeId(ThreadFactory factory) {
+        final String nodeID = selfNodeNumber + "";
+        return r -> factory.newThread(() -> {
+            ThreadContext.put("nodeID", nodeID);
+            r.run();
+        });
+    }
+
+    /**
+     * Marks one listener as ready.
+     */
+    synchronized void bound() {
+        unbound--;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until all created listeners bound their sockets.
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public synchronized void awaitReady() throws InterruptedException {
+        while (unbound > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until all running snapshots are finished.
+     * @param timeout - max waiting time
+     * @param unit - unit of timeout
+     * @return - true if no snapshot is running
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public boolean awaitSnapshots(long timeout, TimeUnit unit) throws InterruptedException {
+        return snapshots.awaitIdle(timeout, unit);
+    }
+
+    /**
+     * Stops all listeners. Already received messages are still handled.
      */
-    private synchronized int startAlgorithm(int[] neighbours) {
-        logger.debug("Starting Chandy-Lamport algorithm with ID {}.", lslCounter);
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * @return - true until manager is shut down
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return - hosting node ID
+     */
+    int getSelfNodeNumber() {
+        return selfNodeNumber;
+    }
+
+    /**
+     * @return - pool of received messages
+     */
+    MessagePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Destroys shared ZeroMQ context. Must be called after all listeners stopped.
+     */
+    public void close() {
+        context.close();
+    }
+
+    /**
+     * Creates socket bound to given port. Node port of ROUTER transport gets ROUTER socket receiving all channels,
+     * other ports get PAIR socket of single channel.
+     * @param port - listening port
+     * @return - bound socket
+     */
+    ZMQ.Socket bind(int port) {
+        boolean router = port == Config.routerPort(selfNodeNumber);
+        ZMQ.Socket socket = context.createSocket(router ? SocketType.ROUTER : SocketType.PAIR);
+        if (router) {
+            socket.setRouterHandover(true); // restarted peer replaces its stale connection
+        }
+        socket.setReceiveTimeOut(RECEIVE_TIMEOUT);
+        socket.setMaxMsgSize(RECEIVE_BUFFER_SIZE); // frame must fit into receive buffer
+        socket.setLinger(0);
+        socket.bind("tcp://*:" + port);
+
+        logger.info("Start listening on port " + port + " ...");
+
+        return socket;
+    }
+
+    /**
+     * Creates poller in shared ZeroMQ context.
+     * @param size - number of polled sockets
+     * @return - poller
+     */
+    ZMQ.Poller createPoller(int size) {
+        return context.createPoller(size);
+    }
+
+    /**
+     * Receives frame into receive buffer. Buffer is flipped, so it contains only the frame.
+     * @param socket - socket
+     * @param buffer - receive buffer of calling thread
+     * @param flags - receive flags
+     * @return - false if no frame was received (timeout)
+     */
+    static boolean receive(ZMQ.Socket socket, ByteBuffer buffer, int flags) {
+        buffer.clear();
+        int size = socket.recvByteBuffer(buffer, flags);
+        buffer.flip();
+
+        return size >= 0;
+    }
 
-        int result = startStateLogger(lslCounter, neighbours);
-        if (result == -1) {
-            return result;
+    /**
+     * Reads channel ID from identity frame of message received by ROUTER socket.
+     * @param identity - identity of sending DEALER socket
+     * @return - channel ID, -1 if identity is not channel ID (sender field of messages is used instead)
+     */
+    static int channelOf(ByteBuffer identity) {
+        if (!identity.hasRemaining()) {
+            return -1;
         }
 
-        lslCounter++;
-        return lslCounter - 1;
+        int channel = 0;
+        while (identity.hasRemaining()) {
+            byte b = identity.get();
+            if (b < '0' || b > '9' || channel > (Integer.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            channel = channel * 10 + (b - '0');
+        }
+
+        return channel;
     }
 
     /**
-     * Spreads MARKER message to neighbours and starts logging in specified channels. Thread safe.
-     * @param lslID - global state ID
-     * @param neighbours - array of channels that must be logged
-     * @return - global state ID
+     * Selects sequencer of received message. Sequencers are kept only for bank and report channels of nodes in
+     * topology, so sender IDs claimed by received messages never create new ones. Unnumbered messages of other
+     * senders share {@link #OTHER_CHANNEL}, numbered ones cannot be ordered and are dropped.
+     * @param channel - channel ID (identity of ROUTER channel or sender node ID)
+     * @param message - received message
+     * @return - channel of sequencer, {@link #DROPPED} if message was dropped and returned to pool
      */
-    private synchronized int startStateLogger(int lslID, int[] neighbours) {
-        if (lslMap.containsKey(lslID)) return -1;
+    int sequencerChannel(int channel, Message message) {
+        int node = channel >= ConnectionRegistry.REPORT_CHANNEL_OFFSET
+                ? channel - ConnectionRegistry.REPORT_CHANNEL_OFFSET
+                : channel;
+        if (node >= 0 && node < Config.nodesCount()) {
+            return channel;
+        }
+        if (message.getSequence() == 0) {
+            return OTHER_CHANNEL;
+        }
 
-        printed.put(lslID, false);
-        LocalStateLogger lsl = new LocalStateLogger(selfNodeNumber, Account.getInstance());
-        lsl.startLogging(neighbours);
-        lslMap.put(lslID, lsl);
+        long suppressed = unknownChannelLog.acquire();
+        if (suppressed >= 0) {
+            logger.error("Numbered {} from unknown channel {} dropped ({} similar errors suppressed).",
+                    message.getType(), channel, suppressed);
+        }
+        pool.release(message);
+        return DROPPED;
+    }
 
-        logger.debug("Starting logging node state for ID {} ...", lslID);
+    /**
+     * Decodes received frame into message from pool.
+     * @param buffer - received frame
+     * @return - decoded message or null if frame is malformed
+     */
+    Message decode(ByteBuffer buffer) {
+        long start = System.nanoTime();
+        Message message = pool.acquire();
+        try {
+            Codecs.decode(buffer, message);
+            return message;
+        } catch (RuntimeException e) {
+            pool.release(message);
+            malformed.increment();
+            long suppressed = malformedLog.acquire();
+            if (suppressed >= 0) {
+                logger.error("Cannot decode received message (" + suppressed + " similar errors suppressed).", e);
+            }
+            return null;
+        } finally {
+            decodeTime.recordValue(System.nanoTime() - start);
+        }
+    }
 
-        return lslID;
+    /**
+     * Handles received messages by handler registered for their type.
+     * @param message - received custom ZeroMQ message
+     */
+    void handleReceivedMessage(Message message) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Processing message - type: {}, from: {}", message.getType(), message.getFrom());
+        }
+
+        MessageHandler handler = message.getType() == null ? null : handlers.get(message.getType());
+        if (handler == null) {
+            unknown.increment();
+            long suppressed = unknownLog.acquire();
+            if (suppressed >= 0) {
+                logger.error("Unknown message type ({} similar errors suppressed).", suppressed);
+            }
+            return;
+        }
+        received[message.getType().ordinal()].increment();
+
+        handler.handle(message);
     }
 
     /**
-     * Stop logging for specified copy of running algorithm for specified node. Thread safe.
-     * @param lslID - global state ID
-     * @param nodeID - node ID
+     * Handles CL algorithm flow.
+     * @param message - marker
      */
-    private synchronized void stopLoggingChannelByNodeID(int lslID, int nodeID) {
-        lslMap.get(lslID).stopLogging(nodeID);
-        logger.debug("Stopping logging messages from node {} for ID {}.", nodeID, lslID);
+    private void handleMarker(Message message) {
+        if (message.getFrom() < 0) { // starts algorithm on request of external client
+            long id = snapshots.initiate(message.getBaseSnapshotId()).getId();
+            logger.info("Snapshot {} initiated by external request.", id);
+        }
+        else {
+            // get global state ID from message
+            snapshots.markerReceived(message.getSnapshotId(), message.getFrom(), message.getBaseSnapshotId());
+        }
     }
 
     /**
-     * Removes global state logger and flag for given global state ID.
-     * @param lslID - global state ID
+     * Checks amount of bank request.
+     * @param message - bank request
+     * @return - true if amount is in allowed range
      */
-    private synchronized void deleteLocalState(int lslID) {
-        logger.debug("Deleting deleteLocal state for ID {}.", lslID);
-        printed.remove(lslID);
-        lslMap.remove(lslID);
+    private boolean isValidAmount(Message message) {
+        if (message.getNumData() < Config.MIN_AMOUNT || message.getNumData() > Config.MAX_AMOUNT) {
+            long suppressed = invalidAmountLog.acquire();
+            if (suppressed >= 0) {
+                logger.error("Invalid bank request amount ({} similar errors suppressed).", suppressed);
+            }
+            return false;
+        }
+
+        return true;
     }
 
     /**
-     * Thread safe method that ends algorithm and send report to specified queue.
-     * @param lslID - global state ID
+     * Returns account of bank request, logs request for unknown account.
+     * @param message - bank request
+     * @return - account, null if it does not exist
      */
-    private synchronized void finishAlgorithm(int lslID) {
-        LocalStateLogger lsl = lslMap.get(lslID);
-        if (lsl.isLoggingDone() && !printed.get(lslID)) {
-            logger.debug("Final state for Node-{} with Global state ID {}, balance: {}.", selfNodeNumber, lslID, Account.getInstance().getBalance());
-            Sender.sendLocalState(selfNodeNumber, lsl.toString());
-            // reset local state
-            deleteLocalState(lslID);
+    private Account accountOf(Message message) {
+        Account account = Accounts.getInstance().get(message.getAccountId());
+        if (account == null) {
+            long suppressed = unknownAccountLog.acquire();
+            if (suppressed >= 0) {
+                logger.error("{} from node {} for unknown account {} rejected ({} similar errors suppressed).",
+                        message.getType(), message.getFrom(), message.getAccountId(), suppressed);
+            }
         }
+
+        return account;
+    }
+
+    /**
+     * Logs performed bank request and balance of its account.
+     * @param message - bank request
+     * @param account - account of the request
+     */
+    private void logBankRequest(Message message, Account account) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Bank request, operation: {}, amount: {}, account {} balance: {}", message.getType(),
+                    message.getNumData(), message.getAccountId(), account.getBalance());
+        }
+    }
+
+    /**
+     * Performs debit operation based on received message details.
+     * @param message - bank request
+     */
+    private void performDebit(Message message) {
+        if (!isValidAmount(message)) {
+            return;
+        }
+
+        Account account = accountOf(message);
+        Outbox reply = Sender.reserve(message.getFrom(), MessageType.CREDIT);
+
+        Lock lock = snapshots.channelLock(message.getFrom());
+        snapshots.lock(lock);
+        try {
+            if (account == null || !account.debit(message.getNumData())) {
+                // cannot perform debit, low balance or unknown account
+                reject(reply, message);
+                return;
+            }
+            if (!snapshots.awaitDurable(lock, message.getNumData())) {
+                account.credit(message.getNumData());
+                reject(reply, message);
+                return;
+            }
+            if (!Sender.send(reply, selfNodeNumber, message.getFrom(), message.getAccountId(), message.getNumData(),
+                    MessageType.CREDIT, message.getRequestId())) {
+                // requesting node left topology meanwhile, money stays here
+                account.credit(message.getNumData());
+                return;
+            }
+
+            // Not logging failed debit requests
+            snapshots.record(message.getFrom(), MessageType.DEBIT, message.getNumData());
+        } finally {
+            lock.unlock();
+        }
+
+        logBankRequest(message, account);
+    }
+
+    /**
+     * Rejects DEBIT request which was not performed. Rejection carries no money, DEBIT without request ID is not
+     * rejected.
+     * @param reply - space reserved for reply
+     * @param message - rejected request
+     */
+    private void reject(Outbox reply, Message message) {
+        if (message.getRequestId() == 0) {
+            Sender.cancel(reply);
+            return;
+        }
+
+        Sender.send(reply, selfNodeNumber, message.getFrom(), message.getAccountId(), 0, MessageType.REJECT,
+                message.getRequestId());
+    }
+
+    /**
+     * Performs credit operation based on received message details. Credit for unknown account is rejected and
+     * its money is returned to sender by REJECT. Money was in flight in the channel, so the credit is recorded
+     * even if rejected, as rejected credits of batch.
+     * @param message - bank request
+     */
+    private void performCredit(Message message) {
+        if (!isValidAmount(message)) {
+            return;
+        }
+        Account account = accountOf(message);
+        Outbox reply = account == null ? Sender.reserve(message.getFrom(), MessageType.REJECT) : null;
+
+        Lock lock = snapshots.channelLock(message.getFrom());
+        snapshots.lock(lock);
+        try {
+            if (account != null) {
+                account.credit(message.getNumData());
+                // nothing to do, sender already made debit
+            }
+            else if (!Sender.send(reply, selfNodeNumber, message.getFrom(), message.getAccountId(),
+                    message.getNumData(), MessageType.REJECT, 0)) { // request ID belongs to hosting node, not sender
+                // sending node left topology meanwhile, money stays here
+                Accounts.getInstance().getDefault().credit(message.getNumData());
+            }
+
+            snapshots.record(message.getFrom(), MessageType.CREDIT, message.getNumData());
+        } finally {
+            lock.unlock();
+        }
+
+        if (account != null) {
+            Sender.replyReceived(message); // CREDIT may be reply to DEBIT request of hosting node
+            logBankRequest(message, account);
+        }
+    }
+
+    /**
+     * Checks entries of batch.
+     * @param message - BATCH or BATCH_REPLY
+     * @param credits - true = only CREDIT entries are allowed (reply)
+     * @return - true if all entries are bank requests with amount in allowed range
+     */
+    private boolean isValidBatch(Message message, boolean credits) {
+        Batch batch = message.getBatch();
+        boolean valid = batch != null && batch.isConsistent();
+        for (int i = 0; valid && i < batch.size(); i++) {
+            MessageType type = batch.getType(i);
+            valid = (type == MessageType.CREDIT || (type == MessageType.DEBIT && !credits))
+                    && batch.getAmount(i) >= Config.MIN_AMOUNT && batch.getAmount(i) <= Config.MAX_AMOUNT;
+        }
+
+        if (!valid) {
+            long suppressed = invalidBatchLog.acquire();
+            if (suppressed >= 0) {
+                logger.error("Invalid {} from node {} ({} similar errors suppressed).", message.getType(),
+                        message.getFrom(), suppressed);
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Performs batch of bank requests atomically and answers by single BATCH_REPLY (numData 1 = applied,
+     * 0 = rejected). Reply to applied batch carries money of its DEBIT entries, reply to rejected batch returns
+     * money of its CREDIT entries. Batch of credits without request ID is not replied if it is applied.
+     * <p>
+     * Money of CREDIT entries was in flight in the channel, so they are recorded even if batch is rejected -
+     * the money is received and sent back by the reply. DEBIT entries are recorded only if batch is applied.
+     * @param message - batch
+     */
+    private void performBatch(Message message) {
+        if (!isValidBatch(message, false)) {
+            return;
+        }
+        Batch batch = message.getBatch();
+        boolean applied;
+        Outbox replyChannel = Sender.reserve(message.getFrom(), MessageType.BATCH_REPLY);
+
+        Lock lock = snapshots.channelLock(message.getFrom());
+        snapshots.lock(lock);
+        try {
+            applied = Accounts.getInstance().apply(batch);
+            // received money is recorded before the lock can be released by waiting for durability
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.getType(i) == MessageType.CREDIT) {
+                    snapshots.record(message.getFrom(), MessageType.CREDIT, batch.getAmount(i));
+                }
+            }
+
+            Batch reply = applied
+                    ? batch.select(MessageType.DEBIT, MessageType.CREDIT)
+                    : batch.select(MessageType.CREDIT, MessageType.CREDIT);
+            if (!reply.isEmpty() || message.getRequestId() != 0) {
+                boolean durable = !applied || reply.isEmpty()
+                        || snapshots.awaitDurable(lock, reply.sum(MessageType.CREDIT));
+                if (!durable) {
+                    Sender.cancel(replyChannel);
+                }
+                if (!durable || !Sender.sendBatch(replyChannel, selfNodeNumber, message.getFrom(),
+                        MessageType.BATCH_REPLY, reply, applied, message.getRequestId())) {
+                    // debits may not be durable or requesting node left topology meanwhile, money stays here
+                    Accounts.getInstance().apply(reply);
+                    applied = false;
+                }
+            }
+            else {
+                Sender.cancel(replyChannel);
+            }
+
+            for (int i = 0; applied && i < batch.size(); i++) {
+                if (batch.getType(i) == MessageType.DEBIT) {
+                    snapshots.record(message.getFrom(), MessageType.DEBIT, batch.getAmount(i));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Batch of {} bank requests from node {} {}.", batch.size(), message.getFrom(),
+                    applied ? "applied" : "rejected");
+        }
+    }
+
+    /**
+     * Drops report of local state sent to node which does not aggregate reports (replaced by
+     * {@link GlobalStateAggregator} on report node).
+     * @param message - report
+     */
+    private void dropReport(Message message) {
+        long suppressed = reportLog.acquire();
+        if (suppressed >= 0) {
+            logger.warn("Report of snapshot {} not meant for this node dropped: {} ({} similar errors suppressed).",
+                    message.getSnapshotId(), message.getState(), suppressed);
+        }
+    }
+
+    /**
+     * Credits money returned by reply to batch of hosting node.
+     * @param message - reply to batch
+     */
+    private void handleBatchReply(Message message) {
+        if (!isValidBatch(message, true)) {
+            return;
+        }
+        Batch batch = message.getBatch();
+
+        Lock lock = snapshots.channelLock(message.getFrom());
+        snapshots.lock(lock);
+        try {
+            Accounts.getInstance().apply(batch);
+
+            for (int i = 0; i < batch.size(); i++) {
+                snapshots.record(message.getFrom(), MessageType.CREDIT, batch.getAmount(i));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Sender.replyReceived(message);
+    }
+
+    /**
+     * Handles rejected bank request of hosting node. Rejected DEBIT carries no money, rejected CREDIT returns
+     * its money to the account it was debited from.
+     * @param message - rejection
+     */
+    private void handleReject(Message message) {
+        if (message.getNumData() != 0) {
+            if (!isValidAmount(message)) {
+                return;
+            }
+            Account account = Accounts.getInstance().get(message.getAccountId());
+            if (account == null) {
+                account = Accounts.getInstance().getDefault();
+            }
+
+            Lock lock = snapshots.channelLock(message.getFrom());
+            snapshots.lock(lock);
+            try {
+                account.credit(message.getNumData());
+                snapshots.record(message.getFrom(), MessageType.CREDIT, message.getNumData());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Bank request {} rejected by node {}.", message.getRequestId(), message.getFrom());
+        }
+        Sender.replyReceived(message);
     }
 
     /**
@@ -144,6 +746,22 @@ public class ListenerManager {
          */
         private int port;
 
+        /**
+         * Restore order of channels received on the port, by sender node ID (see
+         * {@link #sequencerChannel(int, Message)})
+         */
+        private final Map<Integer, ChannelSequencer> sequencers = new HashMap<>();
+
+        /**
+         * Receive buffer, frames are decoded from it in place
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+
+        /**
+         * Listener stops when closed even if manager is still running, e.g. when port is removed from topology.
+         */
+        private volatile boolean closed;
+
         /**
          * Creates listener
          * @param port - listening port
@@ -159,123 +777,56 @@ public class ListenerManager {
         public void run() {
             ThreadContext.put("nodeID", selfNodeNumber + "");
 
-            ZContext context = new ZContext();
-            ZMQ.Socket socket = context.createSocket(SocketType.PAIR);
-            socket.bind("tcp://*:" + port);
-
-            logger.info("Start listening on port " + port + " ...");
+            ZMQ.Socket socket = bind(port);
+            boolean routed = socket.getSocketType() == SocketType.ROUTER;
+            bound();
 
-            while (!isInterrupted()) {
-                handleReceivedMessage(Utils.deserialize(socket.recvStr()));
-            }
-
-            socket.close();
-        }
-
-        /**
-         * Handles received messages.
-         * @param message - received custom ZeroMQ message
-         */
-        private void handleReceivedMessage(Message message) {
-            logger.debug("Processing message - type: {}, from: {}",
-                    message.getType(), message.getFrom());
-
-            // resolve message type
-            MessageType type = MessageType.resolve(message.getType());
-            if (type == null) {
-                logger.error("Bank request operation missing.");
-                return;
-            }
-
-            if (type == MessageType.MARKER) { // handle CL algorithm flow
-                // get global state ID from message
-                int receivedGlobalStateID = message.getNumData();
-
-                if (message.getFrom() < 0) { // starts algorithm
-                    // Get array of connected nodes
-                    int[] neighbours = Config.getNode(selfNodeNumber).getNeighbours();
-                    // Start logging messages from all incoming connections
-                    int lslID = startAlgorithm(neighbours);
-                    if (lslID == -1) {
-                        return;
-                    }
-                    // Send markers to all neighbours
-                    Sender.sendMarkers(lslID, selfNodeNumber, neighbours);
+            while (running && !closed) {
+                if (!receive(socket, buffer, 0)) {
+                    continue; // timeout
                 }
-                else if (!lslMap.containsKey(receivedGlobalStateID)) { // first MARKER message
-                    // Get array of connected nodes
-                    int[] neighbours = Config.getNode(selfNodeNumber).getNeighbours();
-                    // Start logging messages from all incoming connections
-                    int result = startStateLogger(receivedGlobalStateID, neighbours);
-                    if (result == -1) {
-                        return;
+
+                // ROUTER socket prepends identity of sending channel
+                int channel = -1;
+                if (routed) {
+                    channel = channelOf(buffer);
+                    if (!socket.hasReceiveMore()) {
+                        continue;
                     }
-                    // Stop logging messages from sender
-                    stopLoggingChannelByNodeID(receivedGlobalStateID, message.getFrom());
-                    // Send markers to all neighbours
-                    Sender.sendMarkers(receivedGlobalStateID, selfNodeNumber, neighbours);
-                }
-                else { // second MARKER message
-                    // Stop logging messages from sender
-                    stopLoggingChannelByNodeID(receivedGlobalStateID, message.getFrom());
+                    receive(socket, buffer, 0);
                 }
 
-                finishAlgorithm(receivedGlobalStateID);
-            }
-            else if (type == MessageType.GLOBAL_STATE) { // handle global state report printing
-                logger.info(message.getStrData());
-            }
-            else { // handle bank request
-                if (message.getNumData() < Config.MIN_AMOUNT || message.getNumData() > Config.MAX_AMOUNT) {
-                    logger.error("Invalid bank request amount.");
-                    return;
-                }
+                // batch of messages is received as multipart message
+                while (true) {
+                    Message message = decode(buffer);
+                    int key = message == null ? DROPPED
+                            : sequencerChannel(channel >= 0 ? channel : message.getFrom(), message);
+                    if (key != DROPPED) {
+                        ChannelSequencer sequencer = sequencers.get(key);
+                        if (sequencer == null) {
+                            sequencer = new ChannelSequencer(key, ChannelSequencer.DIRECT, null,
+                                    ListenerManager.this::handleReceivedMessage, pool);
+                            sequencers.put(key, sequencer);
+                        }
+                        sequencer.offer(message);
+                    }
 
-                switch (type) {
-                    case CREDIT:
-                        performCredit(message);
-                        break;
-                    case DEBIT:
-                        performDebit(message);
+                    if (!socket.hasReceiveMore()) {
                         break;
+                    }
+                    receive(socket, buffer, 0);
                 }
-
-                logger.debug("Bank request, operation: {}, amount: {}.", message.getType(), message.getNumData());
-                logger.debug("Account balance: {}", Account.getInstance().getBalance());
-            }
-        }
-
-        /**
-         * Performs debit operation based on received message details.
-         * @param message - bank request
-         */
-        private void performDebit(Message message) {
-            if (!Account.getInstance().debit(message.getNumData())) {
-                return; // cannot perform debit, low balance
             }
-            Sender.send(selfNodeNumber, message.getFrom(), message.getNumData(), MessageType.CREDIT.toString());
 
-            // Not logging failed debit requests
-            for (LocalStateLogger lsl: lslMap.values()) {
-                if (lsl.isLogging(message.getFrom())) {
-                    lsl.saveMessage(message);
-                }
-            }
+            socket.close();
+            logger.info("Stop listening on port " + port + ".");
         }
 
         /**
-         * Performs credit operation based on received message details.
-         * @param message - bank request
+         * Stops listening, already received messages are still handled.
          */
-        private void performCredit(Message message) {
-            Account.getInstance().credit(message.getNumData());
-            // nothing to do, sender already made debit
-
-            for (LocalStateLogger lsl: lslMap.values()) {
-                if (lsl.isLogging(message.getFrom())) {
-                    lsl.saveMessage(message);
-                }
-            }
+        public void close() {
+            closed = true;
         }
 
     }
@@ -0,0 +1,245 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
+import cz.kiv.zcu.ds.bankserver.util.Utils;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop generator of bank requests for capacity testing, replaces slow random generator of {@link Sender}.
+ * <p>
+ * Each of concurrent generators issues requests by its own schedule (constant or Poisson arrivals) with
+ * {@code rate / generators} requests per second. Schedule does not depend on how long requests take, so when
+ * node saturates, generator falls behind its schedule instead of slowing down.
+ * <p>
+ * Latency of request is measured from its scheduled (not actual) start to the moment it is queued for sending,
+ * including waiting for durability of debit. Waiting caused by previous slow requests is therefore included,
+ * so latency is corrected for coordinated omission. Latencies are reported periodically and at the end.
+ * <p>
+ * With batch size greater than 1 generator sends requests to one target as single {@link Batch} of that many
+ * requests, rate is still counted in requests.
+ */
+public class LoadGenerator implements Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    /**
+     * Interval of progress reports in milliseconds.
+     */
+    private static final long REPORT_INTERVAL = 1000;
+
+    /**
+     * Precision of latency histograms (significant decimal digits).
+     */
+    private static final int HISTOGRAM_PRECISION = 3;
+
+    private final Sender sender;
+
+    /**
+     * Target number of requests per second of all generators
+     */
+    private final double rate;
+
+    /**
+     * True = Poisson arrivals, false = constant interval between requests
+     */
+    private final boolean poisson;
+
+    /**
+     * Number of concurrent generators
+     */
+    private final int generatorsCount;
+
+    /**
+     * Share of CREDIT requests in range <0, 1>
+     */
+    private final double creditRatio;
+
+    /**
+     * Number of requests sent in one batch, 1 = requests are sent one by one
+     */
+    private final int batchSize;
+
+    private volatile boolean running = true;
+
+    private volatile Thread reporter;
+
+    /**
+     * Latencies of requests in microseconds
+     */
+    private final Recorder recorder = new Recorder(HISTOGRAM_PRECISION);
+
+    private final LongAdder sent = new LongAdder();
+
+    /**
+     * Single requests not sent because of low balance or target outside topology
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Batches not sent because of low balance or target outside topology
+     */
+    private final LongAdder rejectedBatches = new LongAdder();
+
+    /**
+     * Defines load generator of hosting node.
+     * @param sender - sender of hosting node
+     * @param rate - target number of requests per second of all generators
+     * @param poisson - true = Poisson arrivals, false = constant interval between requests
+     * @param generatorsCount - number of concurrent generators
+     * @param creditRatio - share of CREDIT requests in range <0, 1>
+     * @param batchSize - number of requests sent in one batch, 1 = requests are sent one by one
+     */
+    public LoadGenerator(Sender sender, double rate, boolean poisson, int generatorsCount, double creditRatio,
+                         int batchSize) {
+        if (rate <= 0 || generatorsCount <= 0 || creditRatio < 0 || creditRatio > 1 || batchSize < 1
+                || batchSize > Batch.MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid load: rate " + rate + ", generators " + generatorsCount
+                    + ", credit ratio " + creditRatio + ", batch size " + batchSize);
+        }
+
+        this.sender = sender;
+        this.rate = rate;
+        this.poisson = poisson;
+        this.generatorsCount = generatorsCount;
+        this.creditRatio = creditRatio;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts generators and reports their progress until load generator is shut down.
+     */
+    @Override
+    public void run() {
+        final String nodeID = sender.getSelfNodeNumber() + "";
+        ThreadContext.put("nodeID", nodeID);
+        reporter = Thread.currentThread();
+
+        logger.info("Generating {} requests/s ({} arrivals) by {} generators, {}% credits, {} requests per batch.",
+                rate, poisson ? "Poisson" : "constant", generatorsCount, Math.round(creditRatio * 100), batchSize);
+
+        long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) * generatorsCount * batchSize / rate));
+        long start = System.nanoTime();
+        Thread[] generators = new Thread[generatorsCount];
+        for (int i = 0; i < generatorsCount; i++) {
+            long offset = interval * i / generatorsCount; // generators are not in lockstep
+            generators[i] = new Thread(() -> {
+                ThreadContext.put("nodeID", nodeID);
+                generate(start + offset, interval);
+            }, "load-" + i);
+            generators[i].setDaemon(true);
+            generators[i].start();
+        }
+
+        Histogram total = new Histogram(HISTOGRAM_PRECISION);
+        Histogram intervalHistogram = null;
+        long lastSent = 0;
+        long lastReport = start;
+        while (running) {
+            try {
+                Thread.sleep(REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                logger.trace("Load report interrupted.");
+            }
+
+            long now = System.nanoTime();
+            long sentNow = sent.sum();
+            intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+            total.add(intervalHistogram);
+            report("Load", intervalHistogram, (sentNow - lastSent) * 1e9 / (now - lastReport));
+            lastSent = sentNow;
+            lastReport = now;
+        }
+
+        for (Thread generator: generators) {
+            try {
+                generator.join(REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        total.add(recorder.getIntervalHistogram());
+        report("Load total", total, sent.sum() * 1e9 / (System.nanoTime() - start));
+
+        logger.info("Load generator stopped, {} requests sent, {} requests and {} batches rejected.", sent.sum(),
+                rejected.sum(), rejectedBatches.sum());
+    }
+
+    /**
+     * Stops generating bank requests.
+     */
+    public void shutdown() {
+        running = false;
+
+        Thread t = reporter;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Generator loop. Issues requests by schedule starting at given time.
+     * @param next - scheduled start of the first request (System.nanoTime)
+     * @param interval - mean interval between requests (or batches) in nanoseconds
+     */
+    private void generate(long next, long interval) {
+        int self = sender.getSelfNodeNumber();
+
+        while (running) {
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+                if (!running) {
+                    return;
+                }
+            }
+
+            if (batchSize > 1) {
+                if (sender.generateBatch(Utils.getUDRNodeIdx(self), createBatch())) {
+                    sent.add(batchSize);
+                }
+                else {
+                    rejectedBatches.increment();
+                }
+            }
+            else if (sender.generate(Utils.getUDRNodeIdx(self), Utils.getUDRAmount(),
+                    Utils.getBankOperation(creditRatio))) {
+                sent.increment();
+            }
+            else {
+                rejected.increment();
+            }
+            recorder.recordValue((System.nanoTime() - next) / 1000);
+
+            next += poisson ? Utils.getExponential(interval) : interval;
+        }
+    }
+
+    /**
+     * @return - batch of random requests to default account
+     */
+    private Batch createBatch() {
+        Batch batch = new Batch(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(Utils.getBankOperation(creditRatio), Accounts.DEFAULT_ACCOUNT, Utils.getUDRAmount());
+        }
+
+        return batch;
+    }
+
+    private void report(String title, Histogram histogram, double throughput) {
+        logger.info("{}: {} requests/s sent (target {}), latency us: p50 {}, p99 {}, p99.9 {}, max {} ({} samples)",
+                title, Math.round(throughput), Math.round(rate), histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue(), histogram.getTotalCount());
+    }
+
+}
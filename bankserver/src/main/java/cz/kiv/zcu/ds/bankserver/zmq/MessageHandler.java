@@ -0,0 +1,19 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+
+/**
+ * Handles received messages of one {@link cz.kiv.zcu.ds.bankserver.domain.MessageType}. Handlers are registered
+ * in {@link ListenerManager#registerHandler}.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * Handles received message. Called from listener (or its worker) thread, messages of one channel are handled
+     * sequentially in FIFO order, only bank requests may be handled concurrently in parallel poller mode.
+     * @param message - received message
+     */
+    void handle(Message message);
+
+}
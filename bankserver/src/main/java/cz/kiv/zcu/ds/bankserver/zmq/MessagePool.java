@@ -0,0 +1,63 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable instances of received messages. Listener decodes each received frame into message taken from pool
+ * and message is returned after it is handled, so steady flow of bank requests does not allocate messages.
+ * Messages not taken from pool (e.g. created by tests or benchmarks) are ignored by {@link #release(Message)}.
+ * <p>
+ * Message must be released exactly once and must not be used after it is released. Handlers must not keep
+ * reference to handled message, only to values read from it.
+ */
+class MessagePool {
+
+    /**
+     * Max number of free messages kept in pool, enough for all messages buffered by channel sequencers
+     * and queued for workers in normal operation.
+     */
+    static final int CAPACITY = 8192;
+
+    private static final LongAdder misses = Metrics.getInstance().counter("message_pool_misses_total");
+
+    private final BlockingQueue<Message> free = new ArrayBlockingQueue<>(CAPACITY);
+
+    MessagePool() {
+        Metrics.getInstance().gauge("message_pool_free", free::size);
+    }
+
+    /**
+     * @return - free message, new one if pool is empty
+     */
+    Message acquire() {
+        Message message = free.poll();
+        if (message == null) {
+            misses.increment();
+            return new Pooled();
+        }
+
+        return message;
+    }
+
+    /**
+     * Returns handled message to pool. Message is dropped if pool is full.
+     * @param message - handled message
+     */
+    void release(Message message) {
+        if (message instanceof Pooled) {
+            free.offer(message);
+        }
+    }
+
+    /**
+     * Message owned by pool.
+     */
+    private static class Pooled extends Message {
+    }
+
+}
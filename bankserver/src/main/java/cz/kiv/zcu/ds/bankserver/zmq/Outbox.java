@@ -0,0 +1,396 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
+import cz.kiv.zcu.ds.bankserver.codec.MessageCodec;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.util.LogLimiter;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound channel to one target. Messages are queued in bounded queue and sent by dedicated writer thread,
+ * which is the only owner of the socket. Writer sends all queued messages (up to {@link #MAX_BATCH}) as one
+ * multipart ZeroMQ message. Single queue and single writer keep FIFO order of the channel, writer numbers
+ * messages in this order, so receiver can restore it (see {@link ChannelSequencer}).
+ * <p>
+ * Writer also watches socket events to track health of the connection. Lost connection is restored by ZeroMQ
+ * automatic reconnection, socket is never recreated - frames queued in it (credits whose debit is already durable,
+ * markers) would be lost with it. Target which starts late therefore gets all frames sent meanwhile.
+ * <p>
+ * Outbox connects PAIR socket to dedicated port of the channel, or DEALER socket with identity of the channel
+ * to ROUTER socket shared by all channels of target.
+ * <p>
+ * Space in the queue can be reserved in advance ({@link #reserve()}), so message can be queued later without
+ * blocking, e.g. marker or reply queued while channel locks are held.
+ */
+class Outbox {
+
+    private static Logger logger = LoggerFactory.getLogger(Outbox.class);
+
+    /**
+     * Max number of queued (and reserved) messages, enqueueing thread is blocked when queue is full.
+     */
+    static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * Max number of messages sent as one multipart message.
+     */
+    static final int MAX_BATCH = 64;
+
+    /**
+     * Max time for sending of queued messages when outbox is closed.
+     */
+    private static final int CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Interval of connection health checks when there is nothing to send.
+     */
+    private static final long HEALTH_CHECK_INTERVAL = 1000;
+
+    /**
+     * Interval of warnings about connection which is still down.
+     */
+    private static final long DOWN_WARNING_INTERVAL = 30000;
+
+    /**
+     * First and max interval of ZeroMQ automatic reconnection attempts.
+     */
+    private static final int RECONNECT_IVL = 100;
+    private static final int RECONNECT_IVL_MAX = 5000;
+
+    /**
+     * Marks end of the queue.
+     */
+    private static final Message POISON = new Message();
+
+    private final String name;
+
+    private final String endpoint;
+
+    private final MessageCodec codec;
+
+    /**
+     * Identity of DEALER socket, null = PAIR socket
+     */
+    private final byte[] identity;
+
+    private final ZContext context;
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Free space of the queue, taken by each queued or reserved message and returned by writer
+     */
+    private final Semaphore space = new Semaphore(QUEUE_CAPACITY);
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * Socket connected to target and monitor of its events, both owned by writer thread.
+     */
+    private ZMQ.Socket socket;
+    private ZMQ.Socket monitor;
+
+    // Connection health and metrics
+
+    private volatile boolean connected;
+
+    /**
+     * Sequence number of the last sent message, owned by writer thread
+     */
+    private long sequence;
+
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder failedSends = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    /**
+     * Limits logging of blocked enqueueing, which happens for each message when target is slow
+     */
+    private final LogLimiter fullLog = new LogLimiter(1);
+
+    /**
+     * Creates outbox and starts its writer.
+     * @param name - name of the channel used for writer thread
+     * @param context - shared ZeroMQ context
+     * @param endpoint - target's endpoint, e.g. tcp://127.0.0.1:5000
+     * @param codec - wire format expected by target
+     */
+    Outbox(String name, ZContext context, String endpoint, MessageCodec codec) {
+        this(name, context, endpoint, codec, null);
+    }
+
+    /**
+     * Creates outbox and starts its writer.
+     * @param name - name of the channel used for writer thread
+     * @param context - shared ZeroMQ context
+     * @param endpoint - target's endpoint, e.g. tcp://127.0.0.1:5000
+     * @param codec - wire format expected by target
+     * @param identity - identity of channel in target's ROUTER socket, null = target listens by PAIR socket
+     */
+    Outbox(String name, ZContext context, String endpoint, MessageCodec codec, byte[] identity) {
+        this.name = name;
+        this.endpoint = endpoint;
+        this.codec = codec;
+        this.identity = identity;
+        this.context = context;
+
+        final String nodeID = ThreadContext.get("nodeID");
+        this.writer = new Thread(() -> {
+            ThreadContext.put("nodeID", nodeID);
+            write();
+        }, "outbox-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("outbox_queue_depth{channel=\"" + name + "\"}", queue::size);
+        metrics.gauge("outbox_connected{channel=\"" + name + "\"}", () -> connected ? 1 : 0);
+        metrics.gauge("outbox_batches_total{channel=\"" + name + "\"}", sentBatches::sum);
+        metrics.gauge("outbox_failed_sends_total{channel=\"" + name + "\"}", failedSends::sum);
+        metrics.gauge("outbox_disconnects_total{channel=\"" + name + "\"}", disconnects::sum);
+    }
+
+    /**
+     * Queues message for sending. Blocks while queue is full.
+     * @param message - message to send
+     * @throws InterruptedException - if interrupted while waiting for free space
+     */
+    void enqueue(Message message) throws InterruptedException {
+        reserve();
+        enqueueReserved(message);
+    }
+
+    /**
+     * Reserves space for one message. Blocks while queue is full.
+     * @throws InterruptedException - if interrupted while waiting for free space
+     */
+    void reserve() throws InterruptedException {
+        checkOpened();
+
+        if (!space.tryAcquire()) {
+            long suppressed = fullLog.acquire();
+            if (suppressed >= 0) {
+                logger.debug("Outbox {} is full, waiting ({} times since the last report).", endpoint,
+                        suppressed + 1);
+            }
+            space.acquire();
+        }
+    }
+
+    /**
+     * Queues message into space reserved by {@link #reserve()}. Never blocks.
+     * @param message - message to send
+     */
+    void enqueueReserved(Message message) {
+        if (closed) {
+            space.release();
+            throw new IllegalStateException("Outbox " + endpoint + " is closed.");
+        }
+
+        queue.add(message);
+    }
+
+    /**
+     * Returns space reserved by {@link #reserve()} which will not be used.
+     */
+    void cancelReservation() {
+        space.release();
+    }
+
+    private void checkOpened() {
+        if (closed) {
+            throw new IllegalStateException("Outbox " + endpoint + " is closed.");
+        }
+    }
+
+    /**
+     * Sends all queued messages, stops writer and closes socket.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            queue.add(POISON);
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writer.isAlive()) {
+            logger.warn("Outbox {} not flushed in time.", endpoint);
+            writer.interrupt();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    MessageCodec getCodec() {
+        return codec;
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    long getSentMessages() {
+        return sentMessages.sum();
+    }
+
+    long getSentBatches() {
+        return sentBatches.sum();
+    }
+
+    long getFailedSends() {
+        return failedSends.sum();
+    }
+
+    long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    long getReconnects() {
+        return reconnects.sum();
+    }
+
+    /**
+     * Creates socket connected to target with monitor of its connection events.
+     */
+    private void connect() {
+        String monitorEndpoint = "inproc://monitor-" + name + "-" + System.identityHashCode(this);
+
+        socket = context.createSocket(identity == null ? SocketType.PAIR : SocketType.DEALER);
+        if (identity != null) {
+            socket.setIdentity(identity);
+        }
+        socket.setLinger(CLOSE_TIMEOUT);
+        socket.setReconnectIVL(RECONNECT_IVL);
+        socket.setReconnectIVLMax(RECONNECT_IVL_MAX);
+        socket.monitor(monitorEndpoint, ZMQ.EVENT_CONNECTED | ZMQ.EVENT_DISCONNECTED);
+        socket.connect(endpoint);
+
+        monitor = context.createSocket(SocketType.PAIR);
+        monitor.connect(monitorEndpoint);
+
+        logger.debug("Connecting to {}.", endpoint);
+    }
+
+    /**
+     * Closes socket and its monitor.
+     */
+    private void disconnect() {
+        socket.close();
+        monitor.close();
+    }
+
+    /**
+     * Writer loop. Takes queued messages in batches and sends them, checks connection health between batches.
+     */
+    private void write() {
+        connect();
+
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        long lastWarning = System.currentTimeMillis();
+        boolean running = true;
+
+        try {
+            while (running) {
+                // connection health
+                ZMQ.Event event;
+                while ((event = ZMQ.Event.recv(monitor, ZMQ.DONTWAIT)) != null) {
+                    if (event.getEvent() == ZMQ.EVENT_CONNECTED) {
+                        logger.debug("Connected to {}.", endpoint);
+                        connected = true;
+                        if (disconnects.sum() > 0) {
+                            reconnects.increment();
+                        }
+                    }
+                    else if (event.getEvent() == ZMQ.EVENT_DISCONNECTED) {
+                        logger.warn("Disconnected from {}.", endpoint);
+                        connected = false;
+                        disconnects.increment();
+                        lastWarning = System.currentTimeMillis();
+                    }
+                }
+
+                // ZeroMQ keeps reconnecting, frames queued in socket are sent when target is back
+                if (!connected && System.currentTimeMillis() - lastWarning > DOWN_WARNING_INTERVAL) {
+                    logger.warn("Connection to {} is still down, {} messages waiting.", endpoint, queue.size());
+                    lastWarning = System.currentTimeMillis();
+                }
+
+                // messages
+                Message first = queue.poll(HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                int last = batch.size() - 1;
+                int poison = batch.indexOf(POISON);
+                if (poison >= 0) {
+                    last = poison - 1;
+                    running = false;
+                }
+                space.release(poison >= 0 ? batch.size() - 1 : batch.size());
+
+                for (int i = 0; i <= last; i++) {
+                    batch.get(i).setSequence(++sequence);
+
+                    // ZeroMQ keeps reference to sent data until I/O thread writes it, while encoding buffer
+                    // is reused by the next message, so encoded message must be copied. JeroMQ never tells when
+                    // the data was written, so the copy cannot be pooled - it is one allocation per sent frame.
+                    ByteBuffer buffer = Codecs.encode(codec, batch.get(i));
+                    byte[] data = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    if (!socket.send(data, i < last ? ZMQ.SNDMORE : 0)) {
+                        failedSends.increment();
+                    }
+                }
+                if (last >= 0) {
+                    sentMessages.add(last + 1);
+                    sentBatches.increment();
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Outbox {} interrupted, {} messages dropped.", endpoint, queue.size());
+        } finally {
+            disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outstanding DEBIT and BATCH requests of hosting node waiting for reply. Reply (CREDIT with the money or REJECT,
+ * BATCH_REPLY for batch) carries ID of its request, so round trip time is measured from sending of the request to handling of the reply,
+ * including queueing in outboxes and listeners of both nodes.
+ * <p>
+ * Requests without reply are dropped after timeout. Reply which comes after timeout is still performed by
+ * listener, it is only counted as late.
+ */
+public class PendingRequests {
+
+    private static Logger logger = LoggerFactory.getLogger(PendingRequests.class);
+
+    /**
+     * Interval of timeout checks in milliseconds.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * Interval of round trip reports in milliseconds.
+     */
+    private static final long REPORT_INTERVAL = 10000;
+
+    /**
+     * Precision of latency histograms (significant decimal digits).
+     */
+    private static final int HISTOGRAM_PRECISION = 3;
+
+    // Metrics
+    private static final Recorder acceptedMetric = Metrics.getInstance()
+            .histogram("debit_round_trip_us{outcome=\"accepted\"}");
+    private static final Recorder rejectedMetric = Metrics.getInstance()
+            .histogram("debit_round_trip_us{outcome=\"rejected\"}");
+
+    /**
+     * Max time for reply in milliseconds
+     */
+    private final long timeout;
+
+    /**
+     * Outstanding requests by their ID
+     */
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Round trip times in microseconds of accepted and rejected requests since the last sweep
+     */
+    private final Recorder accepted = new Recorder(HISTOGRAM_PRECISION);
+    private final Recorder rejected = new Recorder(HISTOGRAM_PRECISION);
+
+    /**
+     * Round trip times of all requests, updated by timer thread, guarded by monitor of this object
+     */
+    private final Histogram acceptedTotal = new Histogram(HISTOGRAM_PRECISION);
+    private final Histogram rejectedTotal = new Histogram(HISTOGRAM_PRECISION);
+
+    /**
+     * Round trip times of requests since the last report, guarded by monitor of this object
+     */
+    private final Histogram acceptedInterval = new Histogram(HISTOGRAM_PRECISION);
+    private final Histogram rejectedInterval = new Histogram(HISTOGRAM_PRECISION);
+
+    private final LongAdder timedOut = new LongAdder();
+
+    private final LongAdder late = new LongAdder();
+
+    private final ScheduledExecutorService timer;
+
+    private long lastReport = System.nanoTime();
+
+    /**
+     * Defines table of requests and starts checking their timeouts.
+     * @param timeout - max time for reply in milliseconds
+     */
+    public PendingRequests(long timeout) {
+        this.timeout = timeout;
+
+        final String nodeID = ThreadContext.get("nodeID");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(() -> {
+                ThreadContext.put("nodeID", nodeID);
+                r.run();
+            }, "request-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers request which is about to be sent.
+     * @param target - target node ID
+     * @param amount - amount of money, sum of all entries of batch
+     * @return - request ID
+     */
+    long register(int target, long amount) {
+        long id = nextId.getAndIncrement();
+        pending.put(id, new Pending(target, amount));
+
+        return id;
+    }
+
+    /**
+     * Completes request by received reply.
+     * @param requestId - request ID
+     * @param accepted - true = request was performed (CREDIT reply or applied batch), false = rejected
+     * @return - false if request is not outstanding (unknown or timed out)
+     */
+    boolean complete(long requestId, boolean accepted) {
+        Pending p = pending.remove(requestId);
+        if (p == null) {
+            late.increment();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Reply to unknown or timed out request {}.", requestId);
+            }
+            return false;
+        }
+
+        long rtt = (System.nanoTime() - p.sentAt) / 1000;
+        (accepted ? this.accepted : this.rejected).recordValue(rtt);
+        (accepted ? acceptedMetric : rejectedMetric).recordValue(rtt);
+
+        return true;
+    }
+
+    /**
+     * @return - number of requests waiting for reply
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    public long getLateCount() {
+        return late.sum();
+    }
+
+    /**
+     * @return - copy of round trip times in microseconds of accepted requests, updated once per second
+     */
+    public synchronized Histogram getAcceptedLatency() {
+        return acceptedTotal.copy();
+    }
+
+    /**
+     * @return - copy of round trip times in microseconds of rejected requests, updated once per second
+     */
+    public synchronized Histogram getRejectedLatency() {
+        return rejectedTotal.copy();
+    }
+
+    /**
+     * Stops checking timeouts and logs round trip times of all requests.
+     */
+    public void close() {
+        timer.shutdownNow();
+        collect();
+
+        synchronized (this) {
+            report("Round trip of all DEBIT/BATCH requests", acceptedTotal, rejectedTotal);
+        }
+    }
+
+    /**
+     * Drops timed out requests, collects round trip times and reports them periodically.
+     */
+    private void sweep() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeout);
+        int expired = 0;
+        for (Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Pending> e = it.next();
+            Pending p = e.getValue();
+            if (p.sentAt - deadline < 0) {
+                it.remove();
+                expired++;
+                logger.debug("Request {} of {},- CZK to node {} timed out.", e.getKey(), p.amount, p.target);
+            }
+        }
+        if (expired > 0) {
+            timedOut.add(expired);
+            logger.warn("{} requests without reply in {} ms.", expired, timeout);
+        }
+
+        collect();
+
+        long now = System.nanoTime();
+        if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL)) {
+            synchronized (this) {
+                report("Round trip of DEBIT/BATCH requests", acceptedInterval, rejectedInterval);
+                acceptedInterval.reset();
+                rejectedInterval.reset();
+            }
+            lastReport = now;
+        }
+    }
+
+    /**
+     * Moves round trip times recorded since the last call to total and interval histograms.
+     */
+    private synchronized void collect() {
+        Histogram a = accepted.getIntervalHistogram();
+        Histogram r = rejected.getIntervalHistogram();
+        acceptedTotal.add(a);
+        rejectedTotal.add(r);
+        acceptedInterval.add(a);
+        rejectedInterval.add(r);
+    }
+
+    private void report(String title, Histogram a, Histogram r) {
+        if (a.getTotalCount() == 0 && r.getTotalCount() == 0) {
+            return;
+        }
+
+        logger.info("{}: {} accepted (us: p50 {}, p99 {}, p99.9 {}, max {}), {} rejected (us: p50 {}, p99 {}), " +
+                        "{} pending, {} timed out, {} late replies",
+                title, a.getTotalCount(), a.getValueAtPercentile(50), a.getValueAtPercentile(99),
+                a.getValueAtPercentile(99.9), a.getMaxValue(), r.getTotalCount(), r.getValueAtPercentile(50),
+                r.getValueAtPercentile(99), pending.size(), timedOut.sum(), late.sum());
+    }
+
+    /**
+     * Request waiting for reply.
+     */
+    private static class Pending {
+
+        private final int target;
+
+        private final long amount;
+
+        /**
+         * Time when request was sent (System.nanoTime)
+         */
+        private final long sentAt = System.nanoTime();
+
+        private Pending(int target, long amount) {
+            this.target = target;
+            this.amount = amount;
+        }
+
+    }
+
+}
@@ -0,0 +1,342 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens on all ports of hosting node with single {@link ZMQ.Poller}. Ready sockets are drained in batches
+ * and decoded messages are handed to worker pool. Order of each channel is restored by its
+ * {@link ChannelSequencer}, then all messages of the channel are handled by the same worker, or in parallel
+ * mode bank requests are spread over all workers and MARKERs wait for earlier messages. Workers are platform
+ * threads shared by ports, or one virtual thread per port (see {@link ListenerManager#createVirtualListener(int[])}).
+ * <p>
+ * Ports can be changed at runtime by {@link #setPorts(int[])}, sockets are rebound by polling thread.
+ */
+public class PollingListener extends Thread {
+
+    private static Logger logger = LoggerFactory.getLogger(PollingListener.class);
+
+    /**
+     * Max number of messages received from one socket before polling other sockets.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Manager which created the listener, it decodes and handles received messages
+     */
+    private final ListenerManager manager;
+
+    /**
+     * Listening ports
+     */
+    private int[] ports;
+
+    /**
+     * Ports requested by {@link #setPorts(int[])}, applied by polling thread
+     */
+    private volatile int[] requestedPorts;
+
+    /**
+     * Last request applied by polling thread
+     */
+    private int[] appliedPorts;
+
+    /**
+     * Single threaded workers, port at index i is served by worker i % workers.length
+     */
+    private ExecutorService[] workers;
+
+    /**
+     * Factory of workers, used for workers of added ports in per port mode
+     */
+    private final ThreadFactory factory;
+
+    /**
+     * True = each port has its own worker
+     */
+    private final boolean perPort;
+
+    /**
+     * True = bank requests of one channel are handled by all workers
+     */
+    private boolean parallel;
+
+    /**
+     * Restore order of channels, by sender node ID (see {@link ListenerManager#sequencerChannel(int, Message)}),
+     * used only by polling thread
+     */
+    private final Map<Integer, ChannelSequencer> sequencers = new HashMap<>();
+
+    /**
+     * Receive buffer of polling thread, frames are decoded from it in place
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(ListenerManager.RECEIVE_BUFFER_SIZE);
+
+    /**
+     * Creates polling listener.
+     * @param manager - manager which creates the listener
+     * @param ports - listening ports
+     * @param workers - number of threads handling received messages, 0 = handle them on polling thread,
+     *                  -1 = one thread per port
+     * @param factory - factory of worker threads
+     * @param parallel - true = bank requests of one channel are handled by all workers
+     */
+    PollingListener(ListenerManager manager, int[] ports, int workers, ThreadFactory factory, boolean parallel) {
+        this.manager = manager;
+        this.ports = ports;
+        this.requestedPorts = ports;
+        this.appliedPorts = ports;
+        this.factory = factory;
+        this.perPort = workers < 0;
+        this.workers = new ExecutorService[0];
+        this.parallel = parallel;
+
+        addWorkers(perPort ? ports.length : workers);
+    }
+
+    /**
+     * Changes listening ports. Sockets of kept ports stay open, so no message is lost on them.
+     * @param ports - new listening ports
+     */
+    public void setPorts(int[] ports) {
+        requestedPorts = ports.clone();
+    }
+
+    /**
+     * Creates workers up to given count.
+     * @param count - number of workers
+     */
+    private void addWorkers(int count) {
+        int first = workers.length;
+        if (count <= first) {
+            return;
+        }
+
+        ExecutorService[] added = Arrays.copyOf(workers, count);
+        for (int i = first; i < count; i++) {
+            ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), factory);
+            Metrics.getInstance().gauge("listener_queue_depth{worker=\"" + i + "\"}",
+                    () -> worker.getQueue().size());
+            added[i] = worker;
+        }
+        workers = added;
+    }
+
+    /**
+     * Polls all sockets and dispatches received messages.
+     */
+    @Override
+    public void run() {
+        ThreadContext.put("nodeID", manager.getSelfNodeNumber() + "");
+
+        ZMQ.Poller poller = manager.createPoller(ports.length);
+        ZMQ.Socket[] sockets = new ZMQ.Socket[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            sockets[i] = manager.bind(ports[i]);
+            poller.register(sockets[i], ZMQ.Poller.POLLIN);
+        }
+        manager.bound();
+
+        while (manager.isRunning()) {
+            int[] requested = requestedPorts;
+            if (requested != appliedPorts) {
+                appliedPorts = requested;
+                sockets = rebind(requested, sockets);
+                poller.close();
+                poller = manager.createPoller(sockets.length);
+                for (ZMQ.Socket socket: sockets) {
+                    poller.register(socket, ZMQ.Poller.POLLIN);
+                }
+            }
+
+            if (poller.poll(ListenerManager.RECEIVE_TIMEOUT) > 0) {
+                for (int i = 0; i < sockets.length; i++) {
+                    if (poller.pollin(i)) {
+                        drain(sockets[i], i);
+                    }
+                }
+            }
+        }
+
+        poller.close();
+        for (ZMQ.Socket socket: sockets) {
+            socket.close();
+        }
+
+        finishWorkers();
+
+        logger.info("Stop polling.");
+    }
+
+    /**
+     * Binds sockets of added ports and closes sockets of removed ports.
+     * @param requested - new listening ports
+     * @param sockets - sockets of current ports
+     * @return - sockets of new ports, in order of {@link #ports}
+     */
+    private ZMQ.Socket[] rebind(int[] requested, ZMQ.Socket[] sockets) {
+        Map<Integer, ZMQ.Socket> current = new HashMap<>();
+        for (int i = 0; i < ports.length; i++) {
+            current.put(ports[i], sockets[i]);
+        }
+
+        int[] bound = new int[requested.length];
+        ZMQ.Socket[] result = new ZMQ.Socket[requested.length];
+        int count = 0;
+        for (int port: requested) {
+            ZMQ.Socket socket = current.remove(port);
+            if (socket == null) {
+                try {
+                    socket = manager.bind(port);
+                } catch (RuntimeException e) {
+                    logger.error("Cannot listen on port {}: {}", port, e.getMessage());
+                    continue;
+                }
+            }
+            bound[count] = port;
+            result[count++] = socket;
+        }
+
+        for (Map.Entry<Integer, ZMQ.Socket> removed: current.entrySet()) {
+            removed.getValue().close();
+            logger.info("Stop listening on port {}.", removed.getKey());
+        }
+
+        if (perPort) {
+            addWorkers(count);
+        }
+        ports = Arrays.copyOf(bound, count);
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Hands message received by PAIR socket to sequencer of its channel. Channel is served by worker of the
+     * port where its first message was received.
+     * @param message - received message
+     * @param idx - index of port
+     */
+    void dispatch(Message message, int idx) {
+        dispatch(message, idx, message.getFrom(), false);
+    }
+
+    /**
+     * Hands received message to sequencer of its channel.
+     * @param message - received message
+     * @param idx - index of port
+     * @param channel - channel ID
+     * @param routed - true if message was received by ROUTER socket shared by channels, channel is then
+     *                 served by worker selected by channel ID (or by its own worker in per port mode)
+     */
+    private void dispatch(Message message, int idx, int channel, boolean routed) {
+        int key = manager.sequencerChannel(channel, message);
+        if (key == ListenerManager.DROPPED) {
+            return;
+        }
+
+        ChannelSequencer sequencer = sequencers.get(key);
+        if (sequencer == null) {
+            // other senders share worker of the port
+            boolean own = routed && key != ListenerManager.OTHER_CHANNEL;
+            Executor worker;
+            if (workers.length == 0) {
+                worker = ChannelSequencer.DIRECT;
+            }
+            else if (own && perPort) {
+                addWorkers(workers.length + 1);
+                worker = workers[workers.length - 1];
+            }
+            else {
+                worker = workers[(own ? key : idx) % workers.length];
+            }
+            sequencer = new ChannelSequencer(key, worker, parallel ? workers : null,
+                    manager::handleReceivedMessage, manager.getPool());
+            sequencers.put(key, sequencer);
+        }
+
+        sequencer.offer(message);
+    }
+
+    /**
+     * Stops workers after they finish handling of already received messages.
+     */
+    void finishWorkers() {
+        try {
+            // in parallel mode messages waiting for MARKER are started by workers
+            for (ChannelSequencer sequencer: sequencers.values()) {
+                if (!sequencer.awaitIdle(ListenerManager.DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.warn("Received messages not handled in time.");
+                }
+            }
+
+            for (ExecutorService worker: workers) {
+                worker.shutdown();
+            }
+            for (ExecutorService worker: workers) {
+                if (!worker.awaitTermination(ListenerManager.DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                    logger.warn("Received messages not handled in time.");
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while handling received messages.");
+        }
+    }
+
+    /**
+     * Receives up to {@link #BATCH_SIZE} messages from ready socket without blocking. Each part of multipart
+     * message is counted as one message, multipart message is always received completely.
+     * @param socket - ready socket
+     * @param idx - index of socket
+     */
+    private void drain(ZMQ.Socket socket, int idx) {
+        boolean routed = socket.getSocketType() == SocketType.ROUTER;
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            if (!ListenerManager.receive(socket, buffer, ZMQ.DONTWAIT)) {
+                return;
+            }
+
+            // ROUTER socket prepends identity of sending channel to each multipart message
+            int channel = -1;
+            if (routed) {
+                channel = ListenerManager.channelOf(buffer);
+                if (!socket.hasReceiveMore()) {
+                    count++;
+                    continue;
+                }
+                ListenerManager.receive(socket, buffer, 0);
+            }
+
+            // batch of messages is received as multipart message, its parts are already queued
+            while (true) {
+                Message message = manager.decode(buffer);
+                if (message != null) {
+                    dispatch(message, idx, channel >= 0 ? channel : message.getFrom(), routed);
+                }
+                count++;
+
+                if (!socket.hasReceiveMore()) {
+                    break;
+                }
+                ListenerManager.receive(socket, buffer, 0);
+            }
+        }
+    }
+
+}
@@ -1,19 +1,21 @@
 package cz.kiv.zcu.ds.bankserver.zmq;
 
-import cz.kiv.zcu.ds.bankserver.domain.Account;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
 import cz.kiv.zcu.ds.bankserver.config.Config;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
 import cz.kiv.zcu.ds.bankserver.domain.Message;
 import cz.kiv.zcu.ds.bankserver.domain.MessageType;
 import cz.kiv.zcu.ds.bankserver.domain.Node;
+import cz.kiv.zcu.ds.bankserver.util.LogLimiter;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
 import cz.kiv.zcu.ds.bankserver.util.Utils;
 import org.apache.logging.log4j.ThreadContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.zeromq.SocketType;
-import org.zeromq.ZContext;
-import org.zeromq.ZMQ;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Provides methods for responding on received messages and generates random bank operations that sends
@@ -23,22 +25,54 @@ public class Sender extends Thread {
 
     private static Logger logger = LoggerFactory.getLogger(Sender.class);
 
+    private static final LongAdder[] sent = Metrics.getInstance()
+            .counters("messages_sent_total", "type", MessageType.values());
+
+    private static final LogLimiter droppedLog = new LogLimiter(1);
+
     /**
      * Hosting node ID
      */
     private int selfNodeNumber;
 
     /**
-     * Opened sockets, where number specifies target node ID.
+     * Generator runs until sender is shut down.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Thread running the generator
+     */
+    private volatile Thread worker;
+
+    /**
+     * Outbound connections of hosting node.
      */
-    private static volatile HashMap<Integer, ZMQ.Socket> sockets = new HashMap<>();
+    private static volatile ConnectionRegistry connections;
 
     /**
-     * Defines sender for specified hosting node.
+     * DEBIT requests of hosting node waiting for reply.
+     */
+    private static volatile PendingRequests requests;
+
+    /**
+     * Coordinator of global state snapshots, generated requests must not interleave with start of snapshot.
+     */
+    private SnapshotCoordinator snapshots;
+
+    /**
+     * Defines sender for specified hosting node and opens all its outbound connections.
      * @param nodeNumber - hosting node ID
+     * @param snapshots - coordinator of global state snapshots
      */
-    public Sender(int nodeNumber) {
+    public Sender(int nodeNumber, SnapshotCoordinator snapshots) {
        this.selfNodeNumber = nodeNumber;
+       this.snapshots = snapshots;
+
+       connections = new ConnectionRegistry(nodeNumber);
+       connections.connectAll();
+       Config.addListener(connections);
+       requests = new PendingRequests(Config.REQUEST_TIMEOUT);
     }
 
     /**
@@ -47,132 +81,394 @@ public class Sender extends Thread {
     @Override
     public void run() {
         ThreadContext.put("nodeID", selfNodeNumber + "");
+        worker = Thread.currentThread();
 
-        while (!isInterrupted()) {
+        while (running) {
             try {
                 // simulate some delay
                 sleep(Utils.getUDRSleepTime());
 
                 // generated data to send
-                int receiverNodeIdx = Utils.getUDRNodeIdx(selfNodeNumber);
-                int amount = Utils.getUDRAmount();
-                String operation = Utils.getUDRBankOperation();
-
-                // decrease balance if sending credit
-                if (MessageType.resolve(operation) == MessageType.CREDIT) {
-                    if (!Account.getInstance().debit(amount)) {
-                        continue; // cannot send this amount of money
-                    }
-                }
-
-                // send request
-                send(selfNodeNumber, receiverNodeIdx, amount, operation);
+                generate(Utils.getUDRNodeIdx(selfNodeNumber), Utils.getUDRAmount(), Utils.getUDRBankOperation());
             } catch (InterruptedException e) {
                 logger.trace("Cannot perform thead sleep.");
             }
         }
+
+        logger.info("Bank request generator stopped.");
+    }
+
+    /**
+     * Performs bank request of hosting node - decreases balance of default account if it sends credit and sends
+     * the request.
+     * @param receiverNodeIdx - target node ID
+     * @param amount - amount of money
+     * @param operation - bank operation CREDIT or DEBIT
+     * @return - false if balance is too low for the credit or target is not in topology, nothing is sent
+     */
+    boolean generate(int receiverNodeIdx, int amount, MessageType operation) {
+        if (!Config.isActive(receiverNodeIdx)) {
+            return false;
+        }
+
+        Outbox reserved = reserve(receiverNodeIdx, operation);
+        if (reserved == null) {
+            return false;
+        }
+
+        Lock lock = snapshots.localLock();
+        snapshots.lock(lock);
+        try {
+            // decrease balance if sending credit
+            if (operation == MessageType.CREDIT) {
+                if (!Accounts.getInstance().getDefault().debit(amount)) {
+                    cancel(reserved);
+                    return false; // cannot send this amount of money
+                }
+                if (!snapshots.awaitDurable(lock, amount)) {
+                    Accounts.getInstance().getDefault().credit(amount);
+                    cancel(reserved);
+                    return false;
+                }
+            }
+
+            // send request, only DEBIT expects reply
+            long requestId = operation == MessageType.DEBIT ? requests.register(receiverNodeIdx, amount) : 0;
+            if (!send(reserved, selfNodeNumber, receiverNodeIdx, Accounts.DEFAULT_ACCOUNT, amount, operation,
+                    requestId)) {
+                if (operation == MessageType.CREDIT) {
+                    Accounts.getInstance().getDefault().credit(amount); // target left meanwhile, money stays here
+                }
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs batch of bank requests of hosting node - decreases balances of accounts by all CREDIT entries
+     * (all or none of them) and sends the batch. Batch always expects reply, which returns money of DEBIT entries,
+     * or of CREDIT entries if target rejects the batch.
+     * @param receiverNodeIdx - target node ID
+     * @param batch - CREDIT and DEBIT entries
+     * @return - false if balance is too low for the credits or target is not in topology, nothing is sent
+     */
+    boolean generateBatch(int receiverNodeIdx, Batch batch) {
+        if (!Config.isActive(receiverNodeIdx)) {
+            return false;
+        }
+
+        Outbox reserved = reserve(receiverNodeIdx, MessageType.BATCH);
+        if (reserved == null) {
+            return false;
+        }
+
+        Lock lock = snapshots.localLock();
+        snapshots.lock(lock);
+        try {
+            Batch credits = batch.select(MessageType.CREDIT, MessageType.DEBIT);
+            if (!credits.isEmpty()) {
+                if (!Accounts.getInstance().apply(credits)) {
+                    cancel(reserved);
+                    return false; // cannot send this amount of money
+                }
+                if (!snapshots.awaitDurable(lock, credits.sum(MessageType.DEBIT))) {
+                    Accounts.getInstance().apply(batch.select(MessageType.CREDIT, MessageType.CREDIT));
+                    cancel(reserved);
+                    return false;
+                }
+            }
+
+            long requestId = requests.register(receiverNodeIdx,
+                    batch.sum(MessageType.CREDIT) + batch.sum(MessageType.DEBIT));
+            if (!sendBatch(reserved, selfNodeNumber, receiverNodeIdx, MessageType.BATCH, batch, false, requestId)) {
+                // target left meanwhile, money stays here
+                Accounts.getInstance().apply(batch.select(MessageType.CREDIT, MessageType.CREDIT));
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - hosting node ID
+     */
+    int getSelfNodeNumber() {
+        return selfNodeNumber;
     }
 
     /**
-     * Creating socket for communication between selfNode and targetNode, where IP and port is for target.
-     * Target listening on port 5000 + sender's nodeID to distinguish channels.
-     *
-     * @param targetNodeIdx - Node ID of communication target
-     * @param ip - target's IP address
-     * @param port - target's port (listening on port 5000 + sender's nodeID)
+     * Stops generating bank requests.
      */
-    private static synchronized void createConnection(int targetNodeIdx, String ip, int port) {
-        ZContext context = new ZContext();
-        ZMQ.Socket socket = context.createSocket(SocketType.PAIR);
-        socket.connect("tcp://" + ip + ":" + port);
+    public void shutdown() {
+        running = false;
 
-        logger.debug("Connecting to {} on port {}.", ip, port);
+        Thread t = worker;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Reserves space for one message in outbound channel, so the message can be sent later without blocking.
+     * Blocks while channel is full, so it must not be called while channel locks are held - full channel of
+     * unresponsive neighbour would block start of snapshots, which waits for the locks, and with it all channels
+     * of hosting node.
+     * @param receiverIdx - target node ID
+     * @param type - type of message which will be sent
+     * @return - reserved channel, null if target is not in topology
+     */
+    static Outbox reserve(int receiverIdx, MessageType type) {
+        try {
+            Outbox outbox = connections.channel(receiverIdx);
+            outbox.reserve();
+            return outbox;
+        } catch (IllegalStateException e) {
+            dropped(type, receiverIdx, e);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while reserving space for {} to {}, message dropped.", type, receiverIdx);
+            Thread.currentThread().interrupt();
+        }
 
-        sockets.put(targetNodeIdx, socket);
+        return null;
     }
 
     /**
-     * Sends bank request based on given parameters.
+     * Returns space reserved by {@link #reserve(int, MessageType)} when message is not sent.
+     * @param reserved - reserved channel, null = nothing is reserved
+     */
+    static void cancel(Outbox reserved) {
+        if (reserved != null) {
+            reserved.cancelReservation();
+        }
+    }
+
+    /**
+     * Sends bank request or reply to it based on given parameters. Never blocks, message is queued into reserved
+     * space, which is used even if message is dropped.
+     * @param reserved - channel reserved by {@link #reserve(int, MessageType)}, null = target is not in topology
      * @param senderIdx - hosting node ID
      * @param receiverIdx - target node ID
+     * @param accountId - target account ID
      * @param amount - amount of money
-     * @param operation - bank operation CREDIT or DEBIT
+     * @param operation - bank operation CREDIT, DEBIT or REJECT
+     * @param requestId - ID of request expecting reply or ID of request being replied, 0 = none
+     * @return - false if target is not in topology, request is dropped
      */
-    static void send(int senderIdx, int receiverIdx, int amount, String operation) {
-        Node receiver = Config.getNode(receiverIdx);
-
+    static boolean send(Outbox reserved, int senderIdx, int receiverIdx, int accountId, int amount,
+                        MessageType operation, long requestId) {
         Message a = new Message();
         a.setNumData(amount);
         a.setType(operation);
         a.setFrom(senderIdx);
+        a.setAccountId(accountId);
+        a.setRequestId(requestId);
+
+        if (!sendReserved(reserved, receiverIdx, a)) {
+            return false;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending bank request to {}.", receiverIdx);
+        }
+        return true;
+    }
+
+    /**
+     * Sends batch of bank requests or reply to it. Never blocks, batch is queued into reserved space, which is
+     * used even if batch is dropped.
+     * @param reserved - channel reserved by {@link #reserve(int, MessageType)}, null = target is not in topology
+     * @param senderIdx - hosting node ID
+     * @param receiverIdx - target node ID
+     * @param type - BATCH or BATCH_REPLY
+     * @param batch - entries
+     * @param applied - true = replied batch was applied, false = it was rejected (always false for BATCH)
+     * @param requestId - ID of batch expecting reply or ID of batch being replied
+     * @return - false if target is not in topology, batch is dropped
+     */
+    static boolean sendBatch(Outbox reserved, int senderIdx, int receiverIdx, MessageType type, Batch batch,
+                             boolean applied, long requestId) {
+        Message a = new Message();
+        a.setType(type);
+        a.setFrom(senderIdx);
+        a.setNumData(applied ? 1 : 0);
+        a.setBatch(batch);
+        a.setRequestId(requestId);
 
-        String msg = Utils.serialize(a);
+        if (!sendReserved(reserved, receiverIdx, a)) {
+            return false;
+        }
 
-        if (!sockets.containsKey(receiverIdx)) {
-            createConnection(receiverIdx, receiver.getIp(), 5000 + senderIdx);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending {} of {} entries to {}.", type, batch.size(), receiverIdx);
         }
-        sockets.get(receiverIdx).send(msg.getBytes(ZMQ.CHARSET), 0);
+        return true;
+    }
 
-        logger.debug("Sending bank request to {} on port {}.", receiver.getIp(), 5000 + senderIdx);
+    /**
+     * Reserves space for markers in outbound channels, so markers can be sent later without blocking. Blocks while
+     * channels are full, so it must not be called while channel locks are held.
+     * @param receiversIndexes - target node IDs
+     * @return - reserved channels indexed as targets, null for target which is not in topology
+     */
+    static Outbox[] reserveMarkers(int[] receiversIndexes) {
+        Outbox[] reserved = new Outbox[receiversIndexes.length];
+        for (int i = 0; i < receiversIndexes.length; i++) {
+            reserved[i] = reserve(receiversIndexes[i], MessageType.MARKER);
+        }
+
+        return reserved;
+    }
+
+    /**
+     * Returns space reserved by {@link #reserveMarkers(int[])} when markers are not sent.
+     * @param reserved - reserved channels
+     */
+    static void cancelMarkers(Outbox[] reserved) {
+        for (Outbox outbox: reserved) {
+            cancel(outbox);
+        }
     }
 
     /**
-     * Sends marker based on given parameters.
+     * Sends marker based on given parameters. Never blocks, markers are queued into reserved space.
      * @param globalStateID - global state identifier
      * @param senderIdx - hosting node ID
      * @param receiversIndexes - target node ID
+     * @param reserved - channels reserved by {@link #reserveMarkers(int[])} for the targets
+     * @param baseSnapshotId - base of delta snapshot, -1 for full snapshot
      */
-    static void sendMarkers(int globalStateID, int senderIdx, int[] receiversIndexes) {
-        for (int receiverIdx: receiversIndexes) {
-            Node node = Config.getNode(receiverIdx);
+    static void sendMarkers(long globalStateID, int senderIdx, int[] receiversIndexes, Outbox[] reserved,
+                            long baseSnapshotId) {
+        for (int i = 0; i < receiversIndexes.length; i++) {
+            if (reserved[i] == null) {
+                continue;
+            }
 
             Message a = new Message();
-            a.setType(MessageType.MARKER.toString());
+            a.setType(MessageType.MARKER);
             a.setFrom(senderIdx);
-            a.setNumData(globalStateID);
-            String msg = Utils.serialize(a);
+            a.setSnapshotId(globalStateID);
+            a.setBaseSnapshotId(baseSnapshotId);
 
-            if (!sockets.containsKey(receiverIdx)) {
-                createConnection(receiverIdx, node.getIp(), 5000 + senderIdx);
+            if (sendReserved(reserved[i], receiversIndexes[i], a)) {
+                logger.debug("Sending marker to {}.", receiversIndexes[i]);
             }
-            sockets.get(receiverIdx).send(msg.getBytes(ZMQ.CHARSET), 0);
-
-            logger.debug("Sending marker to {} on port {}.", node.getIp(), 5000 + senderIdx);
         }
     }
 
     /**
      * Sends Cl algorithm report based on given parameters.
      * @param selfNodeNumber - hosting node ID
-     * @param rawString - CL algorithm report
+     * @param state - local state recorded by CL algorithm
      */
-    static void sendLocalState(int selfNodeNumber, String rawString) {
-        final int ID = 550 + selfNodeNumber;
-        Node node = Config.getNode(0);
+    static void sendLocalState(int selfNodeNumber, LocalState state) {
+        final int ID = ConnectionRegistry.REPORT_CHANNEL_OFFSET + selfNodeNumber;
+        Node node = Config.getNode(ConnectionRegistry.REPORT_NODE);
 
         Message rawMessage = new Message();
-        rawMessage.setFrom(ID); // results in port 5550 + NodeID
-        rawMessage.setType(MessageType.GLOBAL_STATE.toString());
-        rawMessage.setStrData(rawString);
-        String msg = Utils.serialize(rawMessage);
+        rawMessage.setFrom(ID); // distinguishes report channel from bank channel of the same node
+        rawMessage.setType(MessageType.GLOBAL_STATE);
+        rawMessage.setSnapshotId(state.getSnapshotId());
+        rawMessage.setState(state);
 
-        if (!sockets.containsKey(ID)) {
-            createConnection(ID, node.getIp(), 5000 + ID);
+        if (sendMessage(-1, rawMessage)) {
+            logger.debug("Sending global state to {}.", node.getIp());
         }
-        sockets.get(ID).send(msg.getBytes(ZMQ.CHARSET), 0);
+    }
 
-        logger.debug("Sending global state to {} on port {}.", node.getIp(), 5000 + ID);
+    /**
+     * Queues message to outbound channel. Message is sent asynchronously, caller is blocked only when channel
+     * queue is full. Message to node which left topology (or whose channel was closed meanwhile) is dropped.
+     * @param receiverIdx - target node ID, -1 = report channel
+     * @param message - message to send
+     * @return - false if message is dropped
+     */
+    private static boolean sendMessage(int receiverIdx, Message message) {
+        message.setTimestamp(System.currentTimeMillis());
+        Outbox outbox = null;
+        try {
+            outbox = receiverIdx < 0 ? connections.reportChannel() : connections.channel(receiverIdx);
+            outbox.enqueue(message);
+            sent[message.getType().ordinal()].increment();
+            return true;
+        } catch (IllegalStateException e) {
+            dropped(message.getType(), receiverIdx < 0 ? Config.REPORT_NODE : receiverIdx, e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while sending message to {}, message dropped.", outbox.getEndpoint());
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /**
-     * Close all opened sockets.
+     * Queues message into space reserved in outbound channel. Never blocks.
+     * @param reserved - channel reserved by {@link #reserve(int, MessageType)}, null = target is not in topology
+     * @param receiverIdx - target node ID
+     * @param message - message to send
+     * @return - false if message is dropped
      */
-    public void closeConnections() {
-        for (ZMQ.Socket socket : sockets.values()) {
-            socket.close();
+    private static boolean sendReserved(Outbox reserved, int receiverIdx, Message message) {
+        if (reserved == null) {
+            return false; // already logged when reserving
         }
 
-        sockets.clear();
+        message.setTimestamp(System.currentTimeMillis());
+        try {
+            reserved.enqueueReserved(message);
+            sent[message.getType().ordinal()].increment();
+            return true;
+        } catch (IllegalStateException e) {
+            dropped(message.getType(), receiverIdx, e);
+            return false;
+        }
+    }
+
+    /**
+     * Logs message dropped because its channel is closed or target is not in topology.
+     * @param type - type of dropped message
+     * @param receiverIdx - target node ID
+     * @param e - cause
+     */
+    private static void dropped(MessageType type, int receiverIdx, IllegalStateException e) {
+        long suppressed = droppedLog.acquire();
+        if (suppressed >= 0) {
+            logger.warn("Cannot send {} to node {}, message dropped ({} similar warnings suppressed): {}", type,
+                    receiverIdx, suppressed, e.getMessage());
+        }
+    }
+
+    /**
+     * Completes request of hosting node by received reply.
+     * @param reply - CREDIT, REJECT or BATCH_REPLY with ID of the request
+     */
+    static void replyReceived(Message reply) {
+        PendingRequests r = requests;
+        if (r != null && reply.getRequestId() != 0) {
+            r.complete(reply.getRequestId(), reply.getType() == MessageType.CREDIT
+                    || (reply.getType() == MessageType.BATCH_REPLY && reply.getNumData() == 1));
+        }
+    }
+
+    /**
+     * @return - DEBIT requests of hosting node waiting for reply, null if sender is not created
+     */
+    public static PendingRequests getRequests() {
+        return requests;
+    }
+
+    /**
+     * Sends all queued messages and closes all opened channels.
+     */
+    public void closeConnections() {
+        Config.removeListener(connections);
+        connections.close();
+        requests.close();
     }
 
 }
@@ -0,0 +1,546 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.config.Config;
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.GlobalState;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import cz.kiv.zcu.ds.bankserver.persistence.CheckpointStore;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import cz.kiv.zcu.ds.bankserver.util.LocalStateLogger;
+import cz.kiv.zcu.ds.bankserver.util.LogLimiter;
+import cz.kiv.zcu.ds.bankserver.util.Metrics;
+import cz.kiv.zcu.ds.bankserver.util.SnapshotIds;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs any number of concurrent Chandy-Lamport snapshots without global monitor. Snapshots may be initiated by
+ * any number of nodes at once, each node assigns globally unique IDs ({@link SnapshotIds}) to snapshots it
+ * initiates.
+ * <p>
+ * Each incoming channel has its own read-write lock. Every change of balance caused by a message from the channel
+ * (or by the local request generator, which has its own pseudo channel) is done under read lock of the channel,
+ * so channels never block each other. Only start of a new snapshot takes write locks of all channels, so
+ * recorded balance, start of channel recording and sent markers form one consistent cut.
+ * <p>
+ * Each channel keeps array of snapshots which currently record it, so recording a message costs
+ * O(snapshots active on the channel).
+ * <p>
+ * Local state of each completed full snapshot is persisted as checkpoint used for fast restart.
+ * <p>
+ * Snapshot may be delta of earlier completed snapshot (its base). If hosting node remembers its state recorded by
+ * the base, it reports only change since it, otherwise it falls back to full report.
+ */
+public class SnapshotCoordinator {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotCoordinator.class);
+
+    /**
+     * Number of completed snapshots remembered as possible bases of delta snapshots.
+     */
+    private static final int BASES_COUNT = 16;
+
+    // Metrics
+    private static final Recorder lockWait = Metrics.getInstance().histogram("channel_lock_wait_ns");
+    private static final Recorder duration = Metrics.getInstance().histogram("snapshot_duration_us");
+    private static final LongAdder completed = Metrics.getInstance().counter("snapshots_completed_total");
+
+    /**
+     * Limits warnings about stray markers, e.g. duplicates of markers of finished snapshots
+     */
+    private static final LogLimiter unknownMarkerLog = new LogLimiter(10);
+
+    /**
+     * Hosting node ID
+     */
+    private final int selfNodeNumber;
+
+    /**
+     * Storage of local states of completed snapshots, null if state is not persisted
+     */
+    private final CheckpointStore checkpoints;
+
+    /**
+     * Collector of local states of all nodes, null if hosting node does not collect them
+     */
+    private final GlobalStateAggregator aggregator;
+
+    /**
+     * Running snapshots by their ID
+     */
+    private final ConcurrentHashMap<Long, LocalStateLogger> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Local states of running snapshots initiated by hosting node by their ID
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<LocalState>> initiated = new ConcurrentHashMap<>();
+
+    /**
+     * Incoming channels indexed by sender node ID, replaced as a whole when nodes join
+     */
+    private volatile Channel[] channels;
+
+    /**
+     * Pseudo channel of bank requests generated by hosting node
+     */
+    private final Channel local = new Channel();
+
+    /**
+     * Channel of messages from unknown senders, never recorded
+     */
+    private final Channel unknown = new Channel();
+
+    /**
+     * States of hosting node recorded by recently completed snapshots by their ID, oldest are removed
+     */
+    private final Map<Long, Long> bases = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > BASES_COUNT;
+        }
+    };
+
+    /**
+     * Money debited by hosting node which waits for durability of the debit before it is sent, changed only under
+     * a channel lock, so it is stable while snapshot starts
+     */
+    private final LongAdder unsent = new LongAdder();
+
+    /**
+     * Free ID for new snapshot initiated by hosting node
+     */
+    private final AtomicLong nextId;
+
+    /**
+     * Monitor for waiting until all snapshots finish, used only when snapshot finishes.
+     */
+    private final Object idle = new Object();
+
+    /**
+     * Defines coordinator of specified hosting node.
+     * @param selfNodeNumber - hosting node ID
+     * @param checkpoints - storage of completed snapshots, null = snapshots are not persisted
+     * @param aggregator - collector of local states, null if hosting node does not collect them
+     */
+    public SnapshotCoordinator(int selfNodeNumber, CheckpointStore checkpoints, GlobalStateAggregator aggregator) {
+        this.selfNodeNumber = selfNodeNumber;
+        this.checkpoints = checkpoints;
+        this.aggregator = aggregator;
+        this.nextId = new AtomicLong(SnapshotIds.first(selfNodeNumber));
+        this.channels = new Channel[0];
+
+        addChannels(Config.nodesCount());
+    }
+
+    /**
+     * Adds incoming channels of nodes which joined. Waits until start of running snapshot is finished.
+     * @param nodesCount - number of node IDs in topology
+     */
+    public synchronized void addChannels(int nodesCount) {
+        if (nodesCount <= channels.length) {
+            return;
+        }
+
+        Channel[] all = lockAll();
+        try {
+            Channel[] updated = Arrays.copyOf(all, nodesCount);
+            for (int i = all.length; i < nodesCount; i++) {
+                updated[i] = new Channel();
+            }
+            channels = updated;
+        } finally {
+            unlockAll(all);
+        }
+    }
+
+    /**
+     * Returns lock that must be held while message from given channel changes balance and is recorded.
+     * @param from - sender node ID
+     * @return - read lock of the channel
+     */
+    public Lock channelLock(int from) {
+        return channel(from).lock.readLock();
+    }
+
+    /**
+     * Returns lock that must be held while bank request generated by hosting node changes balance and is sent.
+     * @return - read lock of local pseudo channel
+     */
+    public Lock localLock() {
+        return local.lock.readLock();
+    }
+
+    /**
+     * Acquires channel lock and records time spent waiting for it (i.e. for start of snapshot).
+     * @param lock - lock returned by {@link #channelLock(int)} or {@link #localLock()}
+     */
+    void lock(Lock lock) {
+        if (lock.tryLock()) {
+            lockWait.recordValue(0);
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        lockWait.recordValue(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits until debit which was just performed is durable ({@link Accounts#awaitDurable()}) without blocking
+     * start of snapshots. Channel lock is released while waiting and held again on return, debited money is
+     * recorded as part of state of hosting node by snapshots started meanwhile.
+     * @param lock - channel lock held by caller
+     * @param amount - debited money which leaves hosting node
+     * @return - false if debit may not be durable, caller must return the money and not send it
+     */
+    boolean awaitDurable(Lock lock, long amount) {
+        unsent.add(amount);
+        lock.unlock();
+        try {
+            return Accounts.getInstance().awaitDurable();
+        } finally {
+            lock(lock);
+            unsent.add(-amount);
+        }
+    }
+
+    /**
+     * Records amount of message in all snapshots currently recording given channel. Caller must hold
+     * {@link #channelLock(int)} of the channel.
+     * @param from - sender node ID
+     * @param type - type of bank request
+     * @param amount - amount of money
+     */
+    public void record(int from, MessageType type, int amount) {
+        for (LocalStateLogger lsl: channel(from).recording) {
+            lsl.saveMessage(from, type, amount);
+        }
+    }
+
+    /**
+     * Starts new full snapshot initiated by hosting node.
+     * @return - initiated snapshot
+     */
+    public InitiatedSnapshot initiate() {
+        return initiate(-1);
+    }
+
+    /**
+     * Starts new snapshot initiated by hosting node. Returns as soon as local state is recorded and markers are
+     * queued, snapshot then runs concurrently with other snapshots.
+     * @param baseSnapshotId - base of delta snapshot, -1 for full snapshot
+     * @return - initiated snapshot
+     */
+    public InitiatedSnapshot initiate(long baseSnapshotId) {
+        long id = nextId.getAndIncrement();
+        logger.debug("Starting Chandy-Lamport algorithm with ID {}.", id);
+
+        CompletableFuture<GlobalState> global;
+        if (aggregator != null) {
+            global = aggregator.initiated(id);
+        }
+        else {
+            global = new CompletableFuture<>();
+            global.completeExceptionally(new IllegalStateException("Global state is collected by node "
+                    + ConnectionRegistry.REPORT_NODE + "."));
+        }
+        CompletableFuture<LocalState> local = new CompletableFuture<>();
+        initiated.put(id, local);
+
+        if (!start(id, -1, baseSnapshotId)) {
+            initiated.remove(id);
+            throw new IllegalStateException("Snapshot " + id + " is already running.");
+        }
+
+        return new InitiatedSnapshot(id, local, global);
+    }
+
+    /**
+     * Handles MARKER received from given channel. First marker of snapshot starts it, every marker stops
+     * recording of its channel.
+     * @param id - snapshot ID
+     * @param from - sender node ID
+     * @param baseSnapshotId - base of delta snapshot, -1 for full snapshot
+     */
+    public void markerReceived(long id, int from, long baseSnapshotId) {
+        if (!snapshots.containsKey(id) && !isFinished(id) && start(id, from, baseSnapshotId)) {
+            return;
+        }
+
+        LocalStateLogger lsl = snapshots.get(id);
+        if (lsl == null) {
+            long suppressed = unknownMarkerLog.acquire();
+            if (suppressed >= 0) {
+                logger.warn("MARKER from {} for unknown or finished snapshot {} ({} similar warnings suppressed).",
+                        from, id, suppressed);
+            }
+            return;
+        }
+
+        Channel channel = channel(from);
+        synchronized (channel) {
+            channel.remove(lsl);
+        }
+        lsl.stopLogging(from);
+        logger.debug("Stopping logging messages from node {} for ID {}.", from, id);
+
+        finish(id, lsl);
+    }
+
+    /**
+     * Stops recording of channel from node which left topology, no MARKER will come from it. Running snapshots
+     * waiting only for this channel are finished.
+     * @param from - sender node ID
+     */
+    public void channelClosed(int from) {
+        Channel channel = channel(from);
+        for (Map.Entry<Long, LocalStateLogger> entry: snapshots.entrySet()) {
+            LocalStateLogger lsl = entry.getValue();
+            if (!lsl.isLogging(from)) {
+                continue;
+            }
+
+            synchronized (channel) {
+                channel.remove(lsl);
+            }
+            lsl.stopLogging(from);
+            logger.debug("Node {} left, stopping logging its messages for ID {}.", from, entry.getKey());
+
+            finish(entry.getKey(), lsl);
+        }
+    }
+
+    /**
+     * @return - number of running snapshots
+     */
+    public int activeCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * Waits until all running snapshots are finished.
+     * @param timeout - max waiting time
+     * @param unit - unit of timeout
+     * @return - true if no snapshot is running
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (idle) {
+            while (!snapshots.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Atomically records local state, starts recording of all incoming channels except the one which delivered
+     * the marker, and sends markers to all neighbours. Space for markers is reserved in outbound channels before
+     * channel locks are taken, so no listener waits for network while they are held.
+     * @param id - snapshot ID
+     * @param from - node which sent the first marker, -1 if snapshot is initiated by hosting node
+     * @param baseSnapshotId - base of delta snapshot, -1 for full snapshot
+     * @return - false if snapshot with this ID is already running
+     */
+    private boolean start(long id, int from, long baseSnapshotId) {
+        if (aggregator != null) {
+            aggregator.announced(id); // before markers, which trigger reports of other nodes
+        }
+
+        int[] neighbours = Config.activeNeighbours(selfNodeNumber);
+        Outbox[] reserved = Sender.reserveMarkers(neighbours);
+        boolean sent = false;
+
+        Channel[] all = lockAll();
+        try {
+            if (snapshots.containsKey(id)) {
+                return false;
+            }
+
+            Long baseState = null;
+            if (baseSnapshotId >= 0) {
+                synchronized (bases) {
+                    baseState = bases.get(baseSnapshotId);
+                }
+                if (baseState == null) {
+                    logger.debug("Base {} of snapshot {} is unknown, recording full state.", baseSnapshotId, id);
+                }
+            }
+
+            LocalStateLogger lsl = baseState == null
+                    ? new LocalStateLogger(selfNodeNumber, Accounts.getInstance(), unsent.sum())
+                    : new LocalStateLogger(selfNodeNumber, Accounts.getInstance(), unsent.sum(), baseSnapshotId,
+                            baseState);
+            lsl.startLogging(neighbours);
+            for (int neighbour: neighbours) {
+                if (neighbour != from) {
+                    Channel channel = channel(neighbour);
+                    synchronized (channel) {
+                        channel.add(lsl);
+                    }
+                }
+            }
+            snapshots.put(id, lsl);
+
+            logger.debug("Starting logging node state for ID {} initiated by node {} ...", id,
+                    SnapshotIds.initiator(id));
+
+            Sender.sendMarkers(id, selfNodeNumber, neighbours, reserved, baseSnapshotId);
+            sent = true;
+        } finally {
+            unlockAll(all);
+            if (!sent) {
+                Sender.cancelMarkers(reserved);
+            }
+        }
+
+        LocalStateLogger lsl = snapshots.get(id);
+        if (lsl == null) {
+            return true; // channels closed meanwhile finished it
+        }
+        if (from >= 0) {
+            lsl.stopLogging(from);
+            logger.debug("Stopping logging messages from node {} for ID {}.", from, id);
+        }
+        finish(id, lsl); // node without neighbours finishes immediately
+
+        return true;
+    }
+
+    /**
+     * Sends report, writes checkpoint and removes snapshot when all channels are recorded. Report is sent exactly
+     * once even if called concurrently.
+     * @param id - snapshot ID
+     * @param lsl - snapshot state
+     */
+    private void finish(long id, LocalStateLogger lsl) {
+        if (!lsl.isLoggingDone() || !snapshots.remove(id, lsl)) {
+            return;
+        }
+
+        logger.debug("Final state for Node-{} with Global state ID {}: {}", selfNodeNumber, id, lsl);
+        LocalState state = lsl.toLocalState(id);
+        Sender.sendLocalState(selfNodeNumber, state);
+        duration.recordValue(state.getRecordingTime());
+        completed.increment();
+
+        synchronized (bases) {
+            bases.put(id, lsl.getNodeState());
+        }
+
+        CompletableFuture<LocalState> local = initiated.remove(id);
+        if (local != null) {
+            local.complete(state);
+        }
+
+        if (checkpoints != null && !lsl.isDelta()) {
+            try {
+                checkpoints.save(id, lsl);
+            } catch (IOException e) {
+                logger.error("Cannot write checkpoint of snapshot " + id + ".", e);
+            }
+        }
+
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+    }
+
+    /**
+     * @param id - snapshot ID
+     * @return - true if snapshot is among recently completed ones
+     */
+    private boolean isFinished(long id) {
+        synchronized (bases) {
+            return bases.containsKey(id);
+        }
+    }
+
+    private Channel channel(int from) {
+        Channel[] all = channels;
+        if (from < 0 || from >= all.length) {
+            return unknown;
+        }
+
+        return all[from];
+    }
+
+    /**
+     * Takes write locks of all channels.
+     * @return - locked channels, must be passed to {@link #unlockAll(Channel[])}
+     */
+    private Channel[] lockAll() {
+        while (true) {
+            Channel[] all = channels;
+            for (Channel channel: all) {
+                channel.lock.writeLock().lock();
+            }
+            local.lock.writeLock().lock();
+            unknown.lock.writeLock().lock();
+
+            if (all == channels) {
+                return all;
+            }
+            unlockAll(all); // channels were added meanwhile
+        }
+    }
+
+    private void unlockAll(Channel[] all) {
+        unknown.lock.writeLock().unlock();
+        local.lock.writeLock().unlock();
+        for (int i = all.length - 1; i >= 0; i--) {
+            all[i].lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Incoming channel. Recording snapshots are changed under monitor of the channel, read without locking.
+     */
+    private static class Channel {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private volatile LocalStateLogger[] recording = new LocalStateLogger[0];
+
+        private void add(LocalStateLogger lsl) {
+            LocalStateLogger[] updated = Arrays.copyOf(recording, recording.length + 1);
+            updated[recording.length] = lsl;
+            recording = updated;
+        }
+
+        private void remove(LocalStateLogger lsl) {
+            LocalStateLogger[] current = recording;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == lsl) {
+                    LocalStateLogger[] updated = new LocalStateLogger[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    recording = updated;
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
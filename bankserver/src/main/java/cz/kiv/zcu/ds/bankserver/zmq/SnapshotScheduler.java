@@ -0,0 +1,136 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.GlobalState;
+import org.apache.logging.log4j.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically initiates snapshots on hosting node.
+ * <p>
+ * In delta mode snapshots form series - each snapshot is delta of the latest complete snapshot collected by
+ * {@link GlobalStateAggregator}, every {@code fullEvery}-th snapshot (and any snapshot without complete base) is
+ * full. Delta mode therefore requires the aggregator on hosting node, otherwise all snapshots are full.
+ * <p>
+ * Tick is skipped while too many snapshots initiated by this scheduler are running, so slow snapshots do not pile
+ * up. Snapshots initiated by other nodes are not counted, they do not block local ones.
+ */
+public class SnapshotScheduler {
+
+    private static Logger logger = LoggerFactory.getLogger(SnapshotScheduler.class);
+
+    /**
+     * Max number of running snapshots initiated by scheduler, when reached tick is skipped.
+     */
+    private static final int MAX_ACTIVE = 4;
+
+    private final SnapshotCoordinator snapshots;
+
+    /**
+     * Source of bases of delta snapshots, null = only full snapshots
+     */
+    private final GlobalStateAggregator aggregator;
+
+    /**
+     * Interval between snapshots in milliseconds
+     */
+    private final long interval;
+
+    /**
+     * Max number of delta snapshots between two full snapshots, 0 = only full snapshots
+     */
+    private final int fullEvery;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Number of delta snapshots initiated since the last full one, accessed only by timer thread
+     */
+    private int deltas;
+
+    private long skipped;
+
+    /**
+     * Number of initiated snapshots whose local state is not recorded yet
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Defines scheduler, it does not run until started.
+     * @param snapshots - coordinator of hosting node
+     * @param aggregator - collector of global states, null = only full snapshots
+     * @param interval - interval between snapshots in milliseconds
+     * @param fullEvery - max number of delta snapshots between two full snapshots, 0 = only full snapshots
+     */
+    public SnapshotScheduler(SnapshotCoordinator snapshots, GlobalStateAggregator aggregator, long interval,
+                             int fullEvery) {
+        this.snapshots = snapshots;
+        this.aggregator = aggregator;
+        this.interval = interval;
+        this.fullEvery = aggregator == null ? 0 : fullEvery;
+
+        final String nodeID = ThreadContext.get("nodeID");
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(() -> {
+                ThreadContext.put("nodeID", nodeID);
+                r.run();
+            }, "snapshot-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts initiating snapshots.
+     */
+    public void start() {
+        timer.scheduleAtFixedRate(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("Initiating {} snapshot every {} ms.", fullEvery > 0 ? "delta" : "full", interval);
+    }
+
+    /**
+     * Stops initiating snapshots, running snapshots are not affected.
+     */
+    public void close() {
+        timer.shutdownNow();
+        if (skipped > 0) {
+            logger.info("{} scheduled snapshots skipped.", skipped);
+        }
+    }
+
+    private void tick() {
+        try {
+            if (running.get() >= MAX_ACTIVE) {
+                skipped++;
+                logger.debug("{} snapshots running, skipping scheduled snapshot.", running.get());
+                return;
+            }
+
+            long base = -1;
+            GlobalState latest = aggregator == null ? null : aggregator.getLatest();
+            if (latest != null && latest.isComplete() && deltas < fullEvery) {
+                base = latest.getSnapshotId();
+                deltas++;
+            }
+            else {
+                deltas = 0;
+            }
+
+            running.incrementAndGet();
+            try {
+                snapshots.initiate(base).getLocal().whenComplete((state, e) -> running.decrementAndGet());
+            } catch (RuntimeException e) {
+                running.decrementAndGet();
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Scheduled snapshot failed.", e); // exception would cancel further ticks
+        }
+    }
+
+}
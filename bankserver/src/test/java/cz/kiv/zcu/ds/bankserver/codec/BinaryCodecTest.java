@@ -0,0 +1,259 @@
+package cz.kiv.zcu.ds.bankserver.codec;
+
+import cz.kiv.zcu.ds.bankserver.domain.Batch;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryCodecTest {
+
+    /**
+     * Offsets of fields of message without text and local state
+     */
+    private static final int STRING_LENGTH = 3 + 3 * Integer.BYTES + 5 * Long.BYTES;
+    private static final int BATCH_ENTRIES = STRING_LENGTH + Integer.BYTES + 1;
+
+    private final BinaryCodec codec = new BinaryCodec();
+
+    @Test
+    public void roundTripOfBankRequest() {
+        Message message = new Message();
+        message.setType(MessageType.CREDIT);
+        message.setFrom(3);
+        message.setNumData(5000);
+        message.setAccountId(7);
+        message.setRequestId(123456789012L);
+        message.setTimestamp(1600000000000L);
+        message.setSequence(42);
+
+        byte[] data = encode(message);
+        assertEquals(BinaryCodec.HEADER_SIZE, data.length);
+
+        Message decoded = codec.decode(data, 0, data.length);
+        assertEquals(MessageType.CREDIT, decoded.getType());
+        assertEquals(3, decoded.getFrom());
+        assertEquals(5000, decoded.getNumData());
+        assertEquals(7, decoded.getAccountId());
+        assertEquals(123456789012L, decoded.getRequestId());
+        assertEquals(1600000000000L, decoded.getTimestamp());
+        assertEquals(42, decoded.getSequence());
+        assertNull(decoded.getStrData());
+        assertNull(decoded.getState());
+        assertNull(decoded.getBatch());
+    }
+
+    @Test
+    public void roundTripOfReport() {
+        LocalState state = new LocalState();
+        state.setSnapshotId(1L << 40);
+        state.setNodeId(2);
+        state.setBalance(-150);
+        state.setCreditsInFlight(300);
+        state.setDebitsInFlight(200);
+        state.setRecordedMessages(5);
+        state.setRecordingTime(1234);
+
+        Message message = new Message();
+        message.setType(MessageType.GLOBAL_STATE);
+        message.setStrData("p\u0159\u00edli\u0161 \u017elu\u0165ou\u010dk\u00fd k\u016f\u0148");
+        message.setSnapshotId(1L << 40);
+        message.setState(state);
+
+        byte[] data = encode(message);
+        Message decoded = codec.decode(data, 0, data.length);
+        assertEquals(message.getStrData(), decoded.getStrData());
+        assertEquals(1L << 40, decoded.getSnapshotId());
+
+        LocalState decodedState = decoded.getState();
+        assertEquals(1L << 40, decodedState.getSnapshotId());
+        assertEquals(2, decodedState.getNodeId());
+        assertEquals(-150, decodedState.getBalance());
+        assertEquals(300, decodedState.getCreditsInFlight());
+        assertEquals(200, decodedState.getDebitsInFlight());
+        assertEquals(5, decodedState.getRecordedMessages());
+        assertEquals(1234, decodedState.getRecordingTime());
+        assertEquals(-1, decodedState.getBaseSnapshotId());
+    }
+
+    @Test
+    public void roundTripOfDeltaReport() {
+        LocalState state = new LocalState();
+        state.setSnapshotId(1L << 40);
+        state.setNodeId(2);
+        state.setBalance(-150);
+        state.setCreditsInFlight(Long.MAX_VALUE);
+        state.setDebitsInFlight(Long.MIN_VALUE);
+        state.setRecordedMessages(5);
+        state.setRecordingTime(1234);
+        state.setBaseSnapshotId((1L << 40) - 3);
+
+        Message message = new Message();
+        message.setType(MessageType.GLOBAL_STATE);
+        message.setSnapshotId(1L << 40);
+        message.setState(state);
+
+        byte[] data = encode(message);
+        LocalState decodedState = codec.decode(data, 0, data.length).getState();
+        assertEquals(1L << 40, decodedState.getSnapshotId());
+        assertEquals(2, decodedState.getNodeId());
+        assertEquals(-150, decodedState.getBalance());
+        assertEquals(Long.MAX_VALUE, decodedState.getCreditsInFlight());
+        assertEquals(Long.MIN_VALUE, decodedState.getDebitsInFlight());
+        assertEquals(5, decodedState.getRecordedMessages());
+        assertEquals(1234, decodedState.getRecordingTime());
+        assertEquals((1L << 40) - 3, decodedState.getBaseSnapshotId());
+    }
+
+    @Test
+    public void deltaReportIsSmallerThanFullReport() {
+        LocalState state = new LocalState();
+        state.setSnapshotId(1L << 40);
+        state.setNodeId(2);
+        state.setBalance(-150);
+        state.setRecordedMessages(5);
+        state.setRecordingTime(1234);
+
+        Message message = new Message();
+        message.setType(MessageType.GLOBAL_STATE);
+        message.setSnapshotId(1L << 40);
+        message.setState(state);
+        assertEquals(BinaryCodec.HEADER_SIZE + BinaryCodec.STATE_SIZE, encode(message).length);
+
+        state.setBaseSnapshotId((1L << 40) - 1);
+        // snapshot, node, base, credits, debits, messages: 1 byte each, balance and recording time: 2 bytes each
+        assertEquals(BinaryCodec.HEADER_SIZE + 10, encode(message).length);
+    }
+
+    @Test
+    public void varLongSize() {
+        assertEquals(1, BinaryCodec.varLongSize(0));
+        assertEquals(1, BinaryCodec.varLongSize(-64));
+        assertEquals(2, BinaryCodec.varLongSize(64));
+        assertEquals(10, BinaryCodec.varLongSize(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void roundTripOfBatch() {
+        Batch batch = new Batch(2);
+        batch.add(MessageType.CREDIT, 1, 100);
+        batch.add(MessageType.DEBIT, 2, 200);
+
+        Message message = new Message();
+        message.setType(MessageType.BATCH);
+        message.setBatch(batch);
+
+        byte[] data = encode(message);
+        assertEquals(BinaryCodec.HEADER_SIZE + 2 * BinaryCodec.ENTRY_SIZE, data.length);
+
+        Batch decoded = codec.decode(data, 0, data.length).getBatch();
+        assertEquals(2, decoded.size());
+        assertEquals(MessageType.CREDIT, decoded.getType(0));
+        assertEquals(1, decoded.getAccountId(0));
+        assertEquals(100, decoded.getAmount(0));
+        assertEquals(MessageType.DEBIT, decoded.getType(1));
+        assertEquals(2, decoded.getAccountId(1));
+        assertEquals(200, decoded.getAmount(1));
+    }
+
+    @Test
+    public void decodingIntoReusedMessageClearsOptionalParts() {
+        Message report = new Message();
+        report.setType(MessageType.GLOBAL_STATE);
+        report.setStrData("report");
+        report.setState(new LocalState());
+        report.setBatch(new Batch(0));
+        byte[] reportData = encode(report);
+
+        Message credit = new Message();
+        credit.setType(MessageType.CREDIT);
+        byte[] creditData = encode(credit);
+
+        Message message = new Message();
+        codec.decode(ByteBuffer.wrap(reportData), message);
+        codec.decode(ByteBuffer.wrap(creditData), message);
+
+        assertEquals(MessageType.CREDIT, message.getType());
+        assertNull(message.getStrData());
+        assertNull(message.getState());
+        assertNull(message.getBatch());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJson() {
+        byte[] data = "{\"type\":\"CREDIT\"}".getBytes();
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedVersion() {
+        byte[] data = encode(new Message());
+        data[1] = BinaryCodec.VERSION + 1;
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void rejectsTruncatedMessage() {
+        byte[] data = encode(new Message());
+        codec.decode(data, 0, data.length - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStringLongerThanMessage() {
+        byte[] data = encode(new Message());
+        ByteBuffer.wrap(data).putInt(STRING_LENGTH, Integer.MAX_VALUE);
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeStringLength() {
+        byte[] data = encode(new Message());
+        ByteBuffer.wrap(data).putInt(STRING_LENGTH, -2);
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchBiggerThanLimit() {
+        byte[] data = encode(new Message());
+        ByteBuffer.wrap(data).putInt(BATCH_ENTRIES, Batch.MAX_SIZE + 1);
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchLongerThanMessage() {
+        byte[] data = encode(new Message());
+        ByteBuffer.wrap(data).putInt(BATCH_ENTRIES, 2);
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeBatchSize() {
+        byte[] data = encode(new Message());
+        ByteBuffer.wrap(data).putInt(BATCH_ENTRIES, -2);
+        codec.decode(data, 0, data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOverlongVarint() {
+        Message message = new Message();
+        message.setState(new LocalState());
+        message.getState().setBaseSnapshotId(0);
+        byte[] data = encode(message);
+        byte[] overlong = Arrays.copyOf(data, data.length + 11);
+        Arrays.fill(overlong, BATCH_ENTRIES, BATCH_ENTRIES + 11, (byte) 0x80);
+        codec.decode(overlong, 0, overlong.length);
+    }
+
+    private byte[] encode(Message message) {
+        ByteBuffer buffer = codec.encode(message, ByteBuffer.allocate(16));
+        return Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+    }
+
+}
@@ -0,0 +1,139 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AccountTest {
+
+    private static final int THREADS = 4;
+
+    @Test
+    public void creditAndDebitChangeBalanceAndLedger() {
+        Account account = account(1000);
+
+        account.credit(500);
+        assertTrue(account.debit(300));
+
+        assertEquals(1200, account.getBalance());
+        assertEquals(500, account.getCredited());
+        assertEquals(300, account.getDebited());
+        assertEquals(1, account.getCreditsCount());
+        assertEquals(1, account.getDebitsCount());
+    }
+
+    @Test
+    public void debitOfWholeBalanceSucceeds() {
+        Account account = account(1000);
+
+        assertTrue(account.debit(1000));
+        assertEquals(0, account.getBalance());
+    }
+
+    @Test
+    public void debitFailsOnLowBalanceWithoutAnyChange() {
+        Account account = account(1000);
+
+        assertFalse(account.debit(1001));
+
+        assertEquals(1000, account.getBalance());
+        assertEquals(0, account.getDebited());
+        assertEquals(0, account.getDebitsCount());
+    }
+
+    @Test
+    public void creditFailsOnOverflowWithoutAnyChange() {
+        Account account = account(Long.MAX_VALUE - 10);
+
+        try {
+            account.credit(11);
+            fail("Overflow of balance was not detected.");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+
+        assertEquals(Long.MAX_VALUE - 10, account.getBalance());
+        assertEquals(0, account.getCredited());
+        assertEquals(0, account.getCreditsCount());
+    }
+
+    @Test
+    public void concurrentDebitsNeverOverdraw() throws Exception {
+        Account account = account(1000);
+
+        List<Integer> succeeded = runConcurrently(() -> {
+            int count = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (account.debit(1)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+
+        assertEquals(1000, succeeded.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(0, account.getBalance());
+        assertEquals(1000, account.getDebited());
+    }
+
+    @Test
+    public void concurrentCreditsAndDebitsLoseNoUpdate() throws Exception {
+        Account account = account(THREADS * 1000);
+
+        runConcurrently(() -> {
+            for (int i = 0; i < 1000; i++) {
+                account.credit(3);
+                assertTrue(account.debit(2));
+            }
+            return 0;
+        });
+
+        assertEquals(THREADS * 2000, account.getBalance());
+        assertEquals(THREADS * 3000, account.getCredited());
+        assertEquals(THREADS * 2000, account.getDebited());
+    }
+
+    private static Account account(long balance) {
+        return new Account(Accounts.getInstance(), 1, balance);
+    }
+
+    /**
+     * Runs task in several threads at once.
+     * @param task - task run by each thread
+     * @return - results of all threads
+     */
+    private static List<Integer> runConcurrently(Callable<Integer> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+
+            List<Integer> results = new ArrayList<>();
+            for (Future<Integer> future: futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import cz.kiv.zcu.ds.bankserver.config.Config;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AccountsTest {
+
+    private final Accounts accounts = Accounts.getInstance();
+
+    @Test
+    public void defaultAccountIsOpenedWithInitialBalance() {
+        Account account = accounts.get(Accounts.DEFAULT_ACCOUNT);
+
+        assertSame(accounts.getDefault(), account);
+        assertEquals(Accounts.DEFAULT_ACCOUNT, account.getId());
+        assertEquals(Config.INITIAL_BALANCE, account.getBalance() + account.getDebited() - account.getCredited());
+    }
+
+    @Test
+    public void otherAccountIsOpenedEmptyOnFirstUse() {
+        Account account = accounts.get(3);
+
+        assertEquals(3, account.getId());
+        assertEquals(0, account.getBalance() + account.getDebited() - account.getCredited());
+        assertSame(account, accounts.get(3));
+    }
+
+    @Test
+    public void unknownAccountIsNotOpened() {
+        assertNull(accounts.get(Config.ACCOUNTS_COUNT));
+        assertNull(accounts.get(-1));
+    }
+
+    @Test
+    public void restoredAccountExistsEvenIfNotConfigured() {
+        accounts.restore(MessageType.CREDIT, Config.ACCOUNTS_COUNT + 1, 0);
+
+        assertEquals(Config.ACCOUNTS_COUNT + 1, accounts.get(Config.ACCOUNTS_COUNT + 1).getId());
+    }
+
+    @Test
+    public void totalBalanceSumsAllAccounts() {
+        long before = accounts.getTotalBalance();
+
+        accounts.get(4).credit(100);
+        accounts.get(Accounts.DEFAULT_ACCOUNT).debit(40);
+
+        assertEquals(before + 60, accounts.getTotalBalance());
+    }
+
+    @Test
+    public void batchIsAppliedWhole() {
+        accounts.get(10).credit(100);
+        long before = accounts.getTotalBalance();
+
+        Batch batch = new Batch(3);
+        batch.add(MessageType.DEBIT, 10, 60);
+        batch.add(MessageType.CREDIT, 11, 50);
+        batch.add(MessageType.DEBIT, 10, 40);
+
+        assertTrue(accounts.apply(batch));
+        assertEquals(0, accounts.get(10).getBalance());
+        assertEquals(50, accounts.get(11).getBalance());
+        assertEquals(before - 50, accounts.getTotalBalance());
+    }
+
+    @Test
+    public void batchWithFailingDebitIsRolledBack() {
+        accounts.get(12).credit(100);
+        long before = accounts.getTotalBalance();
+
+        Batch batch = new Batch(3);
+        batch.add(MessageType.DEBIT, 12, 60);
+        batch.add(MessageType.CREDIT, 13, 50);
+        batch.add(MessageType.DEBIT, 12, 41);
+
+        assertFalse(accounts.apply(batch));
+        assertEquals(100, accounts.get(12).getBalance());
+        assertEquals(0, accounts.get(13).getBalance());
+        assertEquals(before, accounts.getTotalBalance());
+    }
+
+    @Test
+    public void batchWithUnknownAccountIsRejected() {
+        accounts.get(14).credit(100);
+        long before = accounts.getTotalBalance();
+
+        Batch batch = new Batch(2);
+        batch.add(MessageType.DEBIT, 14, 60);
+        batch.add(MessageType.CREDIT, Config.ACCOUNTS_COUNT, 60);
+
+        assertFalse(accounts.apply(batch));
+        assertEquals(100, accounts.get(14).getBalance());
+        assertNull(accounts.get(Config.ACCOUNTS_COUNT));
+        assertEquals(before, accounts.getTotalBalance());
+    }
+
+}
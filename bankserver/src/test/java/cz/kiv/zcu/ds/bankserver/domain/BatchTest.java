@@ -0,0 +1,69 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTest {
+
+    @Test
+    public void keepsEntriesInOrder() {
+        Batch batch = new Batch(2);
+        assertTrue(batch.isEmpty());
+
+        batch.add(MessageType.DEBIT, 1, 100);
+        batch.add(MessageType.CREDIT, 2, 200);
+
+        assertEquals(2, batch.size());
+        assertEquals(MessageType.DEBIT, batch.getType(0));
+        assertEquals(1, batch.getAccountId(0));
+        assertEquals(100, batch.getAmount(0));
+        assertEquals(MessageType.CREDIT, batch.getType(1));
+        assertEquals(2, batch.getAccountId(1));
+        assertEquals(200, batch.getAmount(1));
+        assertTrue(batch.isConsistent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEntryOverCapacity() {
+        Batch batch = new Batch(1);
+        batch.add(MessageType.CREDIT, 1, 100);
+        batch.add(MessageType.CREDIT, 1, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityOverLimit() {
+        new Batch(Batch.MAX_SIZE + 1);
+    }
+
+    @Test
+    public void selectsEntriesOfTypeAs() {
+        Batch batch = new Batch(3);
+        batch.add(MessageType.CREDIT, 1, 100);
+        batch.add(MessageType.DEBIT, 2, 200);
+        batch.add(MessageType.DEBIT, 3, 300);
+
+        Batch debits = batch.select(MessageType.DEBIT, MessageType.CREDIT);
+
+        assertEquals(2, debits.size());
+        assertEquals(MessageType.CREDIT, debits.getType(0));
+        assertEquals(2, debits.getAccountId(0));
+        assertEquals(3, debits.getAccountId(1));
+        assertEquals(0, batch.select(MessageType.BATCH, MessageType.CREDIT).size());
+    }
+
+    @Test
+    public void sumsAmountsOfType() {
+        Batch batch = new Batch(3);
+        batch.add(MessageType.CREDIT, 1, Integer.MAX_VALUE);
+        batch.add(MessageType.CREDIT, 2, Integer.MAX_VALUE);
+        batch.add(MessageType.DEBIT, 3, 300);
+
+        assertEquals(2L * Integer.MAX_VALUE, batch.sum(MessageType.CREDIT));
+        assertEquals(300, batch.sum(MessageType.DEBIT));
+        assertFalse(batch.isEmpty());
+    }
+
+}
@@ -0,0 +1,65 @@
+package cz.kiv.zcu.ds.bankserver.domain;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GlobalStateTest {
+
+    @Test
+    public void countsBalancesAndCreditsInFlight() {
+        GlobalState state = new GlobalState(1, new LocalState[] {
+                report(0, 600, 100, 0),
+                report(1, 300, 0, 50)
+        }, 1000, 0);
+
+        assertEquals(900, state.getBalance());
+        assertEquals(100, state.getInFlight());
+        assertEquals(1000, state.getTotal());
+        assertTrue(state.isComplete());
+        assertTrue(state.isConserved());
+    }
+
+    @Test
+    public void detectsCreatedMoney() {
+        GlobalState state = new GlobalState(1, new LocalState[] {
+                report(0, 600, 100, 0),
+                report(1, 400, 0, 0)
+        }, 1000, 0);
+
+        assertTrue(state.isComplete());
+        assertFalse(state.isConserved());
+    }
+
+    @Test
+    public void missingReportMakesStateIncomplete() {
+        GlobalState state = new GlobalState(1, new LocalState[] {report(0, 1000, 0, 0), null}, 1000, 0);
+
+        assertFalse(state.isComplete());
+        assertFalse(state.isConserved());
+        assertEquals(Collections.singletonList(1), state.getMissing());
+    }
+
+    @Test
+    public void nodeWhichIsNotMemberDoesNotHaveToReport() {
+        GlobalState state = new GlobalState(1, new LocalState[] {report(0, 1000, 0, 0), null},
+                new boolean[] {true, false}, 1000, 0);
+
+        assertTrue(state.isComplete());
+        assertTrue(state.isConserved());
+    }
+
+    private static LocalState report(int nodeId, long balance, long credits, long debits) {
+        LocalState state = new LocalState();
+        state.setNodeId(nodeId);
+        state.setBalance(balance);
+        state.setCreditsInFlight(credits);
+        state.setDebitsInFlight(debits);
+        return state;
+    }
+
+}
@@ -0,0 +1,164 @@
+package cz.kiv.zcu.ds.bankserver.persistence;
+
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.AccountsState;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import cz.kiv.zcu.ds.bankserver.util.LocalStateLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checkpoints of accounts of this JVM, the transaction log is attached to them only while test runs.
+ */
+public class CheckpointStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Accounts accounts = Accounts.getInstance();
+
+    private Path dir;
+
+    private TransactionLog log;
+
+    private CheckpointStore store;
+
+    @Before
+    public void open() throws IOException {
+        dir = folder.getRoot().toPath();
+        log = TransactionLog.open(dir, 1);
+        log.replay(0, (lsn, type, accountId, amount) -> { });
+        log.start();
+        accounts.setLog(log);
+
+        store = new CheckpointStore(0, dir, log);
+    }
+
+    @After
+    public void close() throws IOException {
+        accounts.setLog(null);
+        log.close();
+    }
+
+    @Test
+    public void loadsSavedCheckpoint() throws IOException {
+        accounts.get(5).credit(100);
+        LocalStateLogger lsl = new LocalStateLogger(0, accounts);
+        lsl.startLogging(new int[] {1, 2});
+        lsl.saveMessage(1, MessageType.CREDIT, 300);
+        lsl.saveMessage(1, MessageType.DEBIT, 200);
+
+        store.save(3L << 40, lsl);
+        Checkpoint checkpoint = store.loadLatest();
+
+        assertNotNull(checkpoint);
+        assertEquals(3L << 40, checkpoint.getSnapshotId());
+        assertEquals(log.getLastLsn(), checkpoint.getLsn());
+        assertEquals(balance(lsl.getAccountsState(), 5), balance(checkpoint.getAccounts(), 5));
+        assertEquals(lsl.getAccountsState().getTotal(), checkpoint.getAccounts().getTotal());
+
+        assertEquals(2, checkpoint.getChannelsCount());
+        assertEquals(1, checkpoint.getChannel(0));
+        assertArrayEquals(new long[] {300, -200}, checkpoint.getAmounts(0));
+        assertEquals(2, checkpoint.getChannel(1));
+        assertArrayEquals(new long[0], checkpoint.getAmounts(1));
+    }
+
+    @Test
+    public void noCheckpointIsLoadedFromEmptyDirectory() throws IOException {
+        assertNull(store.loadLatest());
+    }
+
+    @Test
+    public void skipsCorruptedCheckpoint() throws IOException {
+        save(1);
+        save(2);
+
+        // flip a byte of the latest checkpoint, its CRC no longer matches
+        List<Path> checkpoints = files(".ckpt");
+        try (FileChannel file = FileChannel.open(checkpoints.get(checkpoints.size() - 1),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            file.read(b, 10);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            file.write(b, 10);
+        }
+
+        assertEquals(1, store.loadLatest().getSnapshotId());
+    }
+
+    @Test
+    public void rejectsCheckpointOfOtherNode() throws IOException {
+        save(1);
+
+        assertNull(new CheckpointStore(1, dir, log).loadLatest());
+    }
+
+    @Test
+    public void retainsTwoLatestCheckpointsAndLogTailAfterOlderOne() throws IOException {
+        save(1);
+        long first = log.getLastLsn();
+        save(2);
+        long retained = log.getLastLsn();
+        save(3);
+
+        List<Path> checkpoints = files(".ckpt");
+        assertEquals(2, checkpoints.size());
+        assertFalse(checkpoints.get(0).getFileName().toString().contains(String.format("%020d", first)));
+        assertEquals(3, store.loadLatest().getSnapshotId());
+
+        // the older retained checkpoint can still be restored together with the log after it
+        long[] replayed = new long[1];
+        try (TransactionLog reopened = TransactionLog.open(dir, 1)) {
+            reopened.replay(retained, (lsn, type, accountId, amount) -> replayed[0]++);
+        }
+        assertEquals(1, replayed[0]);
+    }
+
+    /**
+     * Performs one operation and saves checkpoint of the resulting state.
+     * @param snapshotId - snapshot ID of the checkpoint
+     */
+    private void save(long snapshotId) throws IOException {
+        accounts.get(5).credit(100);
+        LocalStateLogger lsl = new LocalStateLogger(0, accounts);
+        store.save(snapshotId, lsl);
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(suffix)).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long balance(AccountsState state, int accountId) {
+        for (int i = 0; i < state.size(); i++) {
+            if (state.getId(i) == accountId) {
+                return state.getBalance(i);
+            }
+        }
+
+        throw new AssertionError("Account " + accountId + " not captured.");
+    }
+
+}
@@ -0,0 +1,162 @@
+package cz.kiv.zcu.ds.bankserver.persistence;
+
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysAppendedRecords() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        append(dir, 3);
+
+        List<String> records = replay(dir, 0);
+        assertEquals(3, records.size());
+        assertEquals("1 CREDIT 1 100", records.get(0));
+        assertEquals("2 DEBIT 2 200", records.get(1));
+        assertEquals("3 CREDIT 3 300", records.get(2));
+    }
+
+    @Test
+    public void replaysOnlyRecordsAfterCheckpoint() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        append(dir, 3);
+
+        List<String> records = replay(dir, 2);
+        assertEquals(1, records.size());
+        assertEquals("3 CREDIT 3 300", records.get(0));
+    }
+
+    @Test
+    public void syncDoesNotWaitForFlushInterval() throws IOException {
+        TransactionLog log = TransactionLog.open(folder.getRoot().toPath(), 60000);
+        log.replay(0, (lsn, type, accountId, amount) -> { });
+        log.start();
+        try {
+            long start = System.nanoTime();
+            for (int i = 1; i <= 3; i++) {
+                log.append(MessageType.CREDIT, i, 100);
+                assertTrue(log.sync());
+                assertEquals(i, log.getDurableLsn());
+            }
+
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void cutsOffRecordWithWrongChecksum() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        append(dir, 3);
+
+        // change amount of the last record, its CRC no longer matches
+        try (FileChannel segment = FileChannel.open(segment(dir), StandardOpenOption.WRITE)) {
+            long amount = TransactionLog.HEADER_SIZE + 2 * TransactionLog.RECORD_SIZE + Long.BYTES + 1
+                    + Integer.BYTES;
+            segment.write(ByteBuffer.wrap(new byte[] {0x7F}), amount);
+        }
+
+        assertEquals(2, replay(dir, 0).size());
+        assertEquals(TransactionLog.HEADER_SIZE + 2 * TransactionLog.RECORD_SIZE, Files.size(segment(dir)));
+    }
+
+    @Test
+    public void cutsOffTornRecordAndContinuesAfterLastValid() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        append(dir, 3);
+
+        try (FileChannel segment = FileChannel.open(segment(dir), StandardOpenOption.WRITE)) {
+            segment.truncate(segment.size() - 5);
+        }
+
+        TransactionLog log = TransactionLog.open(dir, 1);
+        assertEquals(2, log.replay(0, (lsn, type, accountId, amount) -> { }));
+        log.start();
+        assertEquals(3, log.append(MessageType.DEBIT, 4, 400));
+        assertTrue(log.sync());
+        log.close();
+
+        List<String> records = replay(dir, 0);
+        assertEquals(3, records.size());
+        assertEquals("3 DEBIT 4 400", records.get(2));
+    }
+
+    @Test
+    public void replaysRecordsOfRolledSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+
+        TransactionLog log = TransactionLog.open(dir, 1);
+        log.replay(0, (lsn, type, accountId, amount) -> { });
+        log.start();
+        log.append(MessageType.CREDIT, 1, 100);
+        assertTrue(log.sync());
+        log.roll();
+        log.append(MessageType.CREDIT, 2, 200);
+        assertTrue(log.sync());
+        log.close();
+
+        assertEquals(2, segments(dir).size());
+        assertEquals(2, replay(dir, 0).size());
+        assertEquals(1, replay(dir, 1).size());
+    }
+
+    /**
+     * Appends records with LSN i, alternating CREDIT and DEBIT, account i and amount i * 100.
+     */
+    private static void append(Path dir, int count) throws IOException {
+        TransactionLog log = TransactionLog.open(dir, 1);
+        log.replay(0, (lsn, type, accountId, amount) -> { });
+        log.start();
+        for (int i = 1; i <= count; i++) {
+            log.append(i % 2 == 1 ? MessageType.CREDIT : MessageType.DEBIT, i, i * 100);
+        }
+        assertTrue(log.sync());
+        log.close();
+    }
+
+    private static List<String> replay(Path dir, long afterLsn) throws IOException {
+        List<String> records = new ArrayList<>();
+        TransactionLog log = TransactionLog.open(dir, 1);
+        log.replay(afterLsn, (lsn, type, accountId, amount) -> records.add(lsn + " " + type + " " + accountId
+                + " " + amount));
+        log.close();
+
+        return records;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".log")).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static Path segment(Path dir) throws IOException {
+        List<Path> segments = segments(dir);
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+}
@@ -0,0 +1,62 @@
+package cz.kiv.zcu.ds.bankserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotIdsTest {
+
+    @Test
+    public void idIdentifiesInitiator() {
+        for (int node: new int[] {0, 1, 42, SnapshotIds.MAX_NODES - 1}) {
+            long id = SnapshotIds.first(node);
+            assertTrue(id > 0);
+            assertEquals(node, SnapshotIds.initiator(id));
+        }
+    }
+
+    @Test
+    public void idContainsStartOfNodeInSeconds() {
+        long before = System.currentTimeMillis() / 1000;
+        long id = SnapshotIds.first(5);
+        long after = System.currentTimeMillis() / 1000;
+
+        long epoch = (id >>> 16) & 0xFFFFFFFFL;
+        assertTrue(epoch >= before && epoch <= after);
+        assertEquals(0, id & 0xFFFF);
+    }
+
+    @Test
+    public void counterOverflowKeepsInitiator() {
+        long id = SnapshotIds.first(7);
+
+        assertEquals(7, SnapshotIds.initiator(id + 0xFFFF));
+        assertEquals(7, SnapshotIds.initiator(id + 0x10000));
+    }
+
+    @Test
+    public void rangesOfNodesDoNotOverlap() {
+        long last = SnapshotIds.first(0) + 0xFFFF;
+
+        assertTrue(last < SnapshotIds.first(1));
+    }
+
+    @Test
+    public void laterStartNeverGivesLowerId() {
+        long first = SnapshotIds.first(3);
+
+        assertTrue(SnapshotIds.first(3) >= first);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeNode() {
+        SnapshotIds.first(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNodeOutOfRange() {
+        SnapshotIds.first(SnapshotIds.MAX_NODES);
+    }
+
+}
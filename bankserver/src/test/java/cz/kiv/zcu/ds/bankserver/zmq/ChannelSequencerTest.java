@@ -0,0 +1,140 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChannelSequencerTest {
+
+    /**
+     * Sequence numbers of handled messages in order of handling
+     */
+    private final List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void releasesMessagesInOrder() {
+        ChannelSequencer sequencer = ordered();
+
+        offer(sequencer, 1, 2, 3);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), handled);
+    }
+
+    @Test
+    public void buffersMessagesUntilGapIsFilled() {
+        ChannelSequencer sequencer = ordered();
+
+        offer(sequencer, 1, 3, 4);
+        assertEquals(Collections.singletonList(1L), handled);
+
+        offer(sequencer, 2);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), handled);
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        ChannelSequencer sequencer = ordered();
+
+        // sequence 1 is not repeated, it means restart of sender
+        offer(sequencer, 1, 3, 3, 2, 2, 3);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), handled);
+    }
+
+    @Test
+    public void releasesUnnumberedMessagesImmediately() {
+        ChannelSequencer sequencer = ordered();
+
+        offer(sequencer, 1, 3, 0);
+
+        assertEquals(Arrays.asList(1L, 0L), handled);
+    }
+
+    @Test
+    public void givesUpOrderOnlyWhenTooManyMessagesWait() {
+        ChannelSequencer sequencer = ordered();
+
+        offer(sequencer, 1);
+        for (long i = 3; i < ChannelSequencer.MAX_BUFFERED + 3; i++) {
+            offer(sequencer, i);
+        }
+        assertEquals(1, handled.size());
+
+        offer(sequencer, ChannelSequencer.MAX_BUFFERED + 3);
+        assertEquals(ChannelSequencer.MAX_BUFFERED + 2, handled.size());
+        assertEquals(3L, (long) handled.get(1));
+
+        // missing message is delivered late, not dropped
+        offer(sequencer, 2);
+        assertEquals(2L, (long) handled.get(handled.size() - 1));
+    }
+
+    @Test
+    public void releasesBufferedMessagesWhenSenderRestarts() {
+        ChannelSequencer sequencer = ordered();
+
+        offer(sequencer, 1, 2, 5, 1, 2);
+
+        assertEquals(Arrays.asList(1L, 2L, 5L, 1L, 2L), handled);
+    }
+
+    @Test
+    public void markerWaitsForEarlierMessagesInParallelMode() {
+        Queue<Runnable> worker = new ArrayDeque<>();
+        Queue<Runnable> parallel = new ArrayDeque<>();
+        Executor[] workers = new Executor[] {parallel::add, parallel::add};
+        ChannelSequencer sequencer = new ChannelSequencer(1, worker::add, workers, m -> handled.add(m.getSequence()),
+                new MessagePool());
+
+        sequencer.offer(message(1, MessageType.CREDIT));
+        sequencer.offer(message(2, MessageType.CREDIT));
+        sequencer.offer(message(3, MessageType.MARKER));
+        sequencer.offer(message(4, MessageType.CREDIT));
+        assertEquals(2, parallel.size());
+        assertEquals(0, worker.size());
+
+        // the second message finishes first
+        Runnable first = parallel.poll();
+        parallel.poll().run();
+        assertEquals(0, worker.size());
+        first.run();
+        assertEquals(1, worker.size());
+        assertEquals(0, parallel.size());
+
+        worker.poll().run();
+        assertEquals(1, parallel.size());
+        parallel.poll().run();
+
+        assertEquals(Arrays.asList(2L, 1L, 3L, 4L), handled);
+    }
+
+    private ChannelSequencer ordered() {
+        return new ChannelSequencer(1, ChannelSequencer.DIRECT, null, m -> handled.add(m.getSequence()),
+                new MessagePool());
+    }
+
+    private static void offer(ChannelSequencer sequencer, long... sequences) {
+        for (long sequence: sequences) {
+            sequencer.offer(message(sequence, MessageType.CREDIT));
+        }
+    }
+
+    private static Message message(long sequence, MessageType type) {
+        Message message = new Message();
+        message.setType(type);
+        message.setFrom(1);
+        message.setSequence(sequence);
+        return message;
+    }
+
+}
@@ -0,0 +1,156 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.GlobalState;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GlobalStateAggregatorTest {
+
+    private GlobalStateAggregator aggregator;
+
+    @After
+    public void close() {
+        if (aggregator != null) {
+            aggregator.close();
+        }
+    }
+
+    @Test
+    public void finishesWhenAllNodesReported() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        CompletableFuture<GlobalState> result = aggregator.initiated(1);
+
+        aggregator.report(report(1, 0, 600, 100, -1));
+        assertFalse(result.isDone());
+        aggregator.report(report(1, 1, 300, 0, -1));
+
+        GlobalState state = result.get(1, TimeUnit.SECONDS);
+        assertTrue(state.isConserved());
+        assertEquals(state, aggregator.getResult(1));
+        assertEquals(0, aggregator.getCollectingCount());
+        assertEquals(1, aggregator.getCompletedCount());
+        assertEquals(0, aggregator.getViolationsCount());
+    }
+
+    @Test
+    public void countsViolation() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        CompletableFuture<GlobalState> result = aggregator.initiated(1);
+
+        aggregator.report(report(1, 0, 600, 0, -1));
+        aggregator.report(report(1, 1, 500, 0, -1));
+
+        assertFalse(result.get(1, TimeUnit.SECONDS).isConserved());
+        assertEquals(1, aggregator.getViolationsCount());
+    }
+
+    @Test
+    public void dropsReportOfSnapshotWhichWasNotAnnounced() {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+
+        aggregator.report(report(1, 0, 1000, 0, -1));
+
+        assertEquals(0, aggregator.getCollectingCount());
+        assertNull(aggregator.getResult(1));
+    }
+
+    @Test
+    public void collectsSnapshotAnnouncedByMarker() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        aggregator.announced(1);
+
+        aggregator.report(report(1, 1, 400, 0, -1));
+        aggregator.report(report(1, 0, 600, 0, -1));
+
+        assertTrue(aggregator.getResult(1).isConserved());
+    }
+
+    @Test
+    public void dropsReportOfUnknownNode() {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        aggregator.initiated(1);
+
+        aggregator.report(report(1, 2, 1000, 0, -1));
+        aggregator.report(report(1, -1, 1000, 0, -1));
+
+        assertNull(aggregator.getResult(1));
+    }
+
+    @Test
+    public void dropsLateReportOfFinishedSnapshot() throws Exception {
+        aggregator = new GlobalStateAggregator(1, 1000, 10000);
+        CompletableFuture<GlobalState> result = aggregator.initiated(1);
+        aggregator.report(report(1, 0, 1000, 0, -1));
+        result.get(1, TimeUnit.SECONDS);
+
+        aggregator.announced(1);
+        aggregator.report(report(1, 0, 1000, 0, -1));
+
+        assertEquals(0, aggregator.getCollectingCount());
+        assertEquals(1, aggregator.getCompletedCount());
+    }
+
+    @Test
+    public void finishesIncompleteSnapshotOnTimeout() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 50);
+        aggregator.announced(1);
+        CompletableFuture<GlobalState> result = aggregator.initiated(1);
+
+        aggregator.report(report(1, 0, 1000, 0, -1));
+
+        GlobalState state = result.get(1, TimeUnit.SECONDS);
+        assertFalse(state.isComplete());
+        assertEquals(state, aggregator.getResult(1));
+    }
+
+    @Test
+    public void resolvesDeltaReportAgainstBase() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        aggregator.initiated(1);
+        aggregator.report(report(1, 0, 600, 0, -1));
+        aggregator.report(report(1, 1, 400, 0, -1));
+
+        CompletableFuture<GlobalState> result = aggregator.initiated(2);
+        aggregator.report(report(2, 0, -150, 50, 1));
+        aggregator.report(report(2, 1, 100, 0, 1));
+
+        GlobalState state = result.get(1, TimeUnit.SECONDS);
+        assertEquals(450, state.getReport(0).getBalance());
+        assertEquals(500, state.getReport(1).getBalance());
+        assertTrue(state.isConserved());
+    }
+
+    @Test
+    public void dropsDeltaReportOfUnknownBase() throws Exception {
+        aggregator = new GlobalStateAggregator(2, 1000, 10000);
+        CompletableFuture<GlobalState> result = aggregator.initiated(2);
+
+        aggregator.report(report(2, 0, 500, 0, -1));
+        aggregator.report(report(2, 1, 0, 0, 1));
+
+        GlobalState state = result.get(1, TimeUnit.SECONDS);
+        assertFalse(state.isComplete());
+        assertEquals(Collections.singletonList(1), state.getMissing());
+    }
+
+    private static LocalState report(long snapshotId, int nodeId, long balance, long credits, long baseSnapshotId) {
+        LocalState state = new LocalState();
+        state.setSnapshotId(snapshotId);
+        state.setNodeId(nodeId);
+        state.setBalance(balance);
+        state.setCreditsInFlight(credits);
+        state.setBaseSnapshotId(baseSnapshotId);
+        return state;
+    }
+
+}
@@ -0,0 +1,75 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import cz.kiv.zcu.ds.bankserver.domain.MessageType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerManagerTest {
+
+    private ListenerManager manager;
+
+    private final List<Message> handled = new ArrayList<>();
+
+    @Before
+    public void create() {
+        manager = new ListenerManager(0, null);
+    }
+
+    @After
+    public void close() {
+        manager.close();
+    }
+
+    @Test
+    public void dispatchesMessageToHandlerOfItsType() {
+        manager.registerHandler(MessageType.CREDIT, handled::add);
+        Message message = message(MessageType.CREDIT);
+
+        manager.handleReceivedMessage(message);
+
+        assertEquals(1, handled.size());
+        assertEquals(message, handled.get(0));
+    }
+
+    @Test
+    public void registeredHandlerReplacesDefaultOne() {
+        manager.registerHandler(MessageType.MARKER, handled::add);
+
+        manager.handleReceivedMessage(message(MessageType.MARKER));
+
+        assertEquals(1, handled.size());
+    }
+
+    @Test
+    public void ignoresMessageOfUnknownType() {
+        manager.registerHandler(MessageType.CREDIT, handled::add);
+
+        manager.handleReceivedMessage(message(null));
+
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsHandlerRegisteredWhileListening() {
+        manager.createListener(0);
+
+        manager.registerHandler(MessageType.CREDIT, handled::add);
+    }
+
+    private static Message message(MessageType type) {
+        Message message = new Message();
+        message.setType(type);
+        message.setFrom(1);
+        message.setNumData(100);
+        return message;
+    }
+
+}
@@ -0,0 +1,87 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.codec.Codecs;
+import cz.kiv.zcu.ds.bankserver.domain.Message;
+import org.junit.After;
+import org.junit.Test;
+import org.zeromq.ZContext;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Outbox whose target never runs, so queued messages stay in its queue.
+ */
+public class OutboxTest {
+
+    private final ZContext context = new ZContext();
+
+    private final Outbox outbox = new Outbox("test", context, "tcp://127.0.0.1:1", Codecs.BINARY);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void close() {
+        executor.shutdownNow();
+        outbox.close();
+        context.close();
+    }
+
+    @Test
+    public void reservationWaitsForFreeSpace() throws Exception {
+        for (int i = 0; i < Outbox.QUEUE_CAPACITY; i++) {
+            outbox.reserve();
+        }
+
+        Future<?> blocked = executor.submit(() -> {
+            outbox.reserve();
+            return null;
+        });
+        assertBlocked(blocked);
+
+        // writer returns space of the message once it takes it from the queue
+        outbox.enqueueReserved(new Message());
+        blocked.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cancelledReservationIsReturned() throws Exception {
+        for (int i = 0; i < Outbox.QUEUE_CAPACITY; i++) {
+            outbox.reserve();
+        }
+
+        Future<?> blocked = executor.submit(() -> {
+            outbox.reserve();
+            return null;
+        });
+        assertBlocked(blocked);
+
+        outbox.cancelReservation();
+        blocked.get(1, TimeUnit.SECONDS);
+        assertEquals(0, outbox.getQueueSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedOutboxRefusesReservedMessage() throws Exception {
+        outbox.reserve();
+        outbox.close();
+
+        outbox.enqueueReserved(new Message());
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("Reservation did not wait for free space.");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+}
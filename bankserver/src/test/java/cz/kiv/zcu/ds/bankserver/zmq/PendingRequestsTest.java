@@ -0,0 +1,78 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PendingRequestsTest {
+
+    private PendingRequests requests;
+
+    @After
+    public void close() {
+        if (requests != null) {
+            requests.close();
+        }
+    }
+
+    @Test
+    public void replyCompletesRequest() {
+        requests = new PendingRequests(10000);
+        long first = requests.register(1, 100);
+        long second = requests.register(2, 200);
+        assertNotEquals(first, second);
+        assertEquals(2, requests.getPendingCount());
+
+        assertTrue(requests.complete(first, true));
+        assertTrue(requests.complete(second, false));
+
+        assertEquals(0, requests.getPendingCount());
+        assertEquals(0, requests.getLateCount());
+    }
+
+    @Test
+    public void roundTripIsRecordedByResult() {
+        requests = new PendingRequests(10000);
+        requests.complete(requests.register(1, 100), true);
+        requests.complete(requests.register(1, 100), true);
+        requests.complete(requests.register(1, 100), false);
+
+        requests.close();
+
+        assertEquals(2, requests.getAcceptedLatency().getTotalCount());
+        assertEquals(1, requests.getRejectedLatency().getTotalCount());
+    }
+
+    @Test
+    public void replyToUnknownRequestIsLate() {
+        requests = new PendingRequests(10000);
+        long id = requests.register(1, 100);
+
+        assertFalse(requests.complete(id + 1, true));
+        assertTrue(requests.complete(id, true));
+        assertFalse(requests.complete(id, true));
+
+        assertEquals(2, requests.getLateCount());
+    }
+
+    @Test
+    public void requestWithoutReplyTimesOut() throws Exception {
+        requests = new PendingRequests(10);
+        long id = requests.register(1, 100);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.getTimedOutCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, requests.getTimedOutCount());
+        assertEquals(0, requests.getPendingCount());
+        assertFalse(requests.complete(id, true));
+        assertEquals(1, requests.getLateCount());
+    }
+
+}
@@ -0,0 +1,208 @@
+package cz.kiv.zcu.ds.bankserver.zmq;
+
+import cz.kiv.zcu.ds.bankserver.domain.Accounts;
+import cz.kiv.zcu.ds.bankserver.domain.LocalState;
+import cz.kiv.zcu.ds.bankserver.persistence.TransactionLog;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Snapshots of node 0, whose neighbours are nodes 1 and 2. Markers and reports are only queued, neighbours do not
+ * run.
+ */
+public class SnapshotCoordinatorTest {
+
+    private static Sender sender;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SnapshotCoordinator coordinator = new SnapshotCoordinator(0, null, null);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @BeforeClass
+    public static void connect() {
+        sender = new Sender(0, null);
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        sender.closeConnections();
+    }
+
+    @After
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void initiatedSnapshotFinishesWithMarkersFromAllNeighbours() throws Exception {
+        InitiatedSnapshot snapshot = coordinator.initiate();
+        long id = snapshot.getId();
+        assertEquals(1, coordinator.activeCount());
+        assertFalse(snapshot.getLocal().isDone());
+
+        coordinator.markerReceived(id, 1, -1);
+        assertEquals(1, coordinator.activeCount());
+        coordinator.markerReceived(id, 2, -1);
+
+        assertEquals(0, coordinator.activeCount());
+        assertTrue(coordinator.awaitIdle(0, TimeUnit.MILLISECONDS));
+        assertEquals(id, snapshot.getLocal().get(0, TimeUnit.MILLISECONDS).getSnapshotId());
+        // global state is collected by the report node only
+        assertTrue(snapshot.getGlobal().isCompletedExceptionally());
+    }
+
+    @Test
+    public void firstMarkerStartsSnapshotAndClosesItsChannel() {
+        coordinator.markerReceived(7, 1, -1);
+        assertEquals(1, coordinator.activeCount());
+
+        coordinator.markerReceived(7, 2, -1);
+        assertEquals(0, coordinator.activeCount());
+    }
+
+    @Test
+    public void lateMarkerDoesNotRestartFinishedSnapshot() {
+        coordinator.markerReceived(7, 1, -1);
+        coordinator.markerReceived(7, 2, -1);
+
+        coordinator.markerReceived(7, 1, -1);
+        assertEquals(0, coordinator.activeCount());
+    }
+
+    @Test
+    public void concurrentSnapshotsFinishIndependently() {
+        long first = coordinator.initiate().getId();
+        long second = coordinator.initiate().getId();
+        assertNotEquals(first, second);
+        assertEquals(2, coordinator.activeCount());
+
+        coordinator.markerReceived(second, 2, -1);
+        coordinator.markerReceived(second, 1, -1);
+        assertEquals(1, coordinator.activeCount());
+
+        coordinator.markerReceived(first, 1, -1);
+        coordinator.markerReceived(first, 2, -1);
+        assertEquals(0, coordinator.activeCount());
+    }
+
+    @Test
+    public void snapshotStartWaitsForRunningOperation() throws Exception {
+        Lock lock = coordinator.channelLock(1);
+        lock.lock();
+        Future<InitiatedSnapshot> started;
+        try {
+            started = executor.submit(() -> coordinator.initiate());
+            try {
+                started.get(100, TimeUnit.MILLISECONDS);
+                fail("Snapshot started while operation was running.");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertEquals(0, coordinator.activeCount());
+        } finally {
+            lock.unlock();
+        }
+
+        started.get(1, TimeUnit.SECONDS);
+        assertEquals(1, coordinator.activeCount());
+    }
+
+    @Test
+    public void operationsOfChannelsDoNotBlockEachOther() throws Exception {
+        Lock lock = coordinator.channelLock(1);
+        lock.lock();
+        try {
+            assertTrue(executor.submit(() -> tryLock(coordinator.channelLock(1))).get(1, TimeUnit.SECONDS));
+            assertTrue(executor.submit(() -> tryLock(coordinator.channelLock(2))).get(1, TimeUnit.SECONDS));
+            assertTrue(executor.submit(() -> tryLock(coordinator.localLock())).get(1, TimeUnit.SECONDS));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Test
+    public void awaitIdleTimesOutWhileSnapshotRuns() throws Exception {
+        long id = coordinator.initiate().getId();
+
+        assertFalse(coordinator.awaitIdle(10, TimeUnit.MILLISECONDS));
+
+        executor.submit(() -> {
+            coordinator.markerReceived(id, 1, -1);
+            coordinator.markerReceived(id, 2, -1);
+        });
+        assertTrue(coordinator.awaitIdle(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void snapshotStartedWhileDebitBecomesDurableCountsItsMoney() throws Exception {
+        Accounts accounts = Accounts.getInstance();
+        ExecutorService initiator = Executors.newSingleThreadExecutor();
+        // log is not started, so nothing becomes durable until it is closed
+        TransactionLog log = TransactionLog.open(folder.getRoot().toPath(), 1);
+        log.replay(0, (lsn, type, accountId, amount) -> { });
+        accounts.getDefault().credit(100);
+        accounts.setLog(log);
+        try {
+            Lock lock = coordinator.channelLock(1);
+            Future<Boolean> durable = executor.submit(() -> {
+                lock.lock();
+                try {
+                    accounts.getDefault().debit(100);
+                    return coordinator.awaitDurable(lock, 100);
+                } finally {
+                    lock.unlock();
+                }
+            });
+            while (log.getLastLsn() == 0) {
+                Thread.sleep(1);
+            }
+
+            // the debit is not durable yet, but its channel lock is released and the money is not lost
+            InitiatedSnapshot snapshot = initiator.submit(() -> coordinator.initiate()).get(1, TimeUnit.SECONDS);
+            long expected = accounts.getTotalBalance() + 100;
+            coordinator.markerReceived(snapshot.getId(), 1, -1);
+            coordinator.markerReceived(snapshot.getId(), 2, -1);
+            LocalState state = snapshot.getLocal().get(1, TimeUnit.SECONDS);
+            assertEquals(expected, state.getBalance());
+            assertFalse(durable.isDone());
+
+            log.close();
+            assertFalse(durable.get(1, TimeUnit.SECONDS));
+        } finally {
+            initiator.shutdownNow();
+            accounts.setLog(null);
+            log.close();
+            accounts.getDefault().credit(100);
+        }
+    }
+
+    private static boolean tryLock(Lock lock) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+
+        lock.unlock();
+        return true;
+    }
+
+}